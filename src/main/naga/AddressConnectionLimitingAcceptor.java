@@ -0,0 +1,137 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A connection acceptor limiting the number of open connections from each source address.
+ * <p>
+ * The acceptor counts the open connections from each address, and refuses new connections
+ * from addresses that have reached the limit. IPv6 addresses share a count with all
+ * addresses in the same /64 network.
+ * <p>
+ * The counts rely on the server socket calling {@link #connectionClosed(InetSocketAddress)}
+ * when a connection closes, so an acceptor should only be set on server sockets and not be
+ * called directly. It may be shared by several server sockets, limiting their combined connections.
+ * <p>
+ * Connections below the limit are passed on to the next acceptor, if any.
+ * If the next acceptor is a {@link ConnectionTracker}, closed connections are passed on to it as well.
+ * <p>
+ * <em>This class is thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class AddressConnectionLimitingAcceptor implements ConnectionTracker
+{
+	private final ConnectionAcceptor m_next;
+	private final int m_maxConnections;
+	private final AddressTable m_connections;
+
+	/**
+	 * Creates a connection limiting acceptor accepting all connections below the limit.
+	 *
+	 * @param maxConnections the maximum number of open connections from each address.
+	 * @throws IllegalArgumentException if the limit is less than 1.
+	 */
+	public AddressConnectionLimitingAcceptor(int maxConnections)
+	{
+		this(maxConnections, ConnectionAcceptor.ALLOW);
+	}
+
+	/**
+	 * Creates a connection limiting acceptor.
+	 *
+	 * @param maxConnections the maximum number of open connections from each address.
+	 * @param next the acceptor that decides on connections below the limit.
+	 * @throws IllegalArgumentException if the limit is less than 1.
+	 */
+	public AddressConnectionLimitingAcceptor(int maxConnections, ConnectionAcceptor next)
+	{
+		if (maxConnections < 1) throw new IllegalArgumentException("Limit must allow at least one connection, was " + maxConnections);
+		if (next == null) throw new NullPointerException();
+		m_next = next;
+		m_maxConnections = maxConnections;
+		m_connections = new AddressTable();
+	}
+
+	public boolean acceptConnection(InetSocketAddress inetSocketAddress)
+	{
+		long key = AddressTable.keyOf(inetSocketAddress.getAddress());
+		if (!addConnection(key)) return false;
+		if (m_next.acceptConnection(inetSocketAddress)) return true;
+		removeConnection(key);
+		return false;
+	}
+
+	public void connectionClosed(InetSocketAddress inetSocketAddress)
+	{
+		removeConnection(AddressTable.keyOf(inetSocketAddress.getAddress()));
+		if (m_next instanceof ConnectionTracker) ((ConnectionTracker) m_next).connectionClosed(inetSocketAddress);
+	}
+
+	private synchronized boolean addConnection(long key)
+	{
+		long connections = m_connections.get(key);
+		if (connections >= m_maxConnections) return false;
+		m_connections.put(key, connections + 1);
+		return true;
+	}
+
+	private synchronized void removeConnection(long key)
+	{
+		long connections = m_connections.get(key);
+		if (connections > 0) m_connections.put(key, connections - 1);
+	}
+
+	/**
+	 * Returns the number of open connections from an address.
+	 *
+	 * @param address the address to look up.
+	 * @return the number of open connections accepted from the address, or its /64 network for IPv6.
+	 */
+	public synchronized int getConnections(InetAddress address)
+	{
+		return (int) m_connections.get(AddressTable.keyOf(address));
+	}
+
+	/**
+	 * Returns the number of addresses with open connections.
+	 *
+	 * @return the number of addresses currently tracked.
+	 */
+	public synchronized int getTrackedAddresses()
+	{
+		return m_connections.size();
+	}
+
+	/**
+	 * Returns the maximum number of open connections from each address.
+	 *
+	 * @return the connection limit.
+	 */
+	public int getMaxConnections()
+	{
+		return m_maxConnections;
+	}
+}
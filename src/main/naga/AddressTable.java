@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * A hash table from IP addresses to non-zero long values, stored in primitive arrays.
+ * <p>
+ * Addresses are reduced to long keys using {@link #keyOf(InetAddress)}: an IPv6 address
+ * is reduced to its /64 network prefix, since a single host usually controls an entire /64
+ * network, while an IPv4 address is placed in the keys of the multicast range ff00::/8,
+ * which never connects, so that the two families never share a key.
+ * <p>
+ * The table uses open addressing with linear probing, so lookups do not allocate.
+ * A value of 0 means that the key is absent, and storing 0 removes the key.
+ * <p>
+ * <em>This class is not thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+class AddressTable
+{
+	/** The top byte of the keys of IPv4 addresses, that of the IPv6 multicast range. */
+	private final static long IPV4_KEY_PREFIX = 0xFF00000000000000L;
+	private final static int MIN_CAPACITY = 16;
+	private long[] m_keys;
+	private long[] m_values;
+	private int m_size;
+
+	AddressTable()
+	{
+		m_keys = new long[MIN_CAPACITY];
+		m_values = new long[MIN_CAPACITY];
+		m_size = 0;
+	}
+
+	/**
+	 * Reduces an address to the key used in the table.
+	 *
+	 * @param address the address.
+	 * @return the IPv4 address as an unsigned int tagged with the IPv4 prefix, or the /64 prefix of an IPv6 address.
+	 */
+	static long keyOf(InetAddress address)
+	{
+		byte[] bytes = address.getAddress();
+		if (address instanceof Inet4Address)
+		{
+			return IPV4_KEY_PREFIX | ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16) | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+		}
+		long key = 0;
+		for (int i = 0; i < 8; i++)
+		{
+			key = (key << 8) | (bytes[i] & 0xFFL);
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the number of keys in the table.
+	 *
+	 * @return the number of keys with a non-zero value.
+	 */
+	int size()
+	{
+		return m_size;
+	}
+
+	/**
+	 * Returns the value of a key.
+	 *
+	 * @param key the key to look up.
+	 * @return the value of the key, or 0 if the key is absent.
+	 */
+	long get(long key)
+	{
+		int mask = m_keys.length - 1;
+		for (int i = indexOf(key, mask); m_values[i] != 0; i = (i + 1) & mask)
+		{
+			if (m_keys[i] == key) return m_values[i];
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets the value of a key.
+	 *
+	 * @param key the key to set.
+	 * @param value the new value, or 0 to remove the key.
+	 */
+	void put(long key, long value)
+	{
+		int mask = m_keys.length - 1;
+		int i = indexOf(key, mask);
+		while (m_values[i] != 0)
+		{
+			if (m_keys[i] == key)
+			{
+				if (value == 0)
+				{
+					removeAt(i);
+				}
+				else
+				{
+					m_values[i] = value;
+				}
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		if (value == 0) return;
+		m_keys[i] = key;
+		m_values[i] = value;
+		if (++m_size * 2 > m_keys.length) resize(m_keys.length * 2);
+	}
+
+	/**
+	 * Removes all keys with a value less than or equal to the limit.
+	 *
+	 * @param limit the largest value to remove.
+	 */
+	void removeUpTo(long limit)
+	{
+		long[] keys = m_keys;
+		long[] values = m_values;
+		int capacity = m_keys.length;
+		while (capacity > MIN_CAPACITY && m_size * 4 < capacity)
+		{
+			capacity /= 2;
+		}
+		m_keys = new long[capacity];
+		m_values = new long[capacity];
+		m_size = 0;
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (values[i] > limit) put(keys[i], values[i]);
+		}
+	}
+
+	/**
+	 * Removes the key at the index, then moves back any following keys
+	 * of the probe sequence that would no longer be found.
+	 *
+	 * @param index the index of the key to remove.
+	 */
+	private void removeAt(int index)
+	{
+		int mask = m_keys.length - 1;
+		int free = index;
+		for (int i = (index + 1) & mask; m_values[i] != 0; i = (i + 1) & mask)
+		{
+			int home = indexOf(m_keys[i], mask);
+			// Move the key if its home is not cyclically within (free, i].
+			if (((i - home) & mask) >= ((i - free) & mask))
+			{
+				m_keys[free] = m_keys[i];
+				m_values[free] = m_values[i];
+				free = i;
+			}
+		}
+		m_values[free] = 0;
+		m_size--;
+	}
+
+	private void resize(int capacity)
+	{
+		long[] keys = m_keys;
+		long[] values = m_values;
+		m_keys = new long[capacity];
+		m_values = new long[capacity];
+		m_size = 0;
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (values[i] != 0) put(keys[i], values[i]);
+		}
+	}
+
+	private static int indexOf(long key, int mask)
+	{
+		// The MurmurHash3 finalizer, spreading the bits of the key.
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		key *= 0xC4CEB9FE1A85EC53L;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates the byte buffers used for socket I/O by a NIOService.
+ * <p>
+ * The allocator is used for the shared read buffer, for the read buffers of sockets
+ * holding partial packets, and for the application and outbound buffers of SSL sockets.
+ * <p>
+ * Buffers obtained through {@link #allocate(int)} are handed back with
+ * {@link #release(ByteBuffer)} when no longer used, allowing pooling implementations
+ * to reuse them.
+ * <p>
+ * Use {@link naga.NIOService#setBufferAllocator(ByteBufferAllocator)} to change the
+ * allocator of a service.
+ *
+ * @author Christoffer Lerno
+ */
+public interface ByteBufferAllocator
+{
+    /**
+     * An allocator that allocates a new heap buffer on every request.
+     */
+    ByteBufferAllocator HEAP = new ByteBufferAllocator()
+    {
+        public ByteBuffer allocate(int size)
+        {
+            return ByteBuffer.allocate(size);
+        }
+
+        public void release(ByteBuffer buffer)
+        {
+        }
+    };
+
+    /**
+     * An allocator that allocates a new direct buffer on every request.
+     * <p>
+     * Direct buffers let the channels read and write without an intermediate copy,
+     * but are expensive to allocate. Prefer a pooling allocator such as
+     * {@link naga.PooledByteBufferAllocator} for buffers that come and go.
+     */
+    ByteBufferAllocator DIRECT = new ByteBufferAllocator()
+    {
+        public ByteBuffer allocate(int size)
+        {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        public void release(ByteBuffer buffer)
+        {
+        }
+    };
+
+    /**
+     * Returns a cleared buffer with a capacity of at least the requested size.
+     * <p>
+     * <em>Implementations must be thread-safe, as an allocator may be shared between services.</em>
+     *
+     * @param size the minimum capacity of the buffer.
+     * @return a cleared buffer.
+     */
+    ByteBuffer allocate(int size);
+
+    /**
+     * Returns a buffer to the allocator.
+     * <p>
+     * The buffer must not be used after it has been released.
+     * <p>
+     * <em>Implementations must be thread-safe, as an allocator may be shared between services.</em>
+     *
+     * @param buffer the buffer to release, may be null.
+     */
+    void release(ByteBuffer buffer);
+}
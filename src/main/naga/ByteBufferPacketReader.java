@@ -0,0 +1,54 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import naga.exception.ProtocolViolationException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A packet reader that can return packets as views into the read buffer instead of copying
+ * them into new byte arrays.
+ * <p>
+ * When a socket uses a ByteBufferPacketReader and its observer is a {@link ByteBufferSocketObserver},
+ * packets are passed to the observer without being copied. For other observers the
+ * packet is copied into a byte array, so the reader may be used with any observer.
+ *
+ * @author Christoffer Lerno
+ */
+public interface ByteBufferPacketReader extends PacketReader
+{
+    /**
+     * Create a new packet using the ByteBuffer given, returning a view of the packet content.
+     * <p/>
+     * If there isn't sufficient data to construct a packet, return null.
+     * <p/>
+     * The returned buffer may share content with the byte buffer given, so it is only valid
+     * until the byte buffer is modified.
+     *
+     * @param byteBuffer the byte buffer to use.
+     * @return a buffer holding the new packet between its position and limit, or null if no packet
+     * could be created. The method will continously be called until nextPacketBuffer returns null.
+     * @throws ProtocolViolationException is there was an error constructing the packet.
+     */
+    ByteBuffer nextPacketBuffer(ByteBuffer byteBuffer) throws ProtocolViolationException;
+}
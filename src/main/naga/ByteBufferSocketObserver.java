@@ -0,0 +1,56 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A socket observer receiving packets as ByteBuffers rather than byte arrays.
+ * <p>
+ * Together with a {@link ByteBufferPacketReader}, this allows packets to be
+ * received without copying them out of the read buffer.
+ * <p>
+ * If a socket's observer implements this interface, all packets are delivered
+ * through {@link #packetReceived(NIOSocket, java.nio.ByteBuffer)}, and
+ * {@link SocketObserver#packetReceived(NIOSocket, byte[])} is not called by the socket.
+ *
+ * @author Christoffer Lerno
+ */
+public interface ByteBufferSocketObserver extends SocketObserver
+{
+	/**
+	 * Called by the NIOService on the NIO thread when a packet is finished reading.
+	 * The buffer contains the packet as parsed by the current PacketReader.
+	 * <p>
+	 * The buffer is read-only and only valid until this method returns, since it may
+	 * be a view of the read buffer which is reused by the socket and the NIOService.
+	 * Copy any content that needs to be kept after the call.
+	 * <p>
+	 * <b>Note: Since this is a direct callback on the NIO thread, this method will suspend IO on
+	 * all other connections until the method returns. It is therefore strongly recommended
+	 * that the implementation of this method returns as quickly as possible to avoid blocking IO.</b>
+	 *
+	 * @param socket the socket we received a packet on.
+	 * @param packet a read-only buffer with the packet between its position and limit.
+	 */
+	void packetReceived(NIOSocket socket, ByteBuffer packet);
+}
@@ -0,0 +1,110 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A connection acceptor allowing or denying connections by IPv4 and IPv6 CIDR rules.
+ * <p>
+ * The rules, see {@link CidrRules}, are looked up in prefix tries, so a lookup
+ * stays fast with tens of thousands of ranges.
+ * <p>
+ * The rules can be replaced at any time using {@link #setRules(CidrRules)}. The acceptor
+ * copies the new rules and then swaps them in, so accepts are never blocked and always
+ * use either the old or the new rules in full.
+ * <p>
+ * Allowed connections are passed on to the next acceptor, if any.
+ * If the next acceptor is a {@link ConnectionTracker}, closed connections are passed on to it as well.
+ * <p>
+ * <em>This class is thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class CidrAcceptor implements ConnectionTracker
+{
+	private final ConnectionAcceptor m_next;
+	private volatile CidrRules m_rules;
+
+	/**
+	 * Creates a CIDR acceptor accepting all allowed connections.
+	 *
+	 * @param rules the rules to use, copied by the acceptor.
+	 */
+	public CidrAcceptor(CidrRules rules)
+	{
+		this(rules, ConnectionAcceptor.ALLOW);
+	}
+
+	/**
+	 * Creates a CIDR acceptor.
+	 *
+	 * @param rules the rules to use, copied by the acceptor.
+	 * @param next the acceptor that decides on allowed connections.
+	 */
+	public CidrAcceptor(CidrRules rules, ConnectionAcceptor next)
+	{
+		if (next == null) throw new NullPointerException();
+		m_next = next;
+		setRules(rules);
+	}
+
+	/**
+	 * Replaces the rules of this acceptor.
+	 * <p>
+	 * The rules are copied, so later changes to the given rules have no
+	 * effect until they are set again.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param rules the new rules.
+	 */
+	public void setRules(CidrRules rules)
+	{
+		m_rules = new CidrRules(rules);
+	}
+
+	/**
+	 * Returns a copy of the rules currently used by this acceptor.
+	 * <p>
+	 * The copy may be changed and then set using {@link #setRules(CidrRules)}.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return a copy of the current rules.
+	 */
+	public CidrRules getRules()
+	{
+		return new CidrRules(m_rules);
+	}
+
+	public boolean acceptConnection(InetSocketAddress inetSocketAddress)
+	{
+		if (!m_rules.isAllowed(inetSocketAddress.getAddress())) return false;
+		return m_next.acceptConnection(inetSocketAddress);
+	}
+
+	public void connectionClosed(InetSocketAddress inetSocketAddress)
+	{
+		if (m_next instanceof ConnectionTracker) ((ConnectionTracker) m_next).connectionClosed(inetSocketAddress);
+	}
+}
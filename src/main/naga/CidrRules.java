@@ -0,0 +1,248 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A set of IPv4 and IPv6 CIDR rules allowing or denying address ranges, for use with a {@link CidrAcceptor}.
+ * <p>
+ * An address is decided by the most specific rule matching it, that is the one
+ * with the longest prefix. If several rules have the same range, the last one added wins.
+ * Addresses not matching any rule are decided by the default set when the rules were created.
+ * <p>
+ * For example, to deny 10.0.0.0/8 except for 10.1.0.0/16:
+ * <pre>
+ * CidrRules rules = new CidrRules(true);
+ * rules.deny("10.0.0.0/8");
+ * rules.allow("10.1.0.0/16");
+ * </pre>
+ * <p>
+ * The rules are stored in binary prefix tries, one for IPv4 and one for IPv6, so a lookup
+ * takes at most one step per address bit regardless of the number of rules.
+ * <p>
+ * <em>This class is not thread-safe. Use {@link CidrAcceptor#setRules(CidrRules)} to
+ * share the rules with server sockets.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class CidrRules
+{
+	private final boolean m_allowByDefault;
+	private final PrefixTrie m_ipv4;
+	private final PrefixTrie m_ipv6;
+	private int m_rules;
+
+	/**
+	 * Creates an empty set of rules.
+	 *
+	 * @param allowByDefault true to allow addresses not matching any rule, false to deny them.
+	 */
+	public CidrRules(boolean allowByDefault)
+	{
+		m_allowByDefault = allowByDefault;
+		m_ipv4 = new PrefixTrie();
+		m_ipv6 = new PrefixTrie();
+		m_rules = 0;
+	}
+
+	/**
+	 * Creates a compact copy of a set of rules.
+	 *
+	 * @param rules the rules to copy.
+	 */
+	CidrRules(CidrRules rules)
+	{
+		m_allowByDefault = rules.m_allowByDefault;
+		m_ipv4 = new PrefixTrie(rules.m_ipv4);
+		m_ipv6 = new PrefixTrie(rules.m_ipv6);
+		m_rules = rules.m_rules;
+	}
+
+	/**
+	 * Allows a range of addresses.
+	 *
+	 * @param cidr the range in CIDR notation, e.g. "192.168.0.0/16" or "2001:db8::/32".
+	 * A single address without a prefix length is allowed on its own.
+	 * An IPv4-mapped range such as "::ffff:10.0.0.0/104" is the IPv4 range "10.0.0.0/8".
+	 * @throws IllegalArgumentException if the range is not a valid CIDR range.
+	 */
+	public void allow(String cidr)
+	{
+		add(cidr, PrefixTrie.ALLOW);
+	}
+
+	/**
+	 * Denies a range of addresses.
+	 *
+	 * @param cidr the range in CIDR notation, e.g. "192.168.0.0/16" or "2001:db8::/32".
+	 * A single address without a prefix length is denied on its own.
+	 * An IPv4-mapped range such as "::ffff:10.0.0.0/104" is the IPv4 range "10.0.0.0/8".
+	 * @throws IllegalArgumentException if the range is not a valid CIDR range.
+	 */
+	public void deny(String cidr)
+	{
+		add(cidr, PrefixTrie.DENY);
+	}
+
+	/**
+	 * Allows a range of addresses.
+	 *
+	 * @param address an address in the range.
+	 * @param prefixLength the number of leading bits shared by all addresses in the range.
+	 * @throws IllegalArgumentException if the prefix length is negative or longer than the address.
+	 */
+	public void allow(InetAddress address, int prefixLength)
+	{
+		add(address.getAddress(), prefixLength, PrefixTrie.ALLOW);
+	}
+
+	/**
+	 * Denies a range of addresses.
+	 *
+	 * @param address an address in the range.
+	 * @param prefixLength the number of leading bits shared by all addresses in the range.
+	 * @throws IllegalArgumentException if the prefix length is negative or longer than the address.
+	 */
+	public void deny(InetAddress address, int prefixLength)
+	{
+		add(address.getAddress(), prefixLength, PrefixTrie.DENY);
+	}
+
+	/**
+	 * Determine if an address is allowed by these rules.
+	 *
+	 * @param address the address to look up.
+	 * @return true if the most specific rule matching the address allows it,
+	 * or if no rule matches and addresses are allowed by default.
+	 */
+	public boolean isAllowed(InetAddress address)
+	{
+		byte[] bytes = address.getAddress();
+		byte action = (bytes.length == 4 ? m_ipv4 : m_ipv6).lookup(bytes);
+		return action == PrefixTrie.NONE ? m_allowByDefault : action == PrefixTrie.ALLOW;
+	}
+
+	/**
+	 * Returns the number of rules added.
+	 *
+	 * @return the number of rules, including rules replaced by later rules for the same range.
+	 */
+	public int size()
+	{
+		return m_rules;
+	}
+
+	/**
+	 * Returns the default decision for addresses not matching any rule.
+	 *
+	 * @return true if addresses are allowed by default.
+	 */
+	public boolean isAllowedByDefault()
+	{
+		return m_allowByDefault;
+	}
+
+	private void add(String cidr, byte action)
+	{
+		int slash = cidr.indexOf('/');
+		String host = slash < 0 ? cidr : cidr.substring(0, slash);
+		byte[] address = parseLiteral(host);
+		if (address == null) throw new IllegalArgumentException("Not a CIDR range: " + cidr);
+		int prefixLength;
+		try
+		{
+			prefixLength = slash < 0 ? address.length * 8 : Integer.parseInt(cidr.substring(slash + 1));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Not a CIDR range: " + cidr);
+		}
+		// InetAddress turns IPv4-mapped addresses into IPv4 addresses, so their ranges are IPv4 ranges.
+		if (address.length == 4 && slash >= 0 && host.indexOf(':') >= 0)
+		{
+			if (prefixLength < 96 || prefixLength > 128)
+			{
+				throw new IllegalArgumentException("Invalid prefix length " + prefixLength + " for an IPv4-mapped address, must be between 96 and 128.");
+			}
+			prefixLength -= 96;
+		}
+		add(address, prefixLength, action);
+	}
+
+	/**
+	 * Parses a literal address, without ever looking up a host name.
+	 *
+	 * @param host a dotted quad IPv4 address or an IPv6 address.
+	 * @return the bytes of the address, or null if the host is not a literal address.
+	 */
+	private static byte[] parseLiteral(String host)
+	{
+		if (host.indexOf(':') >= 0)
+		{
+			// A host with a ':' is only ever parsed as an IPv6 literal, it is never looked up.
+			for (int i = 0; i < host.length(); i++)
+			{
+				char c = host.charAt(i);
+				if (Character.digit(c, 16) < 0 && c != '.' && c != ':') return null;
+			}
+			try
+			{
+				return InetAddress.getByName(host).getAddress();
+			}
+			catch (UnknownHostException e)
+			{
+				return null;
+			}
+		}
+		// InetAddress looks up anything that is not an IPv4 literal, so parse those here.
+		String[] parts = host.split("\\.", -1);
+		if (parts.length != 4) return null;
+		byte[] address = new byte[4];
+		for (int i = 0; i < 4; i++)
+		{
+			String part = parts[i];
+			if (part.length() == 0 || part.length() > 3) return null;
+			int value = 0;
+			for (int j = 0; j < part.length(); j++)
+			{
+				char c = part.charAt(j);
+				if (c < '0' || c > '9') return null;
+				value = value * 10 + c - '0';
+			}
+			if (value > 255) return null;
+			address[i] = (byte) value;
+		}
+		return address;
+	}
+
+	private void add(byte[] address, int prefixLength, byte action)
+	{
+		if (prefixLength < 0 || prefixLength > address.length * 8)
+		{
+			throw new IllegalArgumentException("Invalid prefix length " + prefixLength + " for a " + address.length * 8 + " bit address.");
+		}
+		(address.length == 4 ? m_ipv4 : m_ipv6).insert(address, prefixLength, action);
+		m_rules++;
+	}
+}
@@ -34,6 +34,12 @@ import java.net.InetSocketAddress;
  * <p>
  * Note that a NIOServerSocket defaults to the ConnectorAcceptor.ALLOW 
  * acceptor when it is created.
+ * <p>
+ * Naga provides acceptors limiting the accept rate ({@link RateLimitingAcceptor}),
+ * the accept rate per address ({@link AddressRateLimitingAcceptor}) and the number of
+ * open connections per address ({@link AddressConnectionLimitingAcceptor}), as well as
+ * an acceptor filtering addresses by CIDR ranges ({@link CidrAcceptor}), which can be chained.
+ * Acceptors that need to know when connections close implement {@link ConnectionTracker}.
  *
  *
  * @author Christoffer Lerno
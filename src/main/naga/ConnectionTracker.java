@@ -0,0 +1,52 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A ConnectionAcceptor that is also told when the connections it accepted close.
+ * <p>
+ * When a NIOServerSocket uses a ConnectionTracker as its acceptor, every connection
+ * the tracker accepts is followed by exactly one call to <code>connectionClosed</code>,
+ * made when the socket closes for any reason - including if the socket fails to register after
+ * being accepted. This lets the tracker keep counts of open connections without having to
+ * observe each socket.
+ * <p>
+ * Note that the closing socket may belong to another NIOService than the server socket,
+ * so <code>connectionClosed</code> may be called from another thread than
+ * <code>acceptConnection</code>.
+ *
+ * @author Christoffer Lerno
+ */
+public interface ConnectionTracker extends ConnectionAcceptor
+{
+	/**
+	 * Called when a connection accepted by this tracker has closed.
+	 * <p>
+	 * <b>Note: This callback is run on the NIOService thread of the closed socket,
+	 * and should return quickly.</b>
+	 *
+	 * @param inetSocketAddress the address the connection came from.
+	 */
+	void connectionClosed(InetSocketAddress inetSocketAddress);
+}
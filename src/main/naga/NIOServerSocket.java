@@ -34,6 +34,10 @@ import java.net.ServerSocket;
  */
 public interface NIOServerSocket extends NIOAbstractSocket
 {
+	/**
+	 * The default maximum number of connections accepted each time the server socket is selected.
+	 */
+	int DEFAULT_ACCEPT_BATCH_SIZE = 64;
 
 	/**
 	 * Returns the total number of connections made on this socket since
@@ -102,6 +106,33 @@ public interface NIOServerSocket extends NIOAbstractSocket
 	 */
 	void setConnectionAcceptor(ConnectionAcceptor acceptor);
 
+	/**
+	 * Sets the maximum number of connections accepted each time the server socket is selected.
+	 * <p>
+	 * Pending connections are accepted until there are no more or the limit is reached,
+	 * after which the service returns to serving its other sockets. A larger batch accepts
+	 * bursts of connections faster, a smaller one keeps other sockets more responsive
+	 * while a burst is accepted.
+	 * <p>
+	 * The default is {@link #DEFAULT_ACCEPT_BATCH_SIZE}.
+	 * Setting the limit to 1 accepts one connection per select.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param maxAccepts the maximum number of connections to accept per select, at least 1.
+	 * @throws IllegalArgumentException if the limit is less than 1.
+	 */
+	void setAcceptBatchSize(int maxAccepts);
+
+	/**
+	 * The maximum number of connections accepted each time the server socket is selected.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the current accept limit per select.
+	 */
+	int getAcceptBatchSize();
+
 	/**
 	 * Allows access to the underlying server socket.
 	 * <p>
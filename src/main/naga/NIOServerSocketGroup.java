@@ -0,0 +1,201 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+/**
+ * A group of server sockets bound to the same address, acting as a single server socket.
+ * <p>
+ * The group is created by {@link NIOServiceGroup#openReusePortServerSocket(java.net.InetSocketAddress, int)},
+ * with one server socket per service. Calls to the group are forwarded to each server socket,
+ * and the connection counts are the sums over all server sockets.
+ * <p>
+ * Note that the observer set using {@link #listen(ServerSocketObserver)} is
+ * shared by all server sockets, so it is called from the threads of several services.
+ *
+ * @author Christoffer Lerno
+ */
+public class NIOServerSocketGroup implements NIOServerSocket
+{
+    private final NIOServerSocket[] m_serverSockets;
+    private volatile Object m_tag;
+
+    /**
+     * Creates a group of server sockets.
+     *
+     * @param serverSockets the server sockets of the group, all bound to the same address.
+     */
+    NIOServerSocketGroup(NIOServerSocket[] serverSockets)
+    {
+        m_serverSockets = serverSockets;
+        m_tag = null;
+    }
+
+    /**
+     * Returns the number of server sockets in this group.
+     *
+     * @return the number of server sockets.
+     */
+    public int getServerSocketCount()
+    {
+        return m_serverSockets.length;
+    }
+
+    /**
+     * Returns a server socket in this group.
+     *
+     * @param index the index of the server socket, 0 to getServerSocketCount() - 1.
+     * @return the server socket at the given index, owned by the service with the same index.
+     */
+    public NIOServerSocket getServerSocket(int index)
+    {
+        return m_serverSockets[index];
+    }
+
+    public long getTotalConnections()
+    {
+        long total = 0;
+        for (NIOServerSocket serverSocket : m_serverSockets)
+        {
+            total += serverSocket.getTotalConnections();
+        }
+        return total;
+    }
+
+    public long getTotalRefusedConnections()
+    {
+        long total = 0;
+        for (NIOServerSocket serverSocket : m_serverSockets)
+        {
+            total += serverSocket.getTotalRefusedConnections();
+        }
+        return total;
+    }
+
+    public long getTotalAcceptedConnections()
+    {
+        long total = 0;
+        for (NIOServerSocket serverSocket : m_serverSockets)
+        {
+            total += serverSocket.getTotalAcceptedConnections();
+        }
+        return total;
+    }
+
+    public long getTotalFailedConnections()
+    {
+        long total = 0;
+        for (NIOServerSocket serverSocket : m_serverSockets)
+        {
+            total += serverSocket.getTotalFailedConnections();
+        }
+        return total;
+    }
+
+    public void listen(ServerSocketObserver observer)
+    {
+        for (NIOServerSocket serverSocket : m_serverSockets)
+        {
+            serverSocket.listen(observer);
+        }
+    }
+
+    public void setConnectionAcceptor(ConnectionAcceptor acceptor)
+    {
+        for (NIOServerSocket serverSocket : m_serverSockets)
+        {
+            serverSocket.setConnectionAcceptor(acceptor);
+        }
+    }
+
+    public void setAcceptBatchSize(int maxAccepts)
+    {
+        for (NIOServerSocket serverSocket : m_serverSockets)
+        {
+            serverSocket.setAcceptBatchSize(maxAccepts);
+        }
+    }
+
+    public int getAcceptBatchSize()
+    {
+        return m_serverSockets[0].getAcceptBatchSize();
+    }
+
+    /**
+     * Returns the underlying server socket of the first server socket in the group.
+     *
+     * @return the server socket of the first server socket.
+     */
+    public ServerSocket socket()
+    {
+        return m_serverSockets[0].socket();
+    }
+
+    public void close()
+    {
+        for (NIOServerSocket serverSocket : m_serverSockets)
+        {
+            serverSocket.close();
+        }
+    }
+
+    public InetSocketAddress getAddress()
+    {
+        return m_serverSockets[0].getAddress();
+    }
+
+    /**
+     * Determine if the group is open.
+     *
+     * @return true if all server sockets in the group are open.
+     */
+    public boolean isOpen()
+    {
+        for (NIOServerSocket serverSocket : m_serverSockets)
+        {
+            if (!serverSocket.isOpen()) return false;
+        }
+        return true;
+    }
+
+    public String getIp()
+    {
+        return m_serverSockets[0].getIp();
+    }
+
+    public int getPort()
+    {
+        return m_serverSockets[0].getPort();
+    }
+
+    public Object getTag()
+    {
+        return m_tag;
+    }
+
+    public void setTag(Object tag)
+    {
+        m_tag = tag;
+    }
+}
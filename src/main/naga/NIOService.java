@@ -32,6 +32,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class forms the basis of the NIO handling in Naga.
@@ -73,7 +74,13 @@ public class NIOService
 	/** The selector used by this service */
 	private final Selector m_selector;
 	private final Queue<Runnable> m_internalEventQueue;
+	private final AtomicBoolean m_wakeupPending;
+	private volatile Thread m_serviceThread;
     private ByteBuffer m_sharedBuffer;
+    private SSLTaskExecutor m_sslTaskExecutor;
+    private boolean m_ownsSSLTaskExecutor;
+    private ByteBufferAllocator m_bufferAllocator;
+    private boolean m_socketReadBuffers;
     private ExceptionObserver m_exceptionObserver;
 
 	/**
@@ -99,7 +106,13 @@ public class NIOService
 	{
 		m_selector = Selector.open();
 		m_internalEventQueue = new ConcurrentLinkedQueue<Runnable>();
+		m_wakeupPending = new AtomicBoolean(false);
+		m_serviceThread = null;
         m_exceptionObserver = ExceptionObserver.DEFAULT;
+        m_bufferAllocator = new PooledByteBufferAllocator(false);
+        m_sslTaskExecutor = null;
+        m_ownsSSLTaskExecutor = false;
+        m_socketReadBuffers = false;
         setBufferSize(ioBufferSize);
 	}
 
@@ -113,12 +126,20 @@ public class NIOService
 	 */
 	public synchronized void selectBlocking() throws IOException
 	{
-		executeQueue();
-		if (m_selector.select() > 0)
+		m_serviceThread = Thread.currentThread();
+		try
+		{
+			executeQueue();
+			if (m_selector.select() > 0)
+			{
+				handleSelectedKeys();
+			}
+			executeQueue();
+		}
+		finally
 		{
-			handleSelectedKeys();
+			m_serviceThread = null;
 		}
-		executeQueue();
 	}
 
 	/**
@@ -131,12 +152,20 @@ public class NIOService
 	 */
 	public synchronized void selectNonBlocking() throws IOException
 	{
-		executeQueue();
-		if (m_selector.selectNow() > 0)
+		m_serviceThread = Thread.currentThread();
+		try
 		{
-			handleSelectedKeys();
+			executeQueue();
+			if (m_selector.selectNow() > 0)
+			{
+				handleSelectedKeys();
+			}
+			executeQueue();
+		}
+		finally
+		{
+			m_serviceThread = null;
 		}
-		executeQueue();
 	}
 
 	/**
@@ -152,12 +181,20 @@ public class NIOService
 	 */
 	public synchronized void selectBlocking(long timeout) throws IOException
 	{
-		executeQueue();
-		if (m_selector.select(timeout) > 0)
+		m_serviceThread = Thread.currentThread();
+		try
 		{
-			handleSelectedKeys();
+			executeQueue();
+			if (m_selector.select(timeout) > 0)
+			{
+				handleSelectedKeys();
+			}
+			executeQueue();
+		}
+		finally
+		{
+			m_serviceThread = null;
 		}
-		executeQueue();
 	}
 
 	/**
@@ -242,7 +279,44 @@ public class NIOService
         return new SSLSocketChannelResponder(this, registerSocketChannel(channel, address), sslEngine, true);
     }
 
-
+    /**
+     * Open an SSL socket to the host on the given port, using an engine from the factory.
+     * <p>
+     * The engine is created with the host and port as hints, which lets the factory's SSLContext
+     * resume an earlier session with the same peer.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param engineFactory the factory creating the SSL engine.
+     * @param host the host we want to connect to.
+     * @param port the port to use for the connection.
+     * @return a NIOSocketSSL object for asynchronous communication.
+     * @throws IOException if registering the new socket failed.
+     */
+    public NIOSocketSSL openSSLSocket(SSLEngineFactory engineFactory, String host, int port) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+        InetSocketAddress address;
+        SSLEngine engine;
+        try
+        {
+            channel.configureBlocking(false);
+            address = new InetSocketAddress(InetAddress.getByName(host), port);
+            channel.connect(address);
+            engine = engineFactory.createClientEngine(host, port);
+        }
+        catch (IOException e)
+        {
+            NIOUtils.closeChannelSilently(channel);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            NIOUtils.closeChannelSilently(channel);
+            throw e;
+        }
+        return new SSLSocketChannelResponder(this, registerSocketChannel(channel, address), engine, true, engineFactory);
+    }
 
     /**
      * Open a server socket on the given port.
@@ -334,6 +408,27 @@ public class NIOService
 		return channelResponder;
 	}
 
+    /**
+     * Open an SSL server socket on the address, creating the engines of accepted sockets using the factory.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param engineFactory the factory creating the SSL engines.
+     * @param address the address to open.
+     * @param backlog the maximum connection backlog (i.e. connections pending accept)
+     * @return a NIOServerSocketSSL for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocketSSL openSSLServerSocket(SSLEngineFactory engineFactory, InetSocketAddress address, int backlog) throws IOException
+    {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(address, backlog);
+        channel.configureBlocking(false);
+        SSLServerSocketChannelResponder channelResponder = new SSLServerSocketChannelResponder(engineFactory, this, channel, address);
+        queue(new RegisterChannelEvent(channelResponder));
+        return channelResponder;
+    }
 
     /**
      * Open a server socket on the address.
@@ -346,11 +441,47 @@ public class NIOService
      * @throws IOException if registering the socket fails.
      */
     public NIOServerSocket openServerSocket(InetSocketAddress address, int backlog) throws IOException
+    {
+        return openServerSocket(address, backlog, false);
+    }
+
+    /**
+     * Open a server socket on the address, optionally bound with SO_REUSEPORT.
+     * <p>
+     * With SO_REUSEPORT, several server sockets - typically one per service in
+     * a {@link NIOServiceGroup} - may bind to the same address, and the operating system
+     * balances incoming connections between them.
+     * See {@link NIOServiceGroup#openReusePortServerSocket(java.net.InetSocketAddress, int)}.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param address the address to open.
+     * @param backlog the maximum connection backlog (i.e. connections pending accept)
+     * @param reusePort true to bind the socket with SO_REUSEPORT.
+     * @return a NIOServerSocket for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     * @throws UnsupportedOperationException if SO_REUSEPORT is requested but not supported.
+     */
+    public NIOServerSocket openServerSocket(InetSocketAddress address, int backlog, boolean reusePort) throws IOException
     {
         ServerSocketChannel channel = ServerSocketChannel.open();
-        channel.socket().setReuseAddress(true);
-        channel.socket().bind(address, backlog);
-        channel.configureBlocking(false);
+        try
+        {
+            channel.socket().setReuseAddress(true);
+            if (reusePort) NIOUtils.setReusePort(channel);
+            channel.socket().bind(address, backlog);
+            channel.configureBlocking(false);
+        }
+        catch (IOException e)
+        {
+            NIOUtils.closeChannelSilently(channel);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            NIOUtils.closeChannelSilently(channel);
+            throw e;
+        }
         ServerSocketChannelResponder channelResponder = new ServerSocketChannelResponder(this, channel, address);
         queue(new RegisterChannelEvent(channelResponder));
         return channelResponder;
@@ -368,9 +499,27 @@ public class NIOService
 	 * @throws IOException if configuring the channel fails, or the underlying selector is closed.
 	 */
 	NIOSocket registerSocketChannel(SocketChannel socketChannel, InetSocketAddress address) throws IOException
+	{
+		return registerSocketChannel(socketChannel, address, null);
+	}
+
+	/**
+	 * Internal method to mark a socket channel for pending registration
+	 * and create a NIOSocket wrapper around it, running a hook when the socket closes.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param socketChannel the socket channel to wrap.
+	 * @param address the address for this socket.
+	 * @param closeHook the hook to run on the NIOService thread when the socket closes, or null for none.
+	 * @return the NIOSocket wrapper.
+	 * @throws IOException if configuring the channel fails, or the underlying selector is closed.
+	 */
+	NIOSocket registerSocketChannel(SocketChannel socketChannel, InetSocketAddress address, Runnable closeHook) throws IOException
 	{
 		socketChannel.configureBlocking(false);
 		SocketChannelResponder channelResponder = new SocketChannelResponder(this, socketChannel, address);
+		channelResponder.setCloseHook(closeHook);
 		queue(new RegisterChannelEvent(channelResponder));
 		return channelResponder;
 	}
@@ -382,6 +531,8 @@ public class NIOService
 	 */
 	private void executeQueue()
 	{
+		// Any event queued after this point needs a new wakeup to be noticed.
+		m_wakeupPending.set(false);
 		Runnable event;
 		while ((event = m_internalEventQueue.poll()) != null)
 		{
@@ -436,7 +587,44 @@ public class NIOService
     public void setBufferSize(int newBufferSize)
     {
         if (newBufferSize < 256) throw new IllegalArgumentException("The buffer must at least hold 256 bytes");
-        m_sharedBuffer = ByteBuffer.allocate(newBufferSize);
+        m_bufferAllocator.release(m_sharedBuffer);
+        m_sharedBuffer = m_bufferAllocator.allocate(newBufferSize);
+    }
+
+    /**
+     * Sets the allocator used for the I/O buffers of this service.
+     * <p>
+     * The allocator provides the shared buffer, the read buffers of sockets holding
+     * partial packets and the buffers SSL sockets encrypt and decrypt into. The default allocator pools heap buffers.
+     * Use a direct allocator, such as <code>new PooledByteBufferAllocator(true)</code>, to let
+     * the channels read directly into the buffers without going through a temporary direct buffer.
+     * <p>
+     * The allocator should be set before any sockets are opened on the service.
+     * <p>
+     * <em>This method is *not* thread-safe.</em>
+     *
+     * @param bufferAllocator the new allocator.
+     * @throws NullPointerException if the allocator is null.
+     */
+    public void setBufferAllocator(ByteBufferAllocator bufferAllocator)
+    {
+        if (bufferAllocator == null) throw new NullPointerException();
+        int bufferSize = getBufferSize();
+        m_bufferAllocator.release(m_sharedBuffer);
+        m_bufferAllocator = bufferAllocator;
+        m_sharedBuffer = m_bufferAllocator.allocate(bufferSize);
+    }
+
+    /**
+     * Returns the allocator used for the I/O buffers of this service.
+     * <p>
+     * <em>This method is *not* thread-safe.</em>
+     *
+     * @return the current buffer allocator.
+     */
+    public ByteBufferAllocator getBufferAllocator()
+    {
+        return m_bufferAllocator;
     }
 
     /**
@@ -444,7 +632,9 @@ public class NIOService
      * <p/>
      * <em>This method is *not* thread-safe.</em>
      *
-     * @return the current buffer size, which is the largest packet that can be read.
+     * @return the current buffer size, which is the largest packet that can be read unless
+     * the socket allows a larger read buffer.
+     * @see NIOSocket#setMaxReadBufferSize(int)
      */
     public int getBufferSize()
     {
@@ -463,6 +653,87 @@ public class NIOService
         return m_sharedBuffer;
     }
 
+    /**
+     * Enables or disables per-socket read buffers.
+     * <p>
+     * By default, bytes that remain unconsumed after a read (i.e. a partially received packet)
+     * are copied out of the shared buffer and copied back in on the next read.
+     * <p>
+     * With per-socket read buffers enabled, a socket holding a partial packet instead
+     * moves those bytes to a buffer taken from the service's buffer allocator, and reads directly into
+     * that buffer until it has been fully consumed, at which point the buffer is released.
+     * This avoids repeated copies and allocations for sockets receiving large packets,
+     * while only sockets with partial data hold a buffer.
+     * <p>
+     * <em>This method is *not* thread-safe.</em>
+     *
+     * @param socketReadBuffers true to use per-socket read buffers, false to copy partial data
+     * through the shared buffer.
+     */
+    public void setSocketReadBuffers(boolean socketReadBuffers)
+    {
+        m_socketReadBuffers = socketReadBuffers;
+    }
+
+    /**
+     * Returns true if sockets holding partial data use their own pooled read buffer.
+     * <p>
+     * <em>This method is *not* thread-safe.</em>
+     *
+     * @return true if per-socket read buffers are enabled.
+     * @see #setSocketReadBuffers(boolean)
+     */
+    public boolean isSocketReadBuffers()
+    {
+        return m_socketReadBuffers;
+    }
+
+    /**
+     * Returns the executor running the delegated tasks of SSL handshakes on sockets of this service.
+     * <p>
+     * Unless set using {@link #setSSLTaskExecutor(SSLTaskExecutor)}, a pool with one daemon
+     * thread per available processor is created the first time it is needed.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @return the SSL task executor of this service.
+     */
+    public synchronized SSLTaskExecutor getSSLTaskExecutor()
+    {
+        if (m_sslTaskExecutor == null)
+        {
+            m_sslTaskExecutor = new SSLTaskExecutor();
+            m_ownsSSLTaskExecutor = true;
+        }
+        return m_sslTaskExecutor;
+    }
+
+    /**
+     * Sets the executor running the delegated tasks of SSL handshakes on sockets of this service.
+     * <p>
+     * The same executor may be shared by several services, it is not shut down when the
+     * service is closed. Tasks already submitted to the previous executor will still run there.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param sslTaskExecutor the new SSL task executor.
+     */
+    public synchronized void setSSLTaskExecutor(SSLTaskExecutor sslTaskExecutor)
+    {
+        if (sslTaskExecutor == null) throw new NullPointerException("SSL task executor was null");
+        shutdownSSLTaskExecutor();
+        m_sslTaskExecutor = sslTaskExecutor;
+        m_ownsSSLTaskExecutor = false;
+    }
+
+    /**
+     * Shuts down the SSL task executor if it was created by this service.
+     */
+    private synchronized void shutdownSSLTaskExecutor()
+    {
+        if (m_ownsSSLTaskExecutor) m_sslTaskExecutor.shutdown();
+    }
+
     /**
 	 * Internal method to handle a SelectionKey that has changed.
 	 * <p>
@@ -542,6 +813,37 @@ public class NIOService
 		wakeup();
 	}
 
+	/**
+	 * Determine if a socket is owned by this service, i.e. if its callbacks
+	 * are delivered on the thread of this service.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param socket the socket to check.
+	 * @return true if the socket was opened or accepted by this service, false otherwise.
+	 */
+	public boolean isOwnerOf(NIOAbstractSocket socket)
+	{
+		if (socket instanceof SSLSocketChannelResponder)
+		{
+			return ((SSLSocketChannelResponder) socket).getNIOService() == this;
+		}
+		return socket instanceof ChannelResponder && ((ChannelResponder) socket).getNIOService() == this;
+	}
+
+	/**
+	 * Returns true if the calling thread is currently running one of the select methods
+	 * of this service, i.e. if it is the NIOService thread.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return true if called on the NIOService thread.
+	 */
+	public final boolean isServiceThread()
+	{
+		return m_serviceThread == Thread.currentThread();
+	}
+
 	/**
 	 * Returns a copy of the internal event queue.
 	 *
@@ -554,10 +856,16 @@ public class NIOService
 
 	/**
 	 * Runs wakeup on the selector, causing any blocking select to be released.
+	 * <p>
+	 * Wakeups are coalesced, only the first call after the service last ran its
+	 * event queue actually wakes up the selector.
 	 */
 	public void wakeup()
 	{
-		m_selector.wakeup();
+		if (m_wakeupPending.compareAndSet(false, true))
+		{
+			m_selector.wakeup();
+		}
 	}
 
     /**
@@ -658,6 +966,7 @@ public class NIOService
 			{
 				// Swallow exceptions.
 			}
+			shutdownSSLTaskExecutor();
 		}
 	}
 }
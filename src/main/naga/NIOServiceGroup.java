@@ -0,0 +1,476 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of NIOServices, each driven by its own thread.
+ * <p>
+ * A single NIOService handles all of its sockets on one thread, which means a busy server
+ * is limited to a single core. The service group spreads the load by distributing sockets
+ * round-robin over several services.
+ * <p>
+ * Server sockets opened through the group will hand each accepted connection
+ * to the next service in the group. Callbacks for a socket are always delivered on the
+ * thread of the service owning that socket, so the usual single-thread
+ * guarantees of the NIOSocket and SocketObserver still hold per socket. Note however that
+ * different sockets may now be called from different threads.
+ * <p>
+ * Example use:
+ * <code><pre>
+ * NIOServiceGroup group = new NIOServiceGroup(4);
+ * NIOServerSocket serverSocket = group.openServerSocket(1234);
+ * serverSocket.listen(myObserver);
+ * serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+ * group.start();
+ * </pre></code>
+ *
+ * @author Christoffer Lerno
+ */
+public class NIOServiceGroup
+{
+    private final NIOService[] m_services;
+    private final ServiceThread[] m_threads;
+    private final AtomicInteger m_nextService;
+    private final boolean m_externallyDriven;
+
+    /**
+     * Creates a new group of services, one per available processor, using the default buffer size.
+     *
+     * @throws IOException if we failed to open the underlying selectors.
+     */
+    public NIOServiceGroup() throws IOException
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new group of services using the default buffer size.
+     *
+     * @param services the number of services (and threads) to use.
+     * @throws IOException if we failed to open the underlying selectors.
+     * @throws IllegalArgumentException if the number of services is less than 1.
+     */
+    public NIOServiceGroup(int services) throws IOException
+    {
+        this(services, NIOService.DEFAULT_IO_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new group of services.
+     *
+     * @param services the number of services (and threads) to use.
+     * @param ioBufferSize the buffer size of each service.
+     * @throws IOException if we failed to open the underlying selectors.
+     * @throws IllegalArgumentException if the number of services is less than 1,
+     * or if the buffer size is less than 256 bytes.
+     */
+    public NIOServiceGroup(int services, int ioBufferSize) throws IOException
+    {
+        if (services < 1) throw new IllegalArgumentException("The group must contain at least one service.");
+        m_services = new NIOService[services];
+        m_threads = new ServiceThread[services];
+        m_nextService = new AtomicInteger(0);
+        m_externallyDriven = false;
+        try
+        {
+            for (int i = 0; i < services; i++)
+            {
+                m_services[i] = new NIOService(ioBufferSize);
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a group from existing services that are driven by other threads,
+     * for instance by the threads of an {@link naga.eventmachine.EventMachineGroup}.
+     * <p>
+     * Such a group distributes sockets over the services like any other group,
+     * but it can not be started or stopped.
+     *
+     * @param services the services of the group.
+     * @throws IllegalArgumentException if there are no services.
+     */
+    public NIOServiceGroup(NIOService[] services)
+    {
+        if (services.length < 1) throw new IllegalArgumentException("The group must contain at least one service.");
+        m_services = services.clone();
+        m_threads = new ServiceThread[services.length];
+        m_nextService = new AtomicInteger(0);
+        m_externallyDriven = true;
+    }
+
+    /**
+     * Starts one thread per service in the group.
+     *
+     * @throws IllegalStateException if the group already is running, has been closed
+     * or is driven by other threads.
+     */
+    public synchronized void start()
+    {
+        if (m_externallyDriven) throw new IllegalStateException("Group is driven by other threads.");
+        if (m_threads[0] != null) throw new IllegalStateException("Group already running.");
+        if (!isOpen()) throw new IllegalStateException("Group has been shut down.");
+        for (int i = 0; i < m_services.length; i++)
+        {
+            m_threads[i] = new ServiceThread(m_services[i], i);
+            m_threads[i].start();
+        }
+    }
+
+    /**
+     * Stops the threads of the group, it may be restarted using start().
+     *
+     * @throws IllegalStateException if the group is not running.
+     */
+    public synchronized void stop()
+    {
+        if (m_threads[0] == null) throw new IllegalStateException("Group is not running.");
+        for (int i = 0; i < m_services.length; i++)
+        {
+            m_threads[i].m_running = false;
+            m_threads[i] = null;
+            m_services[i].wakeup();
+        }
+    }
+
+    /**
+     * Closes all services in the group, disconnecting all their sockets.
+     * <p>
+     * It is not possible to restart the group once closed.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     */
+    public void close()
+    {
+        for (NIOService service : m_services)
+        {
+            if (service != null) service.close();
+        }
+    }
+
+    /**
+     * Determine if this group is open.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @return true if all services in the group are open, false otherwise.
+     */
+    public boolean isOpen()
+    {
+        for (NIOService service : m_services)
+        {
+            if (service == null || !service.isOpen()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of services in this group.
+     *
+     * @return the number of services.
+     */
+    public int getServiceCount()
+    {
+        return m_services.length;
+    }
+
+    /**
+     * Returns a service in this group.
+     *
+     * @param index the index of the service, 0 to getServiceCount() - 1.
+     * @return the service at the given index.
+     */
+    public NIOService getService(int index)
+    {
+        return m_services[index];
+    }
+
+    /**
+     * Returns the service that should own the next socket.
+     * <p>
+     * Services are handed out round-robin.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @return the next service to use.
+     */
+    public NIOService nextService()
+    {
+        int index = m_nextService.getAndIncrement() % m_services.length;
+        return m_services[index < 0 ? index + m_services.length : index];
+    }
+
+    /**
+     * Updates the exception observer for all services in the group.
+     *
+     * @param exceptionObserver the new exception observer, if this is null, logging will be directed to stderr.
+     */
+    public void setExceptionObserver(ExceptionObserver exceptionObserver)
+    {
+        for (NIOService service : m_services)
+        {
+            service.setExceptionObserver(exceptionObserver);
+        }
+    }
+
+    /**
+     * Open a normal socket to the host on the given port, owned by the next service in the group.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param host the host we want to connect to.
+     * @param port the port to use for the connection.
+     * @return a NIOSocket object for asynchronous communication.
+     * @throws IOException if registering the new socket failed.
+     */
+    public NIOSocket openSocket(String host, int port) throws IOException
+    {
+        return nextService().openSocket(host, port);
+    }
+
+    /**
+     * Open a normal socket to the host on the given port, owned by the next service in the group.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param inetAddress the address we want to connect to.
+     * @param port the port to use for the connection.
+     * @return a NIOSocket object for asynchronous communication.
+     * @throws IOException if registering the new socket failed.
+     */
+    public NIOSocket openSocket(InetAddress inetAddress, int port) throws IOException
+    {
+        return nextService().openSocket(inetAddress, port);
+    }
+
+    /**
+     * Open an SSL socket to the host on the given port, owned by the next service in the group.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param sslEngine the SSL engine to use for SSL-negotiation.
+     * @param inetAddress the address we want to connect to.
+     * @param port the port to use for the connection.
+     * @return a NIOSocketSSL object for asynchronous communication.
+     * @throws IOException if registering the new socket failed.
+     */
+    public NIOSocketSSL openSSLSocket(SSLEngine sslEngine, InetAddress inetAddress, int port) throws IOException
+    {
+        return nextService().openSSLSocket(sslEngine, inetAddress, port);
+    }
+
+    /**
+     * Open an SSL socket to the host on the given port, owned by the next service in the group.
+     * <p>
+     * See {@link NIOService#openSSLSocket(SSLEngineFactory, String, int)}.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param engineFactory the factory creating the SSL engine.
+     * @param host the host we want to connect to.
+     * @param port the port to use for the connection.
+     * @return a NIOSocketSSL object for asynchronous communication.
+     * @throws IOException if registering the new socket failed.
+     */
+    public NIOSocketSSL openSSLSocket(SSLEngineFactory engineFactory, String host, int port) throws IOException
+    {
+        return nextService().openSSLSocket(engineFactory, host, port);
+    }
+
+    /**
+     * Open a server socket on the given port with the default connection backlog.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param port the port to open.
+     * @return a NIOServerSocket for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocket openServerSocket(int port) throws IOException
+    {
+        return openServerSocket(new InetSocketAddress(port), -1);
+    }
+
+    /**
+     * Open a server socket on the address.
+     * <p>
+     * Accepts are handled by one service in the group, while the accepted
+     * sockets are distributed over all services in the group.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param address the address to open.
+     * @param backlog the maximum connection backlog (i.e. connections pending accept)
+     * @return a NIOServerSocket for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocket openServerSocket(InetSocketAddress address, int backlog) throws IOException
+    {
+        ServerSocketChannelResponder responder = (ServerSocketChannelResponder) nextService().openServerSocket(address, backlog);
+        responder.setServiceGroup(this);
+        return responder;
+    }
+
+    /**
+     * Open one server socket per service on the address, all bound with SO_REUSEPORT.
+     * <p>
+     * The operating system balances incoming connections between the server sockets,
+     * so every service accepts its own connections and no single thread handles all accepts.
+     * Accepted sockets stay with the service that accepted them.
+     * <p>
+     * If the port is 0, all server sockets bind to the port chosen for the first one.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param address the address to open.
+     * @param backlog the maximum connection backlog of each server socket.
+     * @return a NIOServerSocketGroup for asynchronous connection to the server sockets.
+     * @throws IOException if registering a socket fails.
+     * @throws UnsupportedOperationException if SO_REUSEPORT is not supported, see {@link NIOUtils#isReusePortSupported()}.
+     */
+    public NIOServerSocketGroup openReusePortServerSocket(InetSocketAddress address, int backlog) throws IOException
+    {
+        NIOServerSocket[] serverSockets = new NIOServerSocket[m_services.length];
+        try
+        {
+            for (int i = 0; i < m_services.length; i++)
+            {
+                serverSockets[i] = m_services[i].openServerSocket(address, backlog, true);
+                if (address.getPort() == 0)
+                {
+                    address = new InetSocketAddress(address.getAddress(), serverSockets[i].socket().getLocalPort());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            closeAll(serverSockets);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            closeAll(serverSockets);
+            throw e;
+        }
+        return new NIOServerSocketGroup(serverSockets);
+    }
+
+    private static void closeAll(NIOServerSocket[] serverSockets)
+    {
+        for (NIOServerSocket serverSocket : serverSockets)
+        {
+            if (serverSocket != null) serverSocket.close();
+        }
+    }
+
+    /**
+     * Open an SSL server socket on the address.
+     * <p>
+     * Accepts are handled by one service in the group, while the accepted
+     * sockets are distributed over all services in the group.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param sslContext the SSLContext to use for SSL-negotiation.
+     * @param address the address to open.
+     * @param backlog the maximum connection backlog (i.e. connections pending accept)
+     * @return a NIOServerSocketSSL for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocketSSL openSSLServerSocket(SSLContext sslContext, InetSocketAddress address, int backlog) throws IOException
+    {
+        SSLServerSocketChannelResponder responder = (SSLServerSocketChannelResponder) nextService().openSSLServerSocket(sslContext, address, backlog);
+        responder.setServiceGroup(this);
+        return responder;
+    }
+
+    /**
+     * Open an SSL server socket on the address, creating the engines of accepted sockets using the factory.
+     * <p>
+     * Accepts are handled by one service in the group, while the accepted
+     * sockets are distributed over all services in the group.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param engineFactory the factory creating the SSL engines.
+     * @param address the address to open.
+     * @param backlog the maximum connection backlog (i.e. connections pending accept)
+     * @return a NIOServerSocketSSL for asynchronous connection to the server socket.
+     * @throws IOException if registering the socket fails.
+     */
+    public NIOServerSocketSSL openSSLServerSocket(SSLEngineFactory engineFactory, InetSocketAddress address, int backlog) throws IOException
+    {
+        SSLServerSocketChannelResponder responder = (SSLServerSocketChannelResponder) nextService().openSSLServerSocket(engineFactory, address, backlog);
+        responder.setServiceGroup(this);
+        return responder;
+    }
+
+    /**
+     * The thread driving a single service of the group.
+     */
+    private class ServiceThread extends Thread
+    {
+        private final NIOService m_service;
+        private volatile boolean m_running;
+
+        private ServiceThread(NIOService service, int index)
+        {
+            super("NIOServiceGroup-" + index);
+            m_service = service;
+            m_running = true;
+        }
+
+        @Override
+        public void run()
+        {
+            while (m_running)
+            {
+                try
+                {
+                    m_service.selectBlocking();
+                }
+                catch (ClosedSelectorException e)
+                {
+                    // The service was closed, so there is nothing left to drive.
+                    return;
+                }
+                catch (Throwable e)
+                {
+                    if (m_running) m_service.notifyException(e);
+                }
+            }
+        }
+    }
+}
@@ -22,6 +22,8 @@ SOFTWARE.
 package naga;
 
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Interface for the NIOSocket, which is
@@ -34,6 +36,37 @@ import java.net.Socket;
  */
 public interface NIOSocket extends NIOAbstractSocket
 {
+	/**
+	 * The default maximum number of packets written with a single gathering write,
+	 * which writes each packet separately.
+	 */
+	int DEFAULT_WRITE_BATCH_PACKETS = 1;
+
+	/**
+	 * The default number of bytes after which no more packets are added to a gathering write.
+	 */
+	int DEFAULT_WRITE_BATCH_BYTES = 64 * 1024;
+
+	/**
+	 * The default write queue size above which a socket becomes unwritable.
+	 */
+	int DEFAULT_HIGH_WRITE_WATERMARK = 64 * 1024;
+
+	/**
+	 * The default write queue size at which an unwritable socket becomes writable again.
+	 */
+	int DEFAULT_LOW_WRITE_WATERMARK = 32 * 1024;
+
+	/**
+	 * The write priority of packets written without a priority.
+	 */
+	int PRIORITY_NORMAL = 0;
+
+	/**
+	 * The write priority of packets that should overtake packets of normal priority,
+	 * such as heartbeats and control messages.
+	 */
+	int PRIORITY_HIGH = 1;
 
 	/**
 	 * Write a packet of bytes asynchronously on this socket.
@@ -68,6 +101,189 @@ public interface NIOSocket extends NIOAbstractSocket
      */
     boolean write(byte[] packet, Object tag);
 
+    /**
+     * Write a packet of bytes asynchronously on this socket with a given priority.
+     * <p>
+     * Packets are queued in one lane per priority. Whenever the socket takes packets
+     * from its queue, it empties the high priority lane before taking any packets of normal
+     * priority, so a high priority packet only waits for the packets already being written,
+     * and never for the rest of the queue. Packets are never split, so a high priority
+     * packet is never written in the middle of another packet.
+     * <p>
+     * Within a lane, packets are written in the order they were queued. Runnables queued using
+     * {@link #queue(Runnable)} apply to both lanes: a runnable runs once the packets of either
+     * priority queued before it are written, and packets queued after it wait for it to run.
+     * <p>
+     * If the queue is full (i.e. the new queue size would exceed <code>getMaxQueueSize()</code>),
+     * the packet is discarded and the method returns false. The limit applies to
+     * all lanes together.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param packet the packet to send.
+     * @param tag an optional tag to tag the packet (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+     * @param priority the priority of the packet, either {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+     * @return true if the packet was queued, false if the queue limit
+     * was reached and the packet was thrown away.
+     * @throws IllegalArgumentException if the priority is not valid.
+     */
+    boolean write(byte[] packet, Object tag, int priority);
+
+	/**
+	 * Write a packet of bytes asynchronously on this socket, without copying the bytes.
+	 * <p>
+	 * The packet consists of the bytes between the position and limit of the buffer.
+	 * The buffer's position is not changed, but its content is read when the packet
+	 * is written, so it must not be modified until the packet has been sent.
+	 * <p>
+	 * If the queue is full (i.e. the new queue size would exceed <code>getMaxQueueSize()</code>),
+	 * the packet is discarded and the method returns false.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param packet the packet to send.
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was thrown away.
+	 */
+	boolean write(ByteBuffer packet);
+
+	/**
+	 * Write a packet of bytes asynchronously on this socket, without copying the bytes.
+	 * <p>
+	 * See {@link #write(java.nio.ByteBuffer)}.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param packet the packet to send.
+	 * @param tag an optional tag to tag the packet (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was thrown away.
+	 */
+	boolean write(ByteBuffer packet, Object tag);
+
+	/**
+	 * Write a packet of bytes asynchronously on this socket with a given priority, without copying the bytes.
+	 * <p>
+	 * See {@link #write(java.nio.ByteBuffer)} and {@link #write(byte[], Object, int)}.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param packet the packet to send.
+	 * @param tag an optional tag to tag the packet (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+	 * @param priority the priority of the packet, either {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was thrown away.
+	 * @throws IllegalArgumentException if the priority is not valid.
+	 */
+	boolean write(ByteBuffer packet, Object tag, int priority);
+
+	/**
+	 * Write a packet made up of several buffers asynchronously on this socket, without copying the bytes.
+	 * <p>
+	 * The packet consists of the remaining bytes of all buffers, in order.
+	 * See {@link #write(java.nio.ByteBuffer)}.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param packet the buffers of the packet to send.
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was thrown away.
+	 */
+	boolean write(ByteBuffer[] packet);
+
+	/**
+	 * Write a packet made up of several buffers asynchronously on this socket, without copying the bytes.
+	 * <p>
+	 * See {@link #write(java.nio.ByteBuffer[])}.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param packet the buffers of the packet to send.
+	 * @param tag an optional tag to tag the packet (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was thrown away.
+	 */
+	boolean write(ByteBuffer[] packet, Object tag);
+
+	/**
+	 * Write a packet made up of several buffers asynchronously on this socket with a given priority,
+	 * without copying the bytes.
+	 * <p>
+	 * See {@link #write(java.nio.ByteBuffer[])} and {@link #write(byte[], Object, int)}.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param packet the buffers of the packet to send.
+	 * @param tag an optional tag to tag the packet (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+	 * @param priority the priority of the packet, either {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+	 * @return true if the packet was queued, false if the queue limit
+	 * was reached and the packet was thrown away.
+	 * @throws IllegalArgumentException if the priority is not valid.
+	 */
+	boolean write(ByteBuffer[] packet, Object tag, int priority);
+
+	/**
+	 * Write a region of a file asynchronously on this socket.
+	 * <p>
+	 * If the socket uses the default (raw) PacketWriter, the region is sent
+	 * using <code>FileChannel.transferTo</code> without being read into memory. Otherwise
+	 * the region is read into memory in chunks of at most 64 KB once it reaches the head of the queue,
+	 * and each chunk is passed to the PacketWriter as a packet of its own. This suits writers
+	 * that transform a stream, such as SSL, but a writer adding a header to each packet
+	 * adds one to each chunk. The tag is only reported as sent after the last chunk.
+	 * <p>
+	 * The whole region counts towards the queue size. If the queue is full
+	 * (i.e. the new queue size would exceed <code>getMaxQueueSize()</code>),
+	 * the region is discarded and the method returns false.
+	 * <p>
+	 * The file channel is not closed by the socket.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param file the file to send from.
+	 * @param position the position in the file of the first byte to send.
+	 * @param count the number of bytes to send.
+	 * @return true if the region was queued, false if the queue limit
+	 * was reached and the region was thrown away.
+	 * @throws IllegalArgumentException if position or count is negative.
+	 */
+	boolean writeFile(FileChannel file, long position, long count);
+
+	/**
+	 * Write a region of a file asynchronously on this socket.
+	 * <p>
+	 * See {@link #writeFile(java.nio.channels.FileChannel, long, long)}.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param file the file to send from.
+	 * @param position the position in the file of the first byte to send.
+	 * @param count the number of bytes to send.
+	 * @param tag an optional tag to tag the region (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+	 * @return true if the region was queued, false if the queue limit
+	 * was reached and the region was thrown away.
+	 * @throws IllegalArgumentException if position or count is negative.
+	 */
+	boolean writeFile(FileChannel file, long position, long count, Object tag);
+
+	/**
+	 * Write a region of a file asynchronously on this socket with a given priority.
+	 * <p>
+	 * See {@link #writeFile(java.nio.channels.FileChannel, long, long)} and {@link #write(byte[], Object, int)}.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param file the file to send from.
+	 * @param position the position in the file of the first byte to send.
+	 * @param count the number of bytes to send.
+	 * @param tag an optional tag to tag the region (used in {@link naga.SocketObserver#packetSent(NIOSocket, Object)}).
+	 * @param priority the priority of the region, either {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+	 * @return true if the region was queued, false if the queue limit
+	 * was reached and the region was thrown away.
+	 * @throws IllegalArgumentException if position or count is negative, or the priority is not valid.
+	 */
+	boolean writeFile(FileChannel file, long position, long count, Object tag, int priority);
+
     /**
      * Queue a runnable in the packet queue. This runnable will execute
      * after the latest packet in the queue is sent.
@@ -121,6 +337,17 @@ public interface NIOSocket extends NIOAbstractSocket
 	 */
 	long getWriteQueueSize();
 
+	/**
+	 * Return the total number of bytes waiting to be dispatched in the lane of a priority.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param priority the priority of the lane, either {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+	 * @return the total size of the packets of this priority waiting to be dispatched.
+	 * @throws IllegalArgumentException if the priority is not valid.
+	 */
+	long getWriteQueueSize(int priority);
+
 	/**
 	 * The current maximum queue size in bytes.
 	 * <p>
@@ -140,6 +367,189 @@ public interface NIOSocket extends NIOAbstractSocket
 	 */
 	void setMaxQueueSize(int maxQueueSize);
 
+	/**
+	 * The largest read buffer this socket may use.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the current maximum read buffer size, which is never less than the
+	 * buffer size of the NIOService.
+	 */
+	int getMaxReadBufferSize();
+
+	/**
+	 * Sets the largest read buffer this socket may use, which limits the size of the
+	 * largest unconsumed packet the socket can hold.
+	 * <p>
+	 * Sockets normally read into the buffer shared by all sockets of the NIOService.
+	 * If the unconsumed bytes of a packet fill that buffer, the socket moves them to a
+	 * larger buffer from the service's buffer allocator, doubling its size as needed up to this limit.
+	 * Once the packet has been consumed, the buffer is released and the socket
+	 * resumes reading into the shared buffer. A packet exceeding the limit closes the socket
+	 * with a BufferOverflowException.
+	 * <p>
+	 * Note that the default allocator pools buffers in power-of-two sizes, so the limit is
+	 * effectively rounded up to the nearest power of two.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param maxReadBufferSize the new maximum read buffer size. A value less than 1
+	 * limits the socket to the buffer size of the NIOService.
+	 */
+	void setMaxReadBufferSize(int maxReadBufferSize);
+
+	/**
+	 * Sets how many queued packets may be combined into a single gathering write.
+	 * <p>
+	 * When the socket is ready for writing, queued packets are taken from the
+	 * write queue until either limit is reached, then written to the channel with
+	 * a single call. The byte limit is checked before each packet is added, so a batch always
+	 * holds at least one packet, however large. Packets are still reported
+	 * to the observer with packetSent one by one, in the order they were queued.
+	 * <p>
+	 * The defaults are {@link #DEFAULT_WRITE_BATCH_PACKETS} packets and {@link #DEFAULT_WRITE_BATCH_BYTES} bytes,
+	 * so batching is off unless the packet limit is raised.
+	 * <p>
+	 * <em>A batch holds the buffers returned by the packet writer until they are written, so before
+	 * raising the packet limit, make sure that the packet writer returns new buffers for every packet,
+	 * see {@link PacketWriter}.</em>
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param maxPackets the maximum number of packets per write, at least 1.
+	 * @param maxBytes the number of bytes after which no more packets are added to a write, at least 1.
+	 * @throws IllegalArgumentException if any limit is less than 1.
+	 */
+	void setWriteBatchSize(int maxPackets, int maxBytes);
+
+	/**
+	 * The maximum number of packets written with a single gathering write.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the current packet limit per write.
+	 */
+	int getWriteBatchPackets();
+
+	/**
+	 * The number of bytes after which no more packets are added to a gathering write.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the current byte limit per write.
+	 */
+	int getWriteBatchBytes();
+
+	/**
+	 * Sets the write queue sizes at which this socket changes writability.
+	 * <p>
+	 * Both watermarks are compared with the unsent bytes: the write queue, as reported by
+	 * {@link #getWriteQueueSize()}, together with the bytes of the packets currently being written.
+	 * The socket becomes unwritable when the unsent bytes grow above the high watermark, and writable
+	 * again once they have drained to the low watermark. Observers implementing
+	 * {@link WritabilitySocketObserver} are told each time the writability changes.
+	 * <p>
+	 * Unlike the max queue size, the watermarks never cause writes to fail.
+	 * <p>
+	 * The defaults are {@link #DEFAULT_LOW_WRITE_WATERMARK} and {@link #DEFAULT_HIGH_WRITE_WATERMARK} bytes.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param low the queue size at which the socket becomes writable, at least 0.
+	 * @param high the queue size above which the socket becomes unwritable, at least low.
+	 * @throws IllegalArgumentException if low is negative or high is less than low.
+	 */
+	void setWriteWatermarks(int low, int high);
+
+	/**
+	 * The write queue size at which an unwritable socket becomes writable again.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the current low watermark.
+	 */
+	int getLowWriteWatermark();
+
+	/**
+	 * The write queue size above which the socket becomes unwritable.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the current high watermark.
+	 */
+	int getHighWriteWatermark();
+
+	/**
+	 * Determine if the socket is writable, that is if the unsent bytes have not grown
+	 * above the high watermark since they last drained to the low watermark.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return true if the socket is writable.
+	 */
+	boolean isWritable();
+
+	/**
+	 * Stops reading from this socket until {@link #resumeReads()} is called.
+	 * <p>
+	 * While reads are suspended, incoming data is left in the operating system's buffers,
+	 * so that TCP flow control eventually slows down the sender. Packets already read
+	 * but not yet delivered are held back as well, except that a call made from within
+	 * <code>packetReceived</code> takes effect after the current packet.
+	 * <p>
+	 * Note that an SSL handshake cannot progress while reads are suspended.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 */
+	void suspendReads();
+
+	/**
+	 * Resumes reading from this socket after reads were suspended, either by
+	 * {@link #suspendReads()} or because the read budget was used up.
+	 * <p>
+	 * Packets held back while reads were suspended are delivered first.
+	 * Each call also grants the socket a new read budget, see {@link #setReadBudget(long)},
+	 * even if reads were not suspended.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 */
+	void resumeReads();
+
+	/**
+	 * Determine if reads are currently suspended.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return true if reads are suspended.
+	 */
+	boolean isReadSuspended();
+
+	/**
+	 * Sets the number of bytes the socket may read before reads are suspended automatically.
+	 * <p>
+	 * Once the socket has read this many bytes since the last call to {@link #resumeReads()}
+	 * (or since the socket opened), it delivers the packets read so far and then suspends reads.
+	 * A consumer can then call <code>resumeReads()</code> when it has caught up, which grants
+	 * a new budget. The budget counts bytes as read from the channel, so for SSL sockets it
+	 * includes the encryption overhead.
+	 * <p>
+	 * The budget is disabled by default.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param bytes the number of bytes to read before suspending, a value less than 1 disables the budget.
+	 */
+	void setReadBudget(long bytes);
+
+	/**
+	 * The number of bytes the socket may read before reads are suspended automatically.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the read budget, or a value less than 1 if the budget is disabled.
+	 */
+	long getReadBudget();
+
 	/**
 	 * Sets the packet reader for this socket.
 	 *
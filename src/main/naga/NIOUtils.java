@@ -22,9 +22,12 @@ SOFTWARE.
 package naga;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
 
 /**
  * A collection of utilites used by various classes.
@@ -33,6 +36,7 @@ import java.nio.channels.SelectionKey;
  */
 public class NIOUtils
 {
+    private final static Object s_reusePortOption = findReusePortOption();
 
 	NIOUtils() {}
 	
@@ -259,6 +263,19 @@ public class NIOUtils
         return copy;
     }
 
+    /**
+     * Copies the remaining bytes of a buffer into a new byte array, consuming them.
+     *
+     * @param buffer the buffer to copy from.
+     * @return a byte array with the remaining bytes of the buffer.
+     */
+    public static byte[] getBytes(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
     public static long remaining(ByteBuffer[] byteBuffers)
     {
         long length = 0;
@@ -285,4 +302,82 @@ public class NIOUtils
         buffer.flip();
         return buffer;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns true if server socket channels can be bound with SO_REUSEPORT.
+     * <p>
+     * This requires Java 9 or later and an operating system supporting the option, such as Linux.
+     *
+     * @return true if {@link #setReusePort(java.nio.channels.ServerSocketChannel)} is supported.
+     */
+    public static boolean isReusePortSupported()
+    {
+        if (s_reusePortOption == null) return false;
+        try
+        {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try
+            {
+                Set<?> options = (Set<?>) ServerSocketChannel.class.getMethod("supportedOptions").invoke(channel);
+                return options.contains(s_reusePortOption);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Enables SO_REUSEPORT on an unbound server socket channel, allowing several
+     * channels to bind to the same address. The operating system then balances incoming
+     * connections between the channels.
+     * <p>
+     * The option is set by reflection, as it is only available from Java 9.
+     *
+     * @param channel the channel to set the option on, before it is bound.
+     * @throws UnsupportedOperationException if the option is not supported by the JVM or the operating system.
+     * @throws IOException if setting the option failed.
+     */
+    public static void setReusePort(ServerSocketChannel channel) throws IOException
+    {
+        if (s_reusePortOption == null) throw new UnsupportedOperationException("SO_REUSEPORT requires Java 9 or later.");
+        try
+        {
+            ServerSocketChannel.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class)
+                    .invoke(channel, s_reusePortOption, Boolean.TRUE);
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Failed to set SO_REUSEPORT: " + cause);
+        }
+        catch (Exception e)
+        {
+            throw new UnsupportedOperationException("Failed to set SO_REUSEPORT: " + e);
+        }
+    }
+
+    /**
+     * Looks up StandardSocketOptions.SO_REUSEPORT.
+     *
+     * @return the socket option, or null if it is not available.
+     */
+    private static Object findReusePortOption()
+    {
+        try
+        {
+            return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+}
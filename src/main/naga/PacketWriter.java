@@ -28,6 +28,11 @@ import java.nio.ByteBuffer;
  * <p>
  * The method {@link naga.PacketWriter#write(ByteBuffer[])} converts an incoming byte array
  * to an outgoing byte array.
+ * <p>
+ * A socket with a write batch of more than one packet converts several packets before any
+ * of them is written, see {@link naga.NIOSocket#setWriteBatchSize(int, int)}. A packet writer used
+ * with such a socket must return new buffers on every call, rather than reuse or modify the
+ * buffers it returned before. The packet writers in naga.packetwriter all do this.
  * 
  * @author Christoffer Lerno
  */
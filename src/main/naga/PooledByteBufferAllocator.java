@@ -0,0 +1,188 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An allocator pooling byte buffers in power-of-two size classes.
+ * <p>
+ * Buffers allocated from the pool have a capacity of at least the requested size,
+ * rounded up to the nearest power of two. Released buffers are kept for reuse, up to
+ * a maximum number of free buffers per size class.
+ * <p>
+ * The pool keeps counters for allocations served from the pool (hits), allocations
+ * requiring a new buffer (misses) and the number of bytes currently allocated and not yet released.
+ * <p>
+ * <em>This class is thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class PooledByteBufferAllocator implements ByteBufferAllocator
+{
+    /** The default maximum number of free buffers retained per size class */
+    public final static int DEFAULT_MAX_FREE_BUFFERS = 64;
+
+    private final static int SIZE_CLASSES = 31;
+
+    private final boolean m_direct;
+    private final int m_maxFreeBuffers;
+    private final List<List<ByteBuffer>> m_freeBuffers;
+    private final AtomicLong m_hits;
+    private final AtomicLong m_misses;
+    private final AtomicLong m_bytesOutstanding;
+
+    /**
+     * Creates a new pool with the default number of free buffers retained per size class.
+     *
+     * @param direct true to pool direct buffers, false to pool heap buffers.
+     */
+    public PooledByteBufferAllocator(boolean direct)
+    {
+        this(direct, DEFAULT_MAX_FREE_BUFFERS);
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param direct true to pool direct buffers, false to pool heap buffers.
+     * @param maxFreeBuffers the maximum number of free buffers to retain per size class.
+     * @throws IllegalArgumentException if maxFreeBuffers is negative.
+     */
+    public PooledByteBufferAllocator(boolean direct, int maxFreeBuffers)
+    {
+        if (maxFreeBuffers < 0) throw new IllegalArgumentException("Max free buffers must be 0 or more, was: " + maxFreeBuffers);
+        m_direct = direct;
+        m_maxFreeBuffers = maxFreeBuffers;
+        m_freeBuffers = new ArrayList<List<ByteBuffer>>(SIZE_CLASSES);
+        for (int i = 0; i < SIZE_CLASSES; i++)
+        {
+            m_freeBuffers.add(new ArrayList<ByteBuffer>());
+        }
+        m_hits = new AtomicLong(0L);
+        m_misses = new AtomicLong(0L);
+        m_bytesOutstanding = new AtomicLong(0L);
+    }
+
+    /**
+     * Returns the size class for a given buffer size.
+     *
+     * @param size the requested size.
+     * @return the index of the smallest power of two that holds the size.
+     */
+    private static int sizeClass(int size)
+    {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    public ByteBuffer allocate(int size)
+    {
+        int sizeClass = sizeClass(size);
+        if (sizeClass >= SIZE_CLASSES)
+        {
+            // Too large to round up, so allocate the exact size without pooling.
+            m_misses.incrementAndGet();
+            m_bytesOutstanding.addAndGet(size);
+            return m_direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = null;
+        List<ByteBuffer> freeBuffers = m_freeBuffers.get(sizeClass);
+        synchronized (freeBuffers)
+        {
+            if (!freeBuffers.isEmpty()) buffer = freeBuffers.remove(freeBuffers.size() - 1);
+        }
+        if (buffer == null)
+        {
+            m_misses.incrementAndGet();
+            buffer = m_direct ? ByteBuffer.allocateDirect(1 << sizeClass) : ByteBuffer.allocate(1 << sizeClass);
+        }
+        else
+        {
+            m_hits.incrementAndGet();
+            buffer.clear();
+        }
+        m_bytesOutstanding.addAndGet(buffer.capacity());
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null) return;
+        m_bytesOutstanding.addAndGet(-buffer.capacity());
+        if (buffer.isDirect() != m_direct || Integer.bitCount(buffer.capacity()) != 1) return;
+        List<ByteBuffer> freeBuffers = m_freeBuffers.get(sizeClass(buffer.capacity()));
+        synchronized (freeBuffers)
+        {
+            if (freeBuffers.size() < m_maxFreeBuffers) freeBuffers.add(buffer);
+        }
+    }
+
+    /**
+     * Returns true if this pool allocates direct buffers.
+     *
+     * @return true for direct buffers, false for heap buffers.
+     */
+    public boolean isDirect()
+    {
+        return m_direct;
+    }
+
+    /**
+     * Returns the number of allocations served by a previously released buffer.
+     *
+     * @return the number of pool hits.
+     */
+    public long getHits()
+    {
+        return m_hits.get();
+    }
+
+    /**
+     * Returns the number of allocations that required a new buffer.
+     *
+     * @return the number of pool misses.
+     */
+    public long getMisses()
+    {
+        return m_misses.get();
+    }
+
+    /**
+     * Returns the total capacity of buffers allocated from this pool and not yet released.
+     *
+     * @return the number of bytes outstanding.
+     */
+    public long getBytesOutstanding()
+    {
+        return m_bytesOutstanding.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PooledByteBufferAllocator[" + (m_direct ? "direct" : "heap") + ", hits=" + getHits()
+               + ", misses=" + getMisses() + ", outstanding=" + getBytesOutstanding() + "]";
+    }
+}
@@ -0,0 +1,140 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+/**
+ * A binary trie of address prefixes, each marked allowed or denied, stored in primitive arrays.
+ * <p>
+ * Every node has two children, one for each value of the next address bit, kept at
+ * <code>2 * node</code> and <code>2 * node + 1</code> in the child array. Node 0 is the root,
+ * so a child index of 0 means that there is no child.
+ * <p>
+ * <em>This class is not thread-safe while prefixes are inserted, but may be shared
+ * between threads for lookups once it is safely published.</em>
+ *
+ * @author Christoffer Lerno
+ */
+class PrefixTrie
+{
+	final static byte NONE = 0;
+	final static byte ALLOW = 1;
+	final static byte DENY = 2;
+
+	private int[] m_children;
+	private byte[] m_actions;
+	private int m_nodes;
+
+	PrefixTrie()
+	{
+		m_children = new int[32];
+		m_actions = new byte[16];
+		m_nodes = 1;
+	}
+
+	/**
+	 * Creates a copy of a trie, using arrays no larger than needed.
+	 *
+	 * @param trie the trie to copy.
+	 */
+	PrefixTrie(PrefixTrie trie)
+	{
+		m_nodes = trie.m_nodes;
+		m_children = copyOf(trie.m_children, 2 * m_nodes);
+		m_actions = new byte[m_nodes];
+		System.arraycopy(trie.m_actions, 0, m_actions, 0, m_nodes);
+	}
+
+	/**
+	 * Marks a prefix, replacing any earlier mark of the same prefix.
+	 *
+	 * @param address the address bytes, in network order.
+	 * @param prefixLength the number of leading bits of the address in the prefix.
+	 * @param action ALLOW or DENY.
+	 */
+	void insert(byte[] address, int prefixLength, byte action)
+	{
+		int node = 0;
+		for (int i = 0; i < prefixLength; i++)
+		{
+			int index = 2 * node + bit(address, i);
+			if (m_children[index] == 0)
+			{
+				int child = newNode();
+				m_children[index] = child;
+			}
+			node = m_children[index];
+		}
+		m_actions[node] = action;
+	}
+
+	/**
+	 * Finds the mark of the longest prefix matching the address.
+	 *
+	 * @param address the address bytes, in network order.
+	 * @return ALLOW or DENY, or NONE if no prefix matches.
+	 */
+	byte lookup(byte[] address)
+	{
+		int node = 0;
+		byte action = m_actions[0];
+		int bits = address.length * 8;
+		for (int i = 0; i < bits; i++)
+		{
+			node = m_children[2 * node + bit(address, i)];
+			if (node == 0) break;
+			if (m_actions[node] != NONE) action = m_actions[node];
+		}
+		return action;
+	}
+
+	/**
+	 * @return the number of nodes in the trie, including the root.
+	 */
+	int getNodeCount()
+	{
+		return m_nodes;
+	}
+
+	private int newNode()
+	{
+		if (m_nodes == m_actions.length)
+		{
+			m_children = copyOf(m_children, m_children.length * 2);
+			byte[] actions = new byte[m_actions.length * 2];
+			System.arraycopy(m_actions, 0, actions, 0, m_actions.length);
+			m_actions = actions;
+		}
+		return m_nodes++;
+	}
+
+	private static int[] copyOf(int[] array, int length)
+	{
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+		return copy;
+	}
+
+	private static int bit(byte[] address, int index)
+	{
+		return (address[index >> 3] >> (7 - (index & 7))) & 1;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A connection acceptor limiting the rate at which connections are accepted.
+ * <p>
+ * The limit is a token bucket: the bucket holds up to <code>burst</code> tokens and
+ * is refilled at <code>connectionsPerSecond</code> tokens per second, and each accepted
+ * connection takes a token. Connections arriving when the bucket is empty are refused.
+ * <p>
+ * Connections within the limit are passed on to the next acceptor, if any.
+ * If the next acceptor is a {@link ConnectionTracker}, closed connections are passed on to it as well.
+ * <p>
+ * For limiting the rate of each source address, see {@link AddressRateLimitingAcceptor}.
+ * <p>
+ * <em>This class is thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class RateLimitingAcceptor implements ConnectionTracker
+{
+	private final ConnectionAcceptor m_next;
+	private final long m_interval;
+	private final long m_tolerance;
+	private long m_nextAccept;
+
+	/**
+	 * Creates a rate limiting acceptor accepting all connections within the limit.
+	 *
+	 * @param connectionsPerSecond the number of connections to accept per second.
+	 * @param burst the number of connections that may be accepted at once after a period of inactivity.
+	 * @throws IllegalArgumentException if the rate is not positive or the burst is less than 1.
+	 */
+	public RateLimitingAcceptor(double connectionsPerSecond, int burst)
+	{
+		this(connectionsPerSecond, burst, ConnectionAcceptor.ALLOW);
+	}
+
+	/**
+	 * Creates a rate limiting acceptor.
+	 *
+	 * @param connectionsPerSecond the number of connections to accept per second.
+	 * @param burst the number of connections that may be accepted at once after a period of inactivity.
+	 * @param next the acceptor that decides on connections within the limit.
+	 * @throws IllegalArgumentException if the rate is not positive or the burst is less than 1.
+	 */
+	public RateLimitingAcceptor(double connectionsPerSecond, int burst, ConnectionAcceptor next)
+	{
+		if (!(connectionsPerSecond > 0)) throw new IllegalArgumentException("Rate must be positive, was " + connectionsPerSecond);
+		if (burst < 1) throw new IllegalArgumentException("Burst must allow at least one connection, was " + burst);
+		if (next == null) throw new NullPointerException();
+		m_next = next;
+		m_interval = Math.max(1L, (long) (1000000000L / connectionsPerSecond));
+		m_tolerance = m_interval * (burst - 1);
+		m_nextAccept = System.nanoTime();
+	}
+
+	public boolean acceptConnection(InetSocketAddress inetSocketAddress)
+	{
+		if (!takeToken(System.nanoTime())) return false;
+		return m_next.acceptConnection(inetSocketAddress);
+	}
+
+	/**
+	 * Takes a token from the bucket, if one is available.
+	 * <p>
+	 * Rather than counting tokens, the bucket keeps the time at which the next token
+	 * is due if it were empty, which is a single value to update.
+	 *
+	 * @param now the current time in nanoseconds.
+	 * @return true if a token was available.
+	 */
+	private synchronized boolean takeToken(long now)
+	{
+		long nextAccept = m_nextAccept - now < 0 ? now : m_nextAccept;
+		if (nextAccept - now > m_tolerance) return false;
+		m_nextAccept = nextAccept + m_interval;
+		return true;
+	}
+
+	public void connectionClosed(InetSocketAddress inetSocketAddress)
+	{
+		if (m_next instanceof ConnectionTracker) ((ConnectionTracker) m_next).connectionClosed(inetSocketAddress);
+	}
+}
@@ -0,0 +1,211 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the SSLEngines of client and server sockets, allowing SSL sessions to be resumed.
+ * <p>
+ * Client engines are created with the host and port of the peer as hints, so that the
+ * SSLContext can find a previous session with that peer and resume it using an abbreviated
+ * handshake instead of a full key exchange. The session caches of the context are
+ * bounded to the given size.
+ * <p>
+ * The factory counts the handshakes completed by sockets opened with it, and how many of those
+ * resumed an earlier session.
+ * <p>
+ * Example use:
+ * <pre>
+ * SSLEngineFactory factory = new SSLEngineFactory(sslContext);
+ * NIOSocketSSL socket = service.openSSLSocket(factory, "backend.example.com", 443);
+ * </pre>
+ * Subclasses may override {@link #configureEngine(javax.net.ssl.SSLEngine, boolean)} to set
+ * protocols or cipher suites on each new engine.
+ *
+ * @author Christoffer Lerno
+ */
+public class SSLEngineFactory
+{
+    /** The default number of sessions to cache */
+    public final static int DEFAULT_SESSION_CACHE_SIZE = 1024;
+
+    /** The default time in seconds a session may be resumed */
+    public final static int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private final SSLContext m_sslContext;
+    private final int m_sessionCacheSize;
+    private final AtomicLong m_fullHandshakes;
+    private final AtomicLong m_resumedHandshakes;
+
+    /**
+     * Creates a factory with the default session cache size and timeout.
+     *
+     * @param sslContext the context to create engines with.
+     */
+    public SSLEngineFactory(SSLContext sslContext)
+    {
+        this(sslContext, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+    }
+
+    /**
+     * Creates a factory, setting the size and timeout of the client and server session caches
+     * of the context.
+     *
+     * @param sslContext the context to create engines with.
+     * @param sessionCacheSize the maximum number of sessions cached, 0 means no limit.
+     * @param sessionTimeout the time in seconds a session may be resumed, 0 means no limit.
+     * @throws IllegalArgumentException if the cache size or timeout is negative.
+     */
+    public SSLEngineFactory(SSLContext sslContext, int sessionCacheSize, int sessionTimeout)
+    {
+        if (sessionCacheSize < 0) throw new IllegalArgumentException("Negative session cache size " + sessionCacheSize);
+        if (sessionTimeout < 0) throw new IllegalArgumentException("Negative session timeout " + sessionTimeout);
+        m_sslContext = sslContext;
+        m_sessionCacheSize = sessionCacheSize;
+        m_fullHandshakes = new AtomicLong(0);
+        m_resumedHandshakes = new AtomicLong(0);
+        configureSessionContext(sslContext.getClientSessionContext(), sessionCacheSize, sessionTimeout);
+        configureSessionContext(sslContext.getServerSessionContext(), sessionCacheSize, sessionTimeout);
+    }
+
+    private static void configureSessionContext(SSLSessionContext sessionContext, int sessionCacheSize, int sessionTimeout)
+    {
+        if (sessionContext == null) return;
+        sessionContext.setSessionCacheSize(sessionCacheSize);
+        sessionContext.setSessionTimeout(sessionTimeout);
+    }
+
+    /**
+     * Creates an engine for a client socket.
+     *
+     * @param host the host of the peer.
+     * @param port the port of the peer.
+     * @return a new engine in client mode.
+     */
+    public SSLEngine createClientEngine(String host, int port)
+    {
+        SSLEngine engine = m_sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        configureEngine(engine, true);
+        return engine;
+    }
+
+    /**
+     * Creates an engine for a socket accepted by a server socket.
+     *
+     * @return a new engine in server mode.
+     */
+    public SSLEngine createServerEngine()
+    {
+        SSLEngine engine = m_sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        configureEngine(engine, false);
+        return engine;
+    }
+
+    /**
+     * Configures a newly created engine, does nothing by default.
+     *
+     * @param engine the engine to configure.
+     * @param client true if this is the engine of a client socket.
+     */
+    protected void configureEngine(SSLEngine engine, boolean client)
+    {
+    }
+
+    /**
+     * Records a completed handshake.
+     * <p>
+     * A session is resumed if it was created before the handshake began.
+     *
+     * @param session the session negotiated.
+     * @param handshakeStartTime the time the handshake began. See Date#getTime().
+     */
+    void handshakeCompleted(SSLSession session, long handshakeStartTime)
+    {
+        if (session.getCreationTime() < handshakeStartTime)
+        {
+            m_resumedHandshakes.incrementAndGet();
+        }
+        else
+        {
+            m_fullHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the context used by this factory.
+     *
+     * @return the SSLContext.
+     */
+    public SSLContext getSSLContext()
+    {
+        return m_sslContext;
+    }
+
+    /**
+     * Returns the maximum number of sessions cached.
+     *
+     * @return the session cache size, 0 means no limit.
+     */
+    public int getSessionCacheSize()
+    {
+        return m_sessionCacheSize;
+    }
+
+    /**
+     * Returns the number of handshakes that negotiated a new session.
+     *
+     * @return the number of full handshakes.
+     */
+    public long getFullHandshakes()
+    {
+        return m_fullHandshakes.get();
+    }
+
+    /**
+     * Returns the number of handshakes that resumed a cached session.
+     *
+     * @return the number of resumed handshakes.
+     */
+    public long getResumedHandshakes()
+    {
+        return m_resumedHandshakes.get();
+    }
+
+    /**
+     * Returns the fraction of handshakes that resumed a cached session.
+     *
+     * @return the session cache hit rate between 0 and 1, or 0 if no handshake has completed.
+     */
+    public double getHitRate()
+    {
+        long resumed = m_resumedHandshakes.get();
+        long total = resumed + m_fullHandshakes.get();
+        return total == 0 ? 0.0 : (double) resumed / total;
+    }
+}
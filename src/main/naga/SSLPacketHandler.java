@@ -30,46 +30,64 @@ import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import java.io.EOFException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Undocumented Class
+ * Encrypts and decrypts the packets of an SSL socket, delegating packet
+ * creation to an inner reader and writer.
+ * <p>
+ * Each handler keeps its own buffers: decrypted data is held in an application buffer until
+ * the inner reader has consumed it, and encrypted records are wrapped one after the other
+ * into an outbound buffer. The buffers are sized from the SSLSession and are reused
+ * once their contents have been consumed or written, so they are only reallocated when they
+ * need to grow.
+ * <p>
+ * The buffers come from the buffer allocator of the NIOService, and are released to it
+ * when the socket closes.
  *
  * @author Christoffer Lerno
  */
 public class SSLPacketHandler implements PacketReader, PacketWriter
 {
-    private final static Executor TASK_HANDLER = Executors.newSingleThreadExecutor();
-
-    private final static ThreadLocal<ByteBuffer> SSL_BUFFER = new ThreadLocal<ByteBuffer>()
-    {
-        @Override
-        protected ByteBuffer initialValue()
-        {
-            // Should be plenty.
-            return ByteBuffer.allocate(64 * 1024);
-        }
-    };
+    private final static ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
 
     private final SSLEngine m_engine;
     private PacketReader m_reader;
     private PacketWriter m_writer;
-    private ByteBuffer m_partialIncomingBuffer;
+    private ByteBuffer m_applicationBuffer;
+    private ByteBuffer m_outboundBuffer;
+    private int m_outboundHandedOut;
+    private ByteBuffer m_lastOutbound;
+    private ByteBuffer m_outboundView;
+    private ByteBuffer[] m_outboundViews;
+    private final List<ByteBuffer[]> m_retiredOutbound;
     private ByteBuffer[] m_initialOutBuffer;
     private final NIOSocket m_socket;
     private final SSLSocketChannelResponder m_responder;
     private boolean m_sslInitiated;
+    private boolean m_inputStalled;
+    private long m_handshakeStart;
+    private long m_handshakeStartTime;
 
     public SSLPacketHandler(SSLEngine engine, NIOSocket socket, SSLSocketChannelResponder responder)
     {
         m_engine = engine;
         m_socket = socket;
-        m_partialIncomingBuffer = null;
+        m_applicationBuffer = null;
+        m_outboundBuffer = null;
+        m_outboundHandedOut = 0;
+        m_lastOutbound = null;
+        m_outboundView = null;
+        m_outboundViews = null;
+        m_retiredOutbound = new ArrayList<ByteBuffer[]>();
         m_writer = RawPacketWriter.INSTANCE;
         m_reader = RawPacketReader.INSTANCE;
         m_responder = responder;
         m_sslInitiated = false;
+        m_inputStalled = false;
+        m_handshakeStart = 0;
+        m_handshakeStartTime = 0;
     }
 
     public PacketReader getReader()
@@ -95,32 +113,55 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
     private void queueSSLTasks()
     {
         if (!m_sslInitiated) return;
-        int tasksScheduled = 0;
+        final List<Runnable> tasks = new ArrayList<Runnable>();
         Runnable task;
         while ((task = m_engine.getDelegatedTask()) != null)
         {
-            TASK_HANDLER.execute(task);
-            tasksScheduled++;
+            tasks.add(task);
         }
-        if (tasksScheduled == 0)
+        if (tasks.isEmpty())
         {
             return;
         }
-        TASK_HANDLER.execute(new Runnable()
+        // Run the tasks of this engine in order as a single job, then resume the handshake on the NIOService thread.
+        m_responder.getNIOService().getSSLTaskExecutor().execute(new Runnable()
         {
             public void run()
             {
+                for (Runnable task : tasks)
+                {
+                    task.run();
+                }
                 m_socket.queue(new Runnable()
                 {
                     public void run()
                     {
                         reactToHandshakeStatus(m_engine.getHandshakeStatus());
+                        resumeInput();
                     }
                 });
             }
         });
     }
 
+    /**
+     * Continues unwrapping data that was left unread while the engine ran its delegated tasks.
+     */
+    private void resumeInput()
+    {
+        if (!m_inputStalled) return;
+        m_inputStalled = false;
+        if (!(m_socket instanceof SocketChannelResponder)) return;
+        // Run outside of the write loop of the socket.
+        m_responder.getNIOService().queue(new Runnable()
+        {
+            public void run()
+            {
+                ((SocketChannelResponder) m_socket).readBufferedInput();
+            }
+        });
+    }
+
     public byte[] nextPacket(ByteBuffer byteBuffer) throws ProtocolViolationException
     {
         if (!m_sslInitiated)
@@ -130,36 +171,118 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
 
         try
         {
-            // Retrieve the local buffer.
-            ByteBuffer targetBuffer = SSL_BUFFER.get();
-            targetBuffer.clear();
+            if (m_applicationBuffer == null)
+            {
+                m_applicationBuffer = allocate(m_engine.getSession().getApplicationBufferSize());
+                m_applicationBuffer.flip();
+            }
+
+            // Unwrap all complete records before creating packets.
+            if (!unwrapRecords(byteBuffer)) return null;
+
+            // Deliver every complete packet, as there might be no more data to trigger another read.
+            deliverPackets();
+
+            // All packets have been delivered, and any data left is an incomplete record.
+            return null;
+        }
+        catch (SSLException e)
+        {
+            m_responder.closeDueToSSLException(e);
+            return null;
+        }
+    }
+
+    /**
+     * Delivers the complete packets in the application buffer, until the socket
+     * closes or reads are suspended.
+     *
+     * @throws ProtocolViolationException if the reader finds an invalid packet.
+     */
+    private void deliverPackets() throws ProtocolViolationException
+    {
+        byte[] packet;
+        while (m_applicationBuffer.hasRemaining() && m_socket.isOpen() && !m_socket.isReadSuspended()
+               && (packet = m_reader.nextPacket(m_applicationBuffer)) != null)
+        {
+            if (packet == SKIP_PACKET) continue;
+            m_responder.packetReceived(m_socket, packet);
+        }
+    }
+
+    /**
+     * Delivers decrypted packets that were held back while reads were suspended.
+     * <p>
+     * Called on the NIOService thread.
+     */
+    void deliverBufferedPackets()
+    {
+        if (m_applicationBuffer == null) return;
+        try
+        {
+            deliverPackets();
+        }
+        catch (ProtocolViolationException e)
+        {
+            m_socket.close();
+            m_responder.getNIOService().notifyException(e);
+        }
+    }
 
-            // Unwrap the data (both buffers should be sufficiently large)
-            SSLEngineResult result = m_engine.unwrap(byteBuffer, targetBuffer);
+    /**
+     * Unwraps all complete records in the buffer into the application buffer.
+     *
+     * @param byteBuffer the buffer holding the encrypted data.
+     * @return false if the connection was closed, true otherwise.
+     * @throws SSLException if the unwrap failed.
+     */
+    private boolean unwrapRecords(ByteBuffer byteBuffer) throws SSLException
+    {
+        while (byteBuffer.hasRemaining())
+        {
+            // Unwrap the data after any decrypted data not yet consumed by the reader.
+            m_applicationBuffer.compact();
+            SSLEngineResult result;
+            try
+            {
+                result = m_engine.unwrap(byteBuffer, m_applicationBuffer);
+            }
+            finally
+            {
+                m_applicationBuffer.flip();
+            }
             switch (result.getStatus())
             {
                 case BUFFER_UNDERFLOW:
                     // Right, let's wait for more data.
-                    return null;
+                    return true;
                 case BUFFER_OVERFLOW:
-                    // This should never happen as we are ensuring the buffer is large enough.
-                    throw new ProtocolViolationException("SSL Buffer Overflow");
+                    // The application buffer is too small, grow it and try again.
+                    m_applicationBuffer = grow(m_applicationBuffer, m_engine.getSession().getApplicationBufferSize());
+                    continue;
                 case CLOSED:
                     m_responder.connectionBroken(m_socket, new EOFException("SSL Connection closed"));
-                    return null;
+                    return false;
                 case OK:
                     // Do nothing, just follow the flow.
             }
-            // We might need to queue tasks or send data as a response to this packet.
+            // We might need to queue tasks or send data as a response to this record.
             reactToHandshakeStatus(result.getHandshakeStatus());
 
-            return retrieveDecryptedPacket(targetBuffer);
-        }
-        catch (SSLException e)
-        {
-            m_responder.closeDueToSSLException(e);
-            return null;
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+            {
+                // The engine will not unwrap until it has sent its own handshake data, so wrap it now.
+                if (m_engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                {
+                    wrapHandshake();
+                    continue;
+                }
+                // The engine is running its delegated tasks, continue when they are done.
+                m_inputStalled = true;
+                return true;
+            }
         }
+        return true;
     }
 
     private void reactToHandshakeStatus(SSLEngineResult.HandshakeStatus status)
@@ -174,6 +297,12 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
                 queueSSLTasks();
                 break;
             case FINISHED:
+                if (m_handshakeStart != 0)
+                {
+                    m_responder.getNIOService().getSSLTaskExecutor().handshakeCompleted(System.nanoTime() - m_handshakeStart);
+                    m_responder.handshakeCompleted(m_handshakeStartTime);
+                    m_handshakeStart = 0;
+                }
                 m_socket.write(new byte[0]);
                 break;
             case NEED_WRAP:
@@ -182,114 +311,218 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
         }
     }
 
-    private byte[] retrieveDecryptedPacket(ByteBuffer targetBuffer) throws ProtocolViolationException
+    /**
+     * Allocates a buffer from the buffer allocator of the NIOService.
+     *
+     * @param size the minimum capacity of the buffer.
+     * @return a cleared buffer.
+     */
+    private ByteBuffer allocate(int size)
     {
-        // Prepare the buffer for reading.
-        targetBuffer.flip();
+        return m_responder.getNIOService().getBufferAllocator().allocate(size);
+    }
 
-        // Join the buffer with the partial buffer, this is because we need to internally buffer data that has been decrypted but does not yet form a complete packet.
-        m_partialIncomingBuffer = NIOUtils.join(m_partialIncomingBuffer, targetBuffer);
+    /**
+     * Releases a buffer to the buffer allocator of the NIOService.
+     *
+     * @param buffer the buffer to release, may be null.
+     */
+    private void release(ByteBuffer buffer)
+    {
+        m_responder.getNIOService().getBufferAllocator().release(buffer);
+    }
 
-        // Skip if the data is empty. This will be the case during handshaking.
-        if (m_partialIncomingBuffer == null || m_partialIncomingBuffer.remaining() == 0) return SKIP_PACKET;
+    /**
+     * Copies the contents of a buffer into a larger buffer, and releases the old buffer.
+     *
+     * @param buffer the buffer to grow, ready for reading.
+     * @param minimumFree the minimum free space needed after the contents.
+     * @return the larger buffer, ready for reading.
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int minimumFree)
+    {
+        ByteBuffer larger = allocate(Math.max(2 * buffer.capacity(), buffer.remaining() + minimumFree));
+        larger.put(buffer);
+        larger.flip();
+        release(buffer);
+        return larger;
+    }
 
-        // Delegate packet creation to the reader.
-        return m_reader.nextPacket(m_partialIncomingBuffer);
+    /**
+     * Releases the buffers of this handler.
+     * <p>
+     * Called on the NIOService thread once the socket has closed, so that nothing
+     * is left to read from or write out of the buffers.
+     */
+    void releaseBuffers()
+    {
+        release(m_applicationBuffer);
+        release(m_outboundBuffer);
+        for (ByteBuffer[] retired : m_retiredOutbound)
+        {
+            release(retired[0]);
+        }
+        m_retiredOutbound.clear();
+        m_applicationBuffer = null;
+        m_outboundBuffer = null;
+        m_outboundHandedOut = 0;
+        m_lastOutbound = null;
+        m_outboundView = null;
+        m_outboundViews = null;
     }
 
-    public ByteBuffer[] write(ByteBuffer[] byteBuffers)
+    /**
+     * Reclaims the space of the outbound buffer once everything handed out has been written.
+     */
+    private void reclaimOutboundBuffer()
     {
-        if (!m_sslInitiated)
+        // Outbound buffers replaced by larger ones are written in order, release those that are done.
+        while (!m_retiredOutbound.isEmpty() && !m_retiredOutbound.get(0)[1].hasRemaining())
         {
-            return m_writer.write(byteBuffers);
+            release(m_retiredOutbound.remove(0)[0]);
         }
+        if (m_outboundHandedOut == 0 || m_lastOutbound.hasRemaining()) return;
+        m_outboundBuffer.flip();
+        m_outboundBuffer.position(m_outboundHandedOut);
+        m_outboundBuffer.compact();
+        m_outboundHandedOut = 0;
+        m_lastOutbound = null;
+    }
 
-        // Check if we are done handshaking.
-        if (m_engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+    /**
+     * Wraps data into the outbound buffer, growing the buffer as needed.
+     *
+     * @param source the data to wrap.
+     * @return the result of the wrap.
+     * @throws SSLException if the wrap failed.
+     */
+    private SSLEngineResult wrap(ByteBuffer[] source) throws SSLException
+    {
+        int packetBufferSize = m_engine.getSession().getPacketBufferSize();
+        if (m_outboundBuffer == null)
         {
-            if (!NIOUtils.isEmpty(byteBuffers))
-            {
-                // If this is regular data, store this in the initial outbuffer.
-                m_initialOutBuffer = NIOUtils.concat(m_initialOutBuffer, m_writer.write(byteBuffers));
-                byteBuffers = new ByteBuffer[0];
-            }
-            // Borrow the shared buffer.
-            ByteBuffer buffer = SSL_BUFFER.get();
-            ByteBuffer[] buffers = null;
-            try
+            m_outboundBuffer = allocate(2 * packetBufferSize);
+        }
+        reclaimOutboundBuffer();
+        while (true)
+        {
+            SSLEngineResult result = m_engine.wrap(source, m_outboundBuffer);
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) return result;
+            // Move the data not yet handed out to a larger buffer, any data handed out stays valid in the old one.
+            ByteBuffer data = m_outboundBuffer;
+            data.flip();
+            data.position(m_outboundHandedOut);
+            m_outboundBuffer = allocate(Math.max(2 * data.capacity(), data.remaining() + packetBufferSize));
+            m_outboundBuffer.put(data);
+            // Release the old buffer once the data handed out from it has been written.
+            if (m_lastOutbound == null || !m_lastOutbound.hasRemaining())
             {
-                // Create handshake data.
-                SSLEngineResult result = null;
-                while (m_engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
-                {
-                    buffer.clear();
-                    result = m_engine.wrap(byteBuffers, buffer);
-                    buffer.flip();
-                    buffers = NIOUtils.concat(buffers, NIOUtils.copy(buffer));
-                }
-
-                // If we for some reason entered here but did not need to wrap anything, exit.
-                if (result == null) return null;
-
-                if (result.getStatus() != SSLEngineResult.Status.OK) throw new SSLException("Unexpectedly not ok wrapping handshake data, was " + result.getStatus());
-
-                reactToHandshakeStatus(result.getHandshakeStatus());
+                release(data);
             }
-            catch (SSLException e)
+            else
             {
-                // Better error handling required!
-                throw new RuntimeException(e);
+                m_retiredOutbound.add(new ByteBuffer[] { data, m_lastOutbound });
             }
-            return buffers;
+            m_outboundHandedOut = 0;
+            m_lastOutbound = null;
+            m_outboundView = null;
+            m_outboundViews = null;
         }
+    }
 
-        // We are not handshaking, so encrypt the data using wrap
-
-        // Use the shared buffer.
-        ByteBuffer buffer = SSL_BUFFER.get();
-        buffer.clear();
-
-        if (NIOUtils.isEmpty(byteBuffers))
+    /**
+     * Wraps handshake data into the outbound buffer for as long as the engine needs to wrap.
+     *
+     * @throws SSLException if the wrap failed.
+     */
+    private void wrapHandshake() throws SSLException
+    {
+        SSLEngineResult result = null;
+        while (m_engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
         {
-            // Exit early if we have no data to encrypt.
-            if (m_initialOutBuffer == null) return null;
+            result = wrap(NO_BUFFERS);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) break;
         }
-        else
+        if (result != null) reactToHandshakeStatus(result.getHandshakeStatus());
+    }
+
+    /**
+     * Returns the encrypted data in the outbound buffer that has not yet been handed out for writing.
+     * <p>
+     * The view is reused once the socket writer has written all of it, so only a batch of
+     * several packets, or a larger outbound buffer, allocates a new view.
+     *
+     * @return a view of the data, or null if there is no data.
+     */
+    private ByteBuffer[] takeOutbound()
+    {
+        if (m_outboundBuffer == null || m_outboundBuffer.position() == m_outboundHandedOut) return null;
+        // The socket writer clears its entry in the array once the view has been written.
+        if (m_outboundView == null || m_outboundView.hasRemaining() || m_outboundViews[0] != null)
         {
-            // Only convert non-empty buffers
-            byteBuffers = m_writer.write(byteBuffers);
+            m_outboundView = m_outboundBuffer.duplicate();
+            m_outboundViews = new ByteBuffer[1];
         }
+        ByteBuffer view = m_outboundView;
+        view.clear();
+        view.limit(m_outboundBuffer.position());
+        view.position(m_outboundHandedOut);
+        m_outboundHandedOut = m_outboundBuffer.position();
+        m_lastOutbound = view;
+        m_outboundViews[0] = view;
+        return m_outboundViews;
+    }
 
-        // If we have an initial buffer, send it.
-        if (m_initialOutBuffer != null)
+    public ByteBuffer[] write(ByteBuffer[] byteBuffers)
+    {
+        if (!m_sslInitiated)
         {
-            byteBuffers = NIOUtils.concat(m_initialOutBuffer, byteBuffers);
-            m_initialOutBuffer = null;
+            return m_writer.write(byteBuffers);
         }
 
-        ByteBuffer[] encrypted = null;
-
-        // While we have things left to encrypt.
-        while (!NIOUtils.isEmpty(byteBuffers))
+        try
         {
-            // Clear our huge buffer.
-            buffer.clear();
-            try
+            // Check if we are done handshaking.
+            if (m_engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
             {
-                m_engine.wrap(byteBuffers, buffer);
+                if (!NIOUtils.isEmpty(byteBuffers))
+                {
+                    // If this is regular data, store this in the initial outbuffer.
+                    m_initialOutBuffer = NIOUtils.concat(m_initialOutBuffer, m_writer.write(byteBuffers));
+                }
+                // Create handshake data.
+                wrapHandshake();
+                return takeOutbound();
             }
-            catch (SSLException e)
+
+            // We are not handshaking, so encrypt the data using wrap
+            if (!NIOUtils.isEmpty(byteBuffers))
             {
-                throw new RuntimeException(e);
+                // Only convert non-empty buffers
+                byteBuffers = m_writer.write(byteBuffers);
             }
-            buffer.flip();
 
-            // Copy the result.
-            encrypted = NIOUtils.concat(encrypted, NIOUtils.copy(buffer));
+            // If we have an initial buffer, send it.
+            if (m_initialOutBuffer != null)
+            {
+                byteBuffers = NIOUtils.concat(m_initialOutBuffer, byteBuffers);
+                m_initialOutBuffer = null;
+            }
+
+            // While we have things left to encrypt.
+            while (!NIOUtils.isEmpty(byteBuffers))
+            {
+                if (wrap(byteBuffers).getStatus() == SSLEngineResult.Status.CLOSED) break;
+            }
+        }
+        catch (SSLException e)
+        {
+            // Better error handling required!
+            throw new RuntimeException(e);
         }
 
-        // Return our encrypted data.
-        return encrypted;
+        // Return our encrypted data, including any handshake data wrapped while reading.
+        return takeOutbound();
     }
 
     public SSLEngine getSSLEngine()
@@ -299,6 +532,8 @@ public class SSLPacketHandler implements PacketReader, PacketWriter
 
     void begin() throws SSLException
     {
+        m_handshakeStart = System.nanoTime();
+        m_handshakeStartTime = System.currentTimeMillis();
         m_engine.beginHandshake();
         m_sslInitiated = true;
         reactToHandshakeStatus(m_engine.getHandshakeStatus());
@@ -35,10 +35,20 @@ import java.nio.channels.SocketChannel;
 class SSLServerSocketChannelResponder extends ServerSocketChannelResponder implements NIOServerSocketSSL
 {
     private final SSLContext m_sslContext;
+    private final SSLEngineFactory m_engineFactory;
+
     public SSLServerSocketChannelResponder(SSLContext context, NIOService service, ServerSocketChannel channel, InetSocketAddress address) throws IOException
     {
         super(service, channel, address);
         m_sslContext = context;
+        m_engineFactory = null;
+    }
+
+    public SSLServerSocketChannelResponder(SSLEngineFactory engineFactory, NIOService service, ServerSocketChannel channel, InetSocketAddress address) throws IOException
+    {
+        super(service, channel, address);
+        m_sslContext = engineFactory.getSSLContext();
+        m_engineFactory = engineFactory;
     }
 
     public SSLContext getSSLContext()
@@ -47,9 +57,10 @@ class SSLServerSocketChannelResponder extends ServerSocketChannelResponder imple
     }
 
     @Override
-    NIOSocket registerSocket(SocketChannel channel, InetSocketAddress address) throws IOException
+    NIOSocket registerSocket(NIOService service, SocketChannel channel, InetSocketAddress address, Runnable closeHook) throws IOException
     {
-        NIOSocket socket = super.registerSocket(channel, address);
-        return new SSLSocketChannelResponder(getNIOService(), socket,  m_sslContext.createSSLEngine(), false);
+        NIOSocket socket = super.registerSocket(service, channel, address, closeHook);
+        if (m_engineFactory == null) return new SSLSocketChannelResponder(service, socket,  m_sslContext.createSSLEngine(), false);
+        return new SSLSocketChannelResponder(service, socket, m_engineFactory.createServerEngine(), false, m_engineFactory);
     }
 }
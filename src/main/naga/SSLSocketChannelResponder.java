@@ -26,22 +26,31 @@ import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * SSL-implementation on top of NIOSocket, wrapping all calls to the socket.
  *
  * @author Christoffer Lerno
  */
-class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
+class SSLSocketChannelResponder implements NIOSocketSSL, WritabilitySocketObserver
 {
     private final NIOSocket m_wrappedSocket;
     private final SSLPacketHandler m_packetHandler;
     private final NIOService m_nioService;
+    private final SSLEngineFactory m_engineFactory;
     private SocketObserver m_observer;
 
     public SSLSocketChannelResponder(NIOService nioService, NIOSocket wrappedSocket, SSLEngine engine, boolean client) throws SSLException
+    {
+        this(nioService, wrappedSocket, engine, client, null);
+    }
+
+    public SSLSocketChannelResponder(NIOService nioService, NIOSocket wrappedSocket, SSLEngine engine, boolean client, SSLEngineFactory engineFactory) throws SSLException
     {
         m_nioService = nioService;
+        m_engineFactory = engineFactory;
         m_wrappedSocket = wrappedSocket;
         m_packetHandler = new SSLPacketHandler(engine, m_wrappedSocket, this);
         m_wrappedSocket.setPacketReader(m_packetHandler);
@@ -49,6 +58,24 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
         engine.setUseClientMode(client);
     }
 
+    /**
+     * @return the NIOService the wrapped socket belongs to.
+     */
+    NIOService getNIOService()
+    {
+        return m_nioService;
+    }
+
+    /**
+     * Reports a completed handshake to the factory that created the engine, if any.
+     *
+     * @param handshakeStartTime the time the handshake began. See Date#getTime().
+     */
+    void handshakeCompleted(long handshakeStartTime)
+    {
+        if (m_engineFactory != null) m_engineFactory.handshakeCompleted(getSSLEngine().getSession(), handshakeStartTime);
+    }
+
     public void beginHandshake() throws SSLException
     {
         if (getSSLEngine().getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) throw new IllegalStateException("Tried to start handshake during handshake.");
@@ -76,6 +103,56 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
         return m_wrappedSocket.write(packet, tag);
     }
 
+    public boolean write(byte[] packet, Object tag, int priority)
+    {
+        return m_wrappedSocket.write(packet, tag, priority);
+    }
+
+    public boolean write(ByteBuffer packet)
+    {
+        return m_wrappedSocket.write(packet);
+    }
+
+    public boolean write(ByteBuffer packet, Object tag)
+    {
+        return m_wrappedSocket.write(packet, tag);
+    }
+
+    public boolean write(ByteBuffer packet, Object tag, int priority)
+    {
+        return m_wrappedSocket.write(packet, tag, priority);
+    }
+
+    public boolean write(ByteBuffer[] packet)
+    {
+        return m_wrappedSocket.write(packet);
+    }
+
+    public boolean write(ByteBuffer[] packet, Object tag)
+    {
+        return m_wrappedSocket.write(packet, tag);
+    }
+
+    public boolean write(ByteBuffer[] packet, Object tag, int priority)
+    {
+        return m_wrappedSocket.write(packet, tag, priority);
+    }
+
+    public boolean writeFile(FileChannel file, long position, long count)
+    {
+        return m_wrappedSocket.writeFile(file, position, count);
+    }
+
+    public boolean writeFile(FileChannel file, long position, long count, Object tag)
+    {
+        return m_wrappedSocket.writeFile(file, position, count, tag);
+    }
+
+    public boolean writeFile(FileChannel file, long position, long count, Object tag, int priority)
+    {
+        return m_wrappedSocket.writeFile(file, position, count, tag, priority);
+    }
+
     public void queue(Runnable runnable)
     {
         m_wrappedSocket.queue(runnable);
@@ -101,6 +178,11 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
         return m_wrappedSocket.getWriteQueueSize();
     }
 
+    public long getWriteQueueSize(int priority)
+    {
+        return m_wrappedSocket.getWriteQueueSize(priority);
+    }
+
     public int getMaxQueueSize()
     {
         return m_wrappedSocket.getMaxQueueSize();
@@ -111,6 +193,84 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
         m_wrappedSocket.setMaxQueueSize(maxQueueSize);
     }
 
+    public int getMaxReadBufferSize()
+    {
+        return m_wrappedSocket.getMaxReadBufferSize();
+    }
+
+    public void setMaxReadBufferSize(int maxReadBufferSize)
+    {
+        m_wrappedSocket.setMaxReadBufferSize(maxReadBufferSize);
+    }
+
+    public void setWriteBatchSize(int maxPackets, int maxBytes)
+    {
+        m_wrappedSocket.setWriteBatchSize(maxPackets, maxBytes);
+    }
+
+    public int getWriteBatchPackets()
+    {
+        return m_wrappedSocket.getWriteBatchPackets();
+    }
+
+    public int getWriteBatchBytes()
+    {
+        return m_wrappedSocket.getWriteBatchBytes();
+    }
+
+    public void setWriteWatermarks(int low, int high)
+    {
+        m_wrappedSocket.setWriteWatermarks(low, high);
+    }
+
+    public int getLowWriteWatermark()
+    {
+        return m_wrappedSocket.getLowWriteWatermark();
+    }
+
+    public int getHighWriteWatermark()
+    {
+        return m_wrappedSocket.getHighWriteWatermark();
+    }
+
+    public boolean isWritable()
+    {
+        return m_wrappedSocket.isWritable();
+    }
+
+    public void suspendReads()
+    {
+        m_wrappedSocket.suspendReads();
+    }
+
+    public void resumeReads()
+    {
+        m_wrappedSocket.resumeReads();
+        // Decrypted packets held back are not in the wrapped socket's buffer, so deliver them here.
+        m_nioService.queue(new Runnable()
+        {
+            public void run()
+            {
+                m_packetHandler.deliverBufferedPackets();
+            }
+        });
+    }
+
+    public boolean isReadSuspended()
+    {
+        return m_wrappedSocket.isReadSuspended();
+    }
+
+    public void setReadBudget(long bytes)
+    {
+        m_wrappedSocket.setReadBudget(bytes);
+    }
+
+    public long getReadBudget()
+    {
+        return m_wrappedSocket.getReadBudget();
+    }
+
     public void setPacketReader(PacketReader packetReader)
     {
         m_packetHandler.setReader(packetReader);
@@ -214,13 +374,22 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
         {
             m_nioService.notifyException(e);
         }
+        // The SSL connection may also end while the socket is still open, then the buffers are still in use.
+        if (!m_wrappedSocket.isOpen()) m_packetHandler.releaseBuffers();
     }
 
     public void packetReceived(NIOSocket socket, byte[] packet)
     {
         try
         {
-            if (m_observer != null) m_observer.packetReceived(this, packet);
+            if (m_observer instanceof ByteBufferSocketObserver)
+            {
+                ((ByteBufferSocketObserver) m_observer).packetReceived(this, ByteBuffer.wrap(packet).asReadOnlyBuffer());
+            }
+            else if (m_observer != null)
+            {
+                m_observer.packetReceived(this, packet);
+            }
         }
         catch (Exception e)
         {
@@ -240,4 +409,19 @@ class SSLSocketChannelResponder implements NIOSocketSSL, SocketObserver
         }
     }
 
+    public void writabilityChanged(NIOSocket socket, boolean writable)
+    {
+        try
+        {
+            if (m_observer instanceof WritabilitySocketObserver)
+            {
+                ((WritabilitySocketObserver) m_observer).writabilityChanged(this, writable);
+            }
+        }
+        catch (Exception e)
+        {
+            m_nioService.notifyException(e);
+        }
+    }
+
 }
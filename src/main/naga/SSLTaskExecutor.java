@@ -0,0 +1,245 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the delegated tasks of SSLEngines during handshakes, keeping track of
+ * how many tasks are waiting and how long handshakes take.
+ * <p>
+ * Each NIOService has its own task executor, see {@link NIOService#getSSLTaskExecutor()}.
+ * By default, this is a pool of daemon threads with one thread per available
+ * processor, so that the key exchanges of many simultaneous handshakes are spread over all cores.
+ * The tasks of a single SSLEngine are always executed in order, one at a time.
+ * <p>
+ * All times are in nanoseconds.
+ *
+ * @author Christoffer Lerno
+ */
+public class SSLTaskExecutor implements Executor
+{
+    private final static AtomicInteger s_nextThreadId = new AtomicInteger(0);
+
+    private final Executor m_executor;
+    private final ExecutorService m_ownedExecutor;
+    private final AtomicInteger m_queueDepth;
+    private final AtomicLong m_executedTasks;
+    private final AtomicLong m_totalTaskTime;
+    private final AtomicLong m_completedHandshakes;
+    private final AtomicLong m_totalHandshakeTime;
+    private final AtomicLong m_maxHandshakeTime;
+
+    /**
+     * Creates a task executor with one thread per available processor.
+     */
+    public SSLTaskExecutor()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a task executor backed by its own pool of daemon threads.
+     *
+     * @param threads the number of threads in the pool.
+     * @throws IllegalArgumentException if the number of threads is less than 1.
+     */
+    public SSLTaskExecutor(int threads)
+    {
+        this(createPool(threads), true);
+    }
+
+    /**
+     * Creates a task executor running tasks on the given executor.
+     * <p>
+     * The executor is not shut down by {@link #shutdown()}.
+     *
+     * @param executor the executor to run delegated tasks on.
+     */
+    public SSLTaskExecutor(Executor executor)
+    {
+        this(executor, false);
+    }
+
+    private SSLTaskExecutor(Executor executor, boolean owned)
+    {
+        if (executor == null) throw new NullPointerException("Executor was null");
+        m_executor = executor;
+        m_ownedExecutor = owned ? (ExecutorService) executor : null;
+        m_queueDepth = new AtomicInteger(0);
+        m_executedTasks = new AtomicLong(0);
+        m_totalTaskTime = new AtomicLong(0);
+        m_completedHandshakes = new AtomicLong(0);
+        m_totalHandshakeTime = new AtomicLong(0);
+        m_maxHandshakeTime = new AtomicLong(0);
+    }
+
+    private static ExecutorService createPool(int threads)
+    {
+        if (threads < 1) throw new IllegalArgumentException("The pool must have at least one thread.");
+        return Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "NIOService-SSL-" + s_nextThreadId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Executes a task on the underlying executor.
+     * <p>
+     * If the underlying executor rejects the task, it is run on the calling thread.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param task the task to execute.
+     */
+    public void execute(final Runnable task)
+    {
+        m_queueDepth.incrementAndGet();
+        Runnable measuredTask = new Runnable()
+        {
+            public void run()
+            {
+                m_queueDepth.decrementAndGet();
+                long start = System.nanoTime();
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    m_totalTaskTime.addAndGet(System.nanoTime() - start);
+                    m_executedTasks.incrementAndGet();
+                }
+            }
+        };
+        try
+        {
+            m_executor.execute(measuredTask);
+        }
+        catch (RejectedExecutionException e)
+        {
+            measuredTask.run();
+        }
+    }
+
+    /**
+     * Records a completed handshake.
+     *
+     * @param handshakeTime the time from the start to the end of the handshake.
+     */
+    void handshakeCompleted(long handshakeTime)
+    {
+        m_completedHandshakes.incrementAndGet();
+        m_totalHandshakeTime.addAndGet(handshakeTime);
+        long max;
+        while ((max = m_maxHandshakeTime.get()) < handshakeTime)
+        {
+            if (m_maxHandshakeTime.compareAndSet(max, handshakeTime)) break;
+        }
+    }
+
+    /**
+     * Shuts down the thread pool if it was created by this executor.
+     */
+    public void shutdown()
+    {
+        if (m_ownedExecutor != null) m_ownedExecutor.shutdown();
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed.
+     *
+     * @return the current queue depth.
+     */
+    public int getQueueDepth()
+    {
+        return m_queueDepth.get();
+    }
+
+    /**
+     * Returns the number of tasks executed so far.
+     *
+     * @return the number of executed tasks.
+     */
+    public long getExecutedTasks()
+    {
+        return m_executedTasks.get();
+    }
+
+    /**
+     * Returns the total time spent executing tasks.
+     *
+     * @return the total task time in nanoseconds.
+     */
+    public long getTotalTaskTime()
+    {
+        return m_totalTaskTime.get();
+    }
+
+    /**
+     * Returns the number of handshakes completed by sockets using this executor.
+     *
+     * @return the number of completed handshakes.
+     */
+    public long getCompletedHandshakes()
+    {
+        return m_completedHandshakes.get();
+    }
+
+    /**
+     * Returns the total time of all completed handshakes.
+     *
+     * @return the total handshake time in nanoseconds.
+     */
+    public long getTotalHandshakeTime()
+    {
+        return m_totalHandshakeTime.get();
+    }
+
+    /**
+     * Returns the average time of completed handshakes.
+     *
+     * @return the average handshake time in nanoseconds, or 0 if no handshake has completed.
+     */
+    public long getAverageHandshakeTime()
+    {
+        long handshakes = m_completedHandshakes.get();
+        return handshakes == 0 ? 0 : m_totalHandshakeTime.get() / handshakes;
+    }
+
+    /**
+     * Returns the longest time any completed handshake has taken.
+     *
+     * @return the maximum handshake time in nanoseconds.
+     */
+    public long getMaxHandshakeTime()
+    {
+        return m_maxHandshakeTime.get();
+    }
+}
@@ -27,17 +27,21 @@ import java.net.ServerSocket;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Christoffer Lerno
  */
 class ServerSocketChannelResponder extends ChannelResponder implements NIOServerSocket
 {
-	private long m_totalRefusedConnections;
-	private long m_totalAcceptedConnections;
-	private long m_totalFailedConnections;
-	private long m_totalConnections;
+	private final AtomicLong m_totalRefusedConnections;
+	private final AtomicLong m_totalAcceptedConnections;
+	private final AtomicLong m_totalFailedConnections;
+	private final AtomicLong m_totalConnections;
+	private volatile int m_acceptBatchSize;
 	private volatile ConnectionAcceptor m_connectionAcceptor;
+	private volatile NIOServiceGroup m_serviceGroup;
 	private ServerSocketObserver m_observer;
 
 	@SuppressWarnings({"ObjectToString"})
@@ -47,11 +51,13 @@ class ServerSocketChannelResponder extends ChannelResponder implements NIOServer
 	{
 		super(service, channel, address);
 		m_observer = null;
+		m_serviceGroup = null;
 		setConnectionAcceptor(ConnectionAcceptor.ALLOW);
-		m_totalRefusedConnections = 0;
-		m_totalAcceptedConnections = 0;
-		m_totalFailedConnections = 0;
-		m_totalConnections = 0;
+		m_totalRefusedConnections = new AtomicLong(0);
+		m_totalAcceptedConnections = new AtomicLong(0);
+		m_totalFailedConnections = new AtomicLong(0);
+		m_totalConnections = new AtomicLong(0);
+		m_acceptBatchSize = DEFAULT_ACCEPT_BATCH_SIZE;
 	}
 
 	public void keyInitialized()
@@ -64,17 +70,45 @@ class ServerSocketChannelResponder extends ChannelResponder implements NIOServer
 		return (ServerSocketChannel) super.getChannel();
 	}
 
+    /**
+     * Sets the service group that accepted sockets are distributed over.
+     * <p>
+     * If no group is set, accepted sockets are registered with the NIOService
+     * owning this server socket.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param serviceGroup the group to hand accepted sockets to, or null to use the owning service.
+     */
+    void setServiceGroup(NIOServiceGroup serviceGroup)
+    {
+        m_serviceGroup = serviceGroup;
+    }
+
+    /**
+     * Selects the service that should own the next accepted socket.
+     *
+     * @return the service to register the next accepted socket with.
+     */
+    private NIOService nextSocketService()
+    {
+        NIOServiceGroup group = m_serviceGroup;
+        return group == null ? getNIOService() : group.nextService();
+    }
+
     /**
      * Override point for substituting NIOSocket wrappers.
      *
+     * @param service the service that will own the socket.
      * @param channel the channel to register.
      * @param address the address associated with the channel.
+     * @param closeHook the hook to run when the socket closes, or null for none.
      * @return A new NIOSocket
      * @throws IOException if registration failed.
      */
-    NIOSocket registerSocket(SocketChannel channel, InetSocketAddress address) throws IOException
+    NIOSocket registerSocket(NIOService service, SocketChannel channel, InetSocketAddress address, Runnable closeHook) throws IOException
     {
-        return getNIOService().registerSocketChannel(channel, address);
+        return service.registerSocketChannel(channel, address, closeHook);
     }
 
     private void notifyNewConnection(NIOSocket socket)
@@ -103,40 +137,62 @@ class ServerSocketChannelResponder extends ChannelResponder implements NIOServer
     }
 	/**
 	 * Callback to tell the object that there is at least one accept that can be done on the server socket.
+	 * <p>
+	 * Accepts pending connections until there are no more, the accept batch size is reached,
+	 * an accept fails or the server socket is closed.
 	 */
 	public void socketReadyForAccept()
 	{
-		m_totalConnections++;
+		int maxAccepts = m_acceptBatchSize;
+		for (int i = 0; i < maxAccepts && isOpen(); i++)
+		{
+			if (!acceptConnection()) return;
+		}
+	}
+
+	/**
+	 * Accepts a single pending connection.
+	 *
+	 * @return true if a connection was waiting and the accept did not fail.
+	 */
+	private boolean acceptConnection()
+	{
 		SocketChannel socketChannel = null;
+		ClosedConnectionEvent closedEvent = null;
 		try
 		{
 			socketChannel = getChannel().accept();
-			if (socketChannel == null)
-			{
-				// This means there actually wasn't any connection waiting,
-				// so tick down the number of actual total connections.
-				m_totalConnections--;
-				return;
-			}
+			// No connection waiting.
+			if (socketChannel == null) return false;
 
+			m_totalConnections.incrementAndGet();
 			InetSocketAddress address = (InetSocketAddress) socketChannel.socket().getRemoteSocketAddress();
 			// Is this connection acceptable?
-			if (!m_connectionAcceptor.acceptConnection(address))
+			ConnectionAcceptor acceptor = m_connectionAcceptor;
+			if (!acceptor.acceptConnection(address))
 			{
 				// Connection was refused by the socket owner, so update stats and close connection
-				m_totalRefusedConnections++;
+				m_totalRefusedConnections.incrementAndGet();
 				NIOUtils.closeChannelSilently(socketChannel);
-				return;
+				return true;
 			}
-            notifyNewConnection(registerSocket(socketChannel, address));
-			m_totalAcceptedConnections++;
+			if (acceptor instanceof ConnectionTracker)
+			{
+				closedEvent = new ClosedConnectionEvent((ConnectionTracker) acceptor, address);
+			}
+            notifyNewConnection(registerSocket(nextSocketService(), socketChannel, address, closedEvent));
+			m_totalAcceptedConnections.incrementAndGet();
+			return true;
 		}
 		catch (IOException e)
 		{
 			// Close channel in case it opened.
+			if (socketChannel == null) m_totalConnections.incrementAndGet();
 			NIOUtils.closeChannelSilently(socketChannel);
-			m_totalFailedConnections++;
+			if (closedEvent != null) closedEvent.run();
+			m_totalFailedConnections.incrementAndGet();
             notifyAcceptFailed(e);
+			return false;
 		}
 	}
 
@@ -147,22 +203,22 @@ class ServerSocketChannelResponder extends ChannelResponder implements NIOServer
 
 	public long getTotalRefusedConnections()
 	{
-		return m_totalRefusedConnections;
+		return m_totalRefusedConnections.get();
 	}
 
 	public long getTotalConnections()
 	{
-		return m_totalConnections;
+		return m_totalConnections.get();
 	}
 
 	public long getTotalFailedConnections()
 	{
-		return m_totalFailedConnections;
+		return m_totalFailedConnections.get();
 	}
 
 	public long getTotalAcceptedConnections()
 	{
-		return m_totalAcceptedConnections;
+		return m_totalAcceptedConnections.get();
 	}
 	
 	public void setConnectionAcceptor(ConnectionAcceptor connectionAcceptor)
@@ -170,6 +226,17 @@ class ServerSocketChannelResponder extends ChannelResponder implements NIOServer
 		m_connectionAcceptor = connectionAcceptor == null ? ConnectionAcceptor.DENY : connectionAcceptor;
 	}
 
+	public void setAcceptBatchSize(int maxAccepts)
+	{
+		if (maxAccepts < 1) throw new IllegalArgumentException("Batch must allow at least one accept, was " + maxAccepts);
+		m_acceptBatchSize = maxAccepts;
+	}
+
+	public int getAcceptBatchSize()
+	{
+		return m_acceptBatchSize;
+	}
+
 	private void notifyObserverSocketDied(Exception exception)
 	{
 		try
@@ -189,6 +256,44 @@ class ServerSocketChannelResponder extends ChannelResponder implements NIOServer
 		getNIOService().queue(new BeginListenEvent(observer));
 	}
 
+	/**
+	 * Tells a connection tracker that an accepted connection closed.
+	 * <p>
+	 * The event only notifies the tracker the first time it runs.
+	 */
+	private class ClosedConnectionEvent implements Runnable
+	{
+		private final ConnectionTracker m_tracker;
+		private final InetSocketAddress m_address;
+		private final AtomicBoolean m_done;
+
+		private ClosedConnectionEvent(ConnectionTracker tracker, InetSocketAddress address)
+		{
+			m_tracker = tracker;
+			m_address = address;
+			m_done = new AtomicBoolean(false);
+		}
+
+		public void run()
+		{
+			if (!m_done.compareAndSet(false, true)) return;
+			try
+			{
+				m_tracker.connectionClosed(m_address);
+			}
+			catch (Exception e)
+			{
+				getNIOService().notifyException(e);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return "ClosedConnection[" + m_address + "]";
+		}
+	}
+
 	private class BeginListenEvent implements Runnable
 	{
 		private final ServerSocketObserver m_newObserver;
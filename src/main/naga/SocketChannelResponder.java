@@ -21,15 +21,19 @@ SOFTWARE.
 */
 package naga;
 
+import naga.exception.ProtocolViolationException;
 import naga.packetreader.RawPacketReader;
+import naga.packetwriter.RawPacketWriter;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -37,12 +41,44 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 class SocketChannelResponder extends ChannelResponder implements NIOSocket
 {
+	/** Marks m_timeOpened as unset, since System.nanoTime() may return any value */
+	private final static long NOT_OPENED = Long.MIN_VALUE;
+	/** The write queue starts small, and grows with the backlog of the socket. */
+	private final static int WRITE_QUEUE_CAPACITY = 16;
+	private final static int MAX_WRITE_QUEUE_CAPACITY = 8192;
+	private final static int PRIORITY_QUEUE_CAPACITY = 4;
+	private final static int MAX_PRIORITY_QUEUE_CAPACITY = 1024;
+	/** Files passing through the packet writer are read in chunks of this size. */
+	private final static int FILE_CHUNK_SIZE = 64 * 1024;
+	/** Tags the chunks of a file before the last, which are not reported as sent. */
+	private final static Object FILE_CHUNK = new Object();
 	private int m_maxQueueSize;
+	private volatile int m_writeBatchPackets;
+	private volatile int m_writeBatchBytes;
+	private volatile int m_lowWriteWatermark;
+	private volatile int m_highWriteWatermark;
+	private final AtomicBoolean m_writable;
+	private boolean m_notifiedWritable;
+	private final Runnable m_writabilityEvent;
+	private volatile boolean m_readsSuspended;
+	private volatile long m_readBudget;
+	private long m_readBudgetStart;
+	private final Runnable m_suspendReadsEvent;
+	private final Runnable m_resumeReadsEvent;
 	private long m_timeOpened;
 	private final AtomicLong m_bytesInQueue;
-	private ConcurrentLinkedQueue<Object> m_packetQueue;
+	private volatile long m_bytesInWriter;
+	private final AtomicBoolean m_flushPending;
+	private final Runnable m_flushEvent;
+	private boolean m_directWriteBlocked;
+	private final WriteQueue m_packetQueue;
+	private final WriteQueue m_priorityQueue;
+	private final Object m_runnableLock;
+	private final AtomicLong m_bytesInPriorityQueue;
+	private WriteQueue m_chunkedQueue;
 	private PacketReader m_packetReader;
 	private volatile SocketObserver m_socketObserver;
+	private volatile Runnable m_closeHook;
     private final SocketReader m_socketReader;
     private final SocketWriter m_socketWriter;
 
@@ -50,11 +86,50 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 	{
 		super(service, socketChannel, address);
 		m_socketObserver = null;
+		m_closeHook = null;
 		m_maxQueueSize = -1;
-		m_timeOpened = -1;
+		m_writeBatchPackets = DEFAULT_WRITE_BATCH_PACKETS;
+		m_writeBatchBytes = DEFAULT_WRITE_BATCH_BYTES;
+		m_lowWriteWatermark = DEFAULT_LOW_WRITE_WATERMARK;
+		m_highWriteWatermark = DEFAULT_HIGH_WRITE_WATERMARK;
+		m_writable = new AtomicBoolean(true);
+		m_notifiedWritable = true;
+		m_writabilityEvent = new Runnable()
+		{
+			public void run()
+			{
+				notifyWritabilityChanged();
+			}
+		};
+		m_readsSuspended = false;
+		m_readBudget = 0;
+		m_readBudgetStart = 0;
+		m_suspendReadsEvent = new Runnable()
+		{
+			public void run()
+			{
+				if (m_readsSuspended) deleteInterest(SelectionKey.OP_READ);
+			}
+		};
+		m_resumeReadsEvent = new Runnable()
+		{
+			public void run()
+			{
+				continueReading();
+			}
+		};
+		m_timeOpened = NOT_OPENED;
 		m_packetReader = RawPacketReader.INSTANCE;
 		m_bytesInQueue = new AtomicLong(0L);
-		m_packetQueue = new ConcurrentLinkedQueue<Object>();
+		m_bytesInWriter = 0L;
+		m_flushPending = new AtomicBoolean(false);
+		m_flushEvent = new AddInterestEvent(SelectionKey.OP_WRITE);
+		m_directWriteBlocked = false;
+		m_packetQueue = new WriteQueue(WRITE_QUEUE_CAPACITY, MAX_WRITE_QUEUE_CAPACITY);
+		m_priorityQueue = new WriteQueue(PRIORITY_QUEUE_CAPACITY, MAX_PRIORITY_QUEUE_CAPACITY);
+		m_chunkedQueue = null;
+		m_runnableLock = new Object();
+		m_bytesInPriorityQueue = new AtomicLong(0L);
         m_socketReader = new SocketReader(service);
         m_socketWriter = new SocketWriter();
 	}
@@ -73,6 +148,7 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
             public void run()
             {
                 m_packetQueue.clear();
+                m_priorityQueue.clear();
                 close(null);
             }
         });
@@ -80,26 +156,250 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 
     public void queue(Runnable runnable)
     {
-        m_packetQueue.offer(runnable);
-        getNIOService().queue(new AddInterestEvent(SelectionKey.OP_WRITE));
+        // The runnable goes in the normal lane with a barrier in the high priority lane,
+        // so that neither lane passes it. The lock keeps runnables in the same order in both lanes.
+        synchronized (m_runnableLock)
+        {
+            m_packetQueue.add(runnable);
+            m_priorityQueue.addBarrier();
+        }
+        scheduleFlush();
     }
 
     public boolean write(byte[] packet, Object tag)
     {
-        long currentQueueSize = m_bytesInQueue.addAndGet(packet.length);
+        return enqueue(WriteQueue.BYTES, packet, packet.length, tag, PRIORITY_NORMAL);
+    }
+
+    public boolean write(byte[] packet, Object tag, int priority)
+    {
+        checkPriority(priority);
+        return enqueue(WriteQueue.BYTES, packet, packet.length, tag, priority);
+    }
+
+    public boolean write(ByteBuffer packet)
+    {
+        return write(packet, null);
+    }
+
+    public boolean write(ByteBuffer packet, Object tag)
+    {
+        return write(new ByteBuffer[] { packet }, tag);
+    }
+
+    public boolean write(ByteBuffer packet, Object tag, int priority)
+    {
+        return write(new ByteBuffer[] { packet }, tag, priority);
+    }
+
+    public boolean write(ByteBuffer[] packet)
+    {
+        return write(packet, null);
+    }
+
+    public boolean write(ByteBuffer[] packet, Object tag)
+    {
+        return write(packet, tag, PRIORITY_NORMAL);
+    }
+
+    public boolean write(ByteBuffer[] packet, Object tag, int priority)
+    {
+        checkPriority(priority);
+        // Use duplicates, so that writing does not move the position of the caller's buffers.
+        ByteBuffer[] buffers = new ByteBuffer[packet.length];
+        for (int i = 0; i < packet.length; i++)
+        {
+            buffers[i] = packet[i].duplicate();
+        }
+        return enqueue(WriteQueue.BUFFERS, buffers, NIOUtils.remaining(buffers), tag, priority);
+    }
+
+    public boolean writeFile(FileChannel file, long position, long count)
+    {
+        return writeFile(file, position, count, null);
+    }
+
+    public boolean writeFile(FileChannel file, long position, long count, Object tag)
+    {
+        return writeFile(file, position, count, tag, PRIORITY_NORMAL);
+    }
+
+    public boolean writeFile(FileChannel file, long position, long count, Object tag, int priority)
+    {
+        checkPriority(priority);
+        if (position < 0) throw new IllegalArgumentException("Position must not be negative, was " + position);
+        if (count < 0) throw new IllegalArgumentException("Count must not be negative, was " + count);
+        return enqueue(WriteQueue.FILE, new FileRegion(file, position, count), count, tag, priority);
+    }
+
+    /**
+     * Reserves space in the queue for a packet and queues it, or writes
+     * it directly if possible.
+     *
+     * @param kind the kind of packet, one of WriteQueue.BYTES, WriteQueue.BUFFERS or WriteQueue.FILE.
+     * @param packet the packet, either a byte[], a ByteBuffer[] or a FileRegion.
+     * @param length the number of bytes in the packet.
+     * @param tag the tag associated with the packet, may be null.
+     * @param priority the priority of the packet, deciding the lane it is queued in.
+     * @return true if the packet was queued, false if the queue limit was reached.
+     */
+    private boolean enqueue(int kind, Object packet, long length, Object tag, int priority)
+    {
+        long currentQueueSize = m_bytesInQueue.addAndGet(length);
         if (m_maxQueueSize > 0 && currentQueueSize > m_maxQueueSize)
         {
-            m_bytesInQueue.addAndGet(-packet.length);
+            m_bytesInQueue.addAndGet(-length);
             return false;
         }
 
+        // Try to write the packet immediately if we are on the NIOService thread.
+        if (kind != WriteQueue.FILE && writeDirectly(kind, packet, length, tag)) return true;
+
         // Add the packet.
-        m_packetQueue.offer(tag == null ? packet : new Object[] { packet, tag });
-        getNIOService().queue(new AddInterestEvent(SelectionKey.OP_WRITE));
+        if (priority == PRIORITY_HIGH)
+        {
+            m_bytesInPriorityQueue.addAndGet(length);
+            m_priorityQueue.add(kind, packet, tag, length);
+        }
+        else
+        {
+            m_packetQueue.add(kind, packet, tag, length);
+        }
+        // The flush scheduled below checks the watermarks again after draining the queue.
+        if (currentQueueSize + m_bytesInWriter > m_highWriteWatermark && m_writable.compareAndSet(true, false))
+        {
+            scheduleWritabilityChanged();
+        }
+        scheduleFlush();
 
         return true;
     }
 
+    /**
+     * Writes a packet directly to the channel, without waiting for the next select.
+     * <p>
+     * This is only possible when called on the NIOService thread while nothing is
+     * waiting to be written, and not while the socket is reading or writing, since
+     * the packet reader and writer may share buffers with the NIOService. If the
+     * channel does not accept the whole packet, the remainder is written when the socket
+     * is ready for write.
+     *
+     * @param kind the kind of packet.
+     * @param packet the packet to write.
+     * @param length the number of bytes in the packet.
+     * @param tag the tag associated with the packet, may be null.
+     * @return true if the packet was handled, false if it needs to be queued.
+     */
+    private boolean writeDirectly(int kind, Object packet, long length, Object tag)
+    {
+        if (!getNIOService().isServiceThread()) return false;
+        if (m_directWriteBlocked || !m_packetQueue.isEmpty() || !m_priorityQueue.isEmpty() || !m_socketWriter.isEmpty()) return false;
+        if (!isOpen() || getKey() == null || !isConnected()) return false;
+        m_directWriteBlocked = true;
+        try
+        {
+            addToWriter(kind, packet, tag);
+            // Remove the space reserved in the queue.
+            m_bytesInQueue.addAndGet(-length);
+            writeBufferedPackets();
+            // The channel may not have taken the whole packet.
+            checkWriteWatermarks();
+        }
+        catch (Exception e)
+        {
+            close(e);
+        }
+        finally
+        {
+            m_directWriteBlocked = false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares the unsent bytes, the write queue together with the bytes left in the batch
+     * being written, with the watermarks and changes the writability if needed.
+     * <p>
+     * The bytes left in the batch are saved, so that writes on other threads can compare
+     * the same measure with the high watermark.
+     * <p>
+     * Called on the NIOService thread after writing.
+     */
+    private void checkWriteWatermarks()
+    {
+        m_bytesInWriter = m_socketWriter.getBytesRemaining();
+        long unsent = m_bytesInQueue.get() + m_bytesInWriter;
+        if (unsent > m_highWriteWatermark)
+        {
+            if (m_writable.compareAndSet(true, false)) notifyWritabilityChanged();
+        }
+        else if (unsent <= m_lowWriteWatermark)
+        {
+            if (m_writable.compareAndSet(false, true)) notifyWritabilityChanged();
+        }
+    }
+
+    /**
+     * Makes sure the observer is told about a change in writability on the NIOService thread.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     */
+    private void scheduleWritabilityChanged()
+    {
+        if (getNIOService().isServiceThread())
+        {
+            notifyWritabilityChanged();
+        }
+        else
+        {
+            getNIOService().queue(m_writabilityEvent);
+        }
+    }
+
+    /**
+     * Notify the observer if the writability changed since it was last notified.
+     * Will log to the exception observer on NIOService if an error occurs.
+     * <p>
+     * Comparing with the last notification rather than passing on each change keeps the
+     * calls alternating, even if the change made on another thread is delivered late.
+     * <p>
+     * Called on the NIOService thread.
+     */
+    private void notifyWritabilityChanged()
+    {
+        boolean writable = m_writable.get();
+        if (writable == m_notifiedWritable || !isOpen()) return;
+        m_notifiedWritable = writable;
+        try
+        {
+            SocketObserver observer = m_socketObserver;
+            if (observer instanceof WritabilitySocketObserver)
+            {
+                ((WritabilitySocketObserver) observer).writabilityChanged(this, writable);
+            }
+        }
+        catch (Exception e)
+        {
+            getNIOService().notifyException(e);
+        }
+    }
+
+    /**
+     * Makes sure the socket will be flushed after something was added to the packet queue.
+     * <p>
+     * Only the first call after the queue was drained registers write interest with
+     * the NIOService, later calls see that a flush is already pending and return immediately.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     */
+    private void scheduleFlush()
+    {
+        if (m_flushPending.compareAndSet(false, true))
+        {
+            getNIOService().queue(m_flushEvent);
+        }
+    }
+
 	public boolean write(byte[] packet)
 	{
         return write(packet, null);
@@ -119,7 +419,43 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
     {
         try
         {
-            if (m_socketObserver != null) m_socketObserver.packetReceived(this, packet);
+            SocketObserver observer = m_socketObserver;
+            if (observer instanceof ByteBufferSocketObserver)
+            {
+                ((ByteBufferSocketObserver) observer).packetReceived(this, ByteBuffer.wrap(packet).asReadOnlyBuffer());
+            }
+            else if (observer != null)
+            {
+                observer.packetReceived(this, packet);
+            }
+        }
+        catch (Exception e)
+        {
+            getNIOService().notifyException(e);
+        }
+    }
+
+    /**
+     * Notify the observer that the packet is received, will log to the exception observer on NIOService if an error occurs.
+     * <p>
+     * The packet is passed on as a read-only view to observers accepting ByteBuffers,
+     * and copied to a byte array for other observers.
+     *
+     * @param packet the packet received.
+     */
+    private void notifyPacketReceived(ByteBuffer packet)
+    {
+        try
+        {
+            SocketObserver observer = m_socketObserver;
+            if (observer instanceof ByteBufferSocketObserver)
+            {
+                ((ByteBufferSocketObserver) observer).packetReceived(this, packet.asReadOnlyBuffer());
+            }
+            else if (observer != null)
+            {
+                observer.packetReceived(this, NIOUtils.getBytes(packet));
+            }
         }
         catch (Exception e)
         {
@@ -151,17 +487,10 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		try
 		{
 			if (!isConnected()) throw new IOException("Channel not connected.");
-            while (m_socketReader.read(getChannel()) > 0)
+            while (!m_readsSuspended && m_socketReader.read(getChannel()) > 0)
             {
-                byte[] packet;
-                ByteBuffer buffer = m_socketReader.getBuffer();
-				while (buffer.remaining() > 0
-                       && (packet = m_packetReader.nextPacket(buffer)) != null)
-				{
-                    if (packet == PacketReader.SKIP_PACKET) continue;
-                    notifyPacketReceived(packet);
-				}
-                m_socketReader.compact();
+                readPackets();
+                checkReadBudget();
 			}
 		}
 		catch (Exception e)
@@ -170,68 +499,317 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		}
 	}
 
+    /**
+     * Reads packets from bytes that were read from the channel earlier but left unconsumed,
+     * for instance because the packet reader had to wait for an SSL handshake task.
+     * <p>
+     * Called on the NIOService thread.
+     */
+    void readBufferedInput()
+    {
+        if (!isOpen()) return;
+        try
+        {
+            if (m_socketReader.readBuffered()) readPackets();
+        }
+        catch (Exception e)
+        {
+            close(e);
+        }
+    }
+
+    /**
+     * Reads and delivers all packets available in the buffer of the socket reader.
+     *
+     * @throws ProtocolViolationException if the reader finds an invalid packet.
+     */
+    private void readPackets() throws ProtocolViolationException
+    {
+        ByteBuffer buffer = m_socketReader.getBuffer();
+        while (buffer.remaining() > 0 && !m_readsSuspended)
+        {
+            // The reader may be changed by the observer, so check it for each packet.
+            if (m_packetReader instanceof ByteBufferPacketReader)
+            {
+                ByteBuffer packet = nextPacketBuffer(buffer);
+                if (packet == null) break;
+                notifyPacketReceived(packet);
+            }
+            else
+            {
+                byte[] packet = nextPacket(buffer);
+                if (packet == null) break;
+                if (packet == PacketReader.SKIP_PACKET) continue;
+                notifyPacketReceived(packet);
+            }
+        }
+        m_socketReader.compact();
+    }
+
+    /**
+     * Suspends reads if the read budget is used up.
+     * <p>
+     * Called on the NIOService thread after the packets of a read have been delivered.
+     */
+    private void checkReadBudget()
+    {
+        long budget = m_readBudget;
+        if (budget > 0 && m_socketReader.getBytesRead() - m_readBudgetStart >= budget)
+        {
+            m_readsSuspended = true;
+            deleteInterest(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Grants a new read budget and, unless reads are suspended, delivers any packets
+     * held back and continues reading.
+     * <p>
+     * Called on the NIOService thread.
+     */
+    private void continueReading()
+    {
+        m_readBudgetStart = m_socketReader.getBytesRead();
+        // Do not start reading before there is an observer to deliver packets to.
+        if (m_readsSuspended || m_socketObserver == null) return;
+        addInterest(SelectionKey.OP_READ);
+        readBufferedInput();
+    }
+
+    public void suspendReads()
+    {
+        m_readsSuspended = true;
+        if (getNIOService().isServiceThread())
+        {
+            m_suspendReadsEvent.run();
+        }
+        else
+        {
+            getNIOService().queue(m_suspendReadsEvent);
+        }
+    }
+
+    public void resumeReads()
+    {
+        m_readsSuspended = false;
+        // Always queued, since this may be called while packets are being delivered.
+        getNIOService().queue(m_resumeReadsEvent);
+    }
+
+    public boolean isReadSuspended()
+    {
+        return m_readsSuspended;
+    }
+
+    public void setReadBudget(long bytes)
+    {
+        m_readBudget = bytes;
+    }
+
+    public long getReadBudget()
+    {
+        return m_readBudget;
+    }
+
+    /**
+     * Retrieves the next packet from the packet reader, blocking direct writes while the reader runs.
+     *
+     * @param buffer the buffer to read from.
+     * @return the next packet, or null if no packet is available.
+     * @throws ProtocolViolationException if the reader finds an invalid packet.
+     */
+    private byte[] nextPacket(ByteBuffer buffer) throws ProtocolViolationException
+    {
+        m_directWriteBlocked = true;
+        try
+        {
+            return m_packetReader.nextPacket(buffer);
+        }
+        finally
+        {
+            m_directWriteBlocked = false;
+        }
+    }
+
+    /**
+     * Retrieves the next packet buffer from the packet reader, blocking direct writes while the reader runs.
+     *
+     * @param buffer the buffer to read from.
+     * @return the next packet, or null if no packet is available.
+     * @throws ProtocolViolationException if the reader finds an invalid packet.
+     */
+    private ByteBuffer nextPacketBuffer(ByteBuffer buffer) throws ProtocolViolationException
+    {
+        m_directWriteBlocked = true;
+        try
+        {
+            return ((ByteBufferPacketReader) m_packetReader).nextPacketBuffer(buffer);
+        }
+        finally
+        {
+            m_directWriteBlocked = false;
+        }
+    }
+
 	private void fillCurrentOutgoingBuffer() throws IOException
 	{
-        if (m_socketWriter.isEmpty())
+        int packets = m_socketWriter.getPacketCount();
+        long bytes = 0;
+        while (packets < m_writeBatchPackets && bytes < m_writeBatchBytes)
         {
-            // Retrieve next packet from the queue.
-            Object nextPacket = m_packetQueue.poll();
-            while (nextPacket != null && nextPacket instanceof Runnable)
+            // Retrieve next packet, emptying the high priority lane up to the next barrier first,
+            // unless the head of a lane is a file being read in chunks, which no other packet may split.
+            WriteQueue queue = m_chunkedQueue;
+            WriteQueue.Entry priorityEntry = null;
+            if (queue == null)
             {
-                ((Runnable) nextPacket).run();
-                nextPacket = m_packetQueue.poll();
+                priorityEntry = m_priorityQueue.peek();
+                boolean priorityPacket = priorityEntry != null && priorityEntry.getKind() != WriteQueue.BARRIER;
+                queue = priorityPacket ? m_priorityQueue : m_packetQueue;
             }
-            if (nextPacket == null) return;
-            byte[] data;
-            Object tag = null;
-            if (nextPacket instanceof byte[])
+            boolean priority = queue == m_priorityQueue;
+            WriteQueue.Entry entry = priority && priorityEntry != null ? priorityEntry : queue.peek();
+            if (entry == null) return;
+            int kind = entry.getKind();
+            if (kind == WriteQueue.RUNNABLE)
             {
-                data = (byte[]) nextPacket;
+                // Wait until the high priority lane reaches the barrier of the runnable,
+                // a producer still adding it schedules another flush.
+                if (priorityEntry == null) return;
+                // Runnables must see all packets before them written, so they end the batch.
+                if (!m_socketWriter.isEmpty()) return;
+                Runnable runnable = entry.getRunnable();
+                m_packetQueue.remove();
+                m_priorityQueue.remove();
+                runnable.run();
+                continue;
+            }
+            Object packet = entry.getPacket();
+            Object tag = entry.getTag();
+            long length = entry.getLength();
+            boolean transferFile = false;
+            if (kind == WriteQueue.FILE && !isTransferPossible())
+            {
+                // The packet writer needs the file in memory, so read it a chunk at a time.
+                FileRegion region = (FileRegion) packet;
+                ByteBuffer chunk = region.readChunk(FILE_CHUNK_SIZE);
+                length = chunk.remaining();
+                // The region stays at the head of the queue until its last chunk.
+                if (region.m_count == 0)
+                {
+                    queue.remove();
+                    m_chunkedQueue = null;
+                }
+                else
+                {
+                    tag = FILE_CHUNK;
+                    m_chunkedQueue = queue;
+                }
+                m_socketWriter.addPacket(new ByteBuffer[] { chunk }, tag);
             }
             else
             {
-                data = (byte[])((Object[])nextPacket)[0];
-                tag = ((Object[])nextPacket)[1];
+                // A file transferred as is must be written on its own.
+                transferFile = kind == WriteQueue.FILE;
+                if (transferFile && !m_socketWriter.isEmpty()) return;
+                // The entry is reused once removed, so its fields are read before this.
+                queue.remove();
+                addToWriter(kind, packet, tag);
             }
-            m_socketWriter.setPacket(data, tag);
             // Remove the space reserved in the queue.
-            m_bytesInQueue.addAndGet(-data.length);
+            m_bytesInQueue.addAndGet(-length);
+            if (priority) m_bytesInPriorityQueue.addAndGet(-length);
+            if (transferFile) return;
+            packets++;
+            bytes += length;
         }
 	}
 
+    /**
+     * Files can only be transferred directly to the channel if they do not need to pass through
+     * the packet writer.
+     *
+     * @return true if the current packet writer does not transform the data.
+     */
+    private boolean isTransferPossible()
+    {
+        return m_socketWriter.getPacketWriter() == RawPacketWriter.INSTANCE;
+    }
+
+    /**
+     * Adds a queued packet to the socket writer.
+     *
+     * @param kind the kind of packet, one of WriteQueue.BYTES, WriteQueue.BUFFERS or WriteQueue.FILE.
+     * @param packet the packet, either a byte[], a ByteBuffer[] or a FileRegion.
+     * @param tag the tag associated with the packet, may be null.
+     */
+    private void addToWriter(int kind, Object packet, Object tag)
+    {
+        switch (kind)
+        {
+            case WriteQueue.BYTES:
+                m_socketWriter.addPacket((byte[]) packet, tag);
+                break;
+            case WriteQueue.BUFFERS:
+                m_socketWriter.addPacket((ByteBuffer[]) packet, tag);
+                break;
+            default:
+                // Files passing through the packet writer are added in chunks by fillCurrentOutgoingBuffer.
+                FileRegion region = (FileRegion) packet;
+                m_socketWriter.addFile(region.m_file, region.m_position, region.m_count, tag);
+        }
+    }
+
 	public void socketReadyForWrite()
 	{
+		m_directWriteBlocked = true;
 		try
 		{
 			deleteInterest(SelectionKey.OP_WRITE);
+			// Clear the flag before draining, so that anything queued after this point schedules a new flush.
+			m_flushPending.set(false);
 			if (!isOpen()) return;
 			fillCurrentOutgoingBuffer();
-
-			// Return if there is nothing in the buffer to send.
-			if (m_socketWriter.isEmpty())
-            {
-                return;
-            }
-			while (!m_socketWriter.isEmpty())
-			{
-                boolean bytesWereWritten = m_socketWriter.write(getChannel());
-				if (!bytesWereWritten)
-				{
-					// Change the interest ops in case we still have things to write.
-					addInterest(SelectionKey.OP_WRITE);
-					return;
-				}
-				if (m_socketWriter.isEmpty())
-				{
-                    notifyPacketSent(m_socketWriter.getTag());
-					fillCurrentOutgoingBuffer();
-				}
-			}
+			writeBufferedPackets();
+			checkWriteWatermarks();
 		}
 		catch (Exception e)
 		{
 			close(e);
 		}
+		finally
+		{
+			m_directWriteBlocked = false;
+		}
+	}
+
+	/**
+	 * Writes the packets in the socket writer, refilling it from the queue until either
+	 * the queue is empty or the channel does not accept more bytes.
+	 *
+	 * @throws IOException if writing to the channel fails.
+	 */
+	private void writeBufferedPackets() throws IOException
+	{
+		while (!m_socketWriter.isEmpty())
+		{
+			boolean bytesWereWritten = m_socketWriter.write(getChannel());
+			if (!bytesWereWritten)
+			{
+				// Change the interest ops in case we still have things to write.
+				// Writes queued until then are covered by this flush.
+				m_flushPending.set(true);
+				addInterest(SelectionKey.OP_WRITE);
+				return;
+			}
+			// Notify for each packet that has left completely, in order.
+			while (m_socketWriter.hasSentPacket())
+			{
+				Object tag = m_socketWriter.removeSentPacket();
+				if (tag != FILE_CHUNK) notifyPacketSent(tag);
+			}
+			fillCurrentOutgoingBuffer();
+		}
 	}
 	
 	public void socketReadyForConnect()
@@ -242,7 +820,7 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 			if (getChannel().finishConnect())
 			{
 				deleteInterest(SelectionKey.OP_CONNECT);
-				m_timeOpened = System.currentTimeMillis();
+				m_timeOpened = System.nanoTime();
 				notifyObserverOfConnect();
 			}
 
@@ -275,7 +853,7 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 
 	public long getTimeOpen()
 	{
-		return m_timeOpened > 0 ? System.currentTimeMillis() - m_timeOpened : -1;
+		return m_timeOpened != NOT_OPENED ? (System.nanoTime() - m_timeOpened) / 1000000L : -1;
 	}
 
 	public long getWriteQueueSize()
@@ -283,6 +861,59 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		return m_bytesInQueue.get();
 	}
 
+	public long getWriteQueueSize(int priority)
+	{
+		checkPriority(priority);
+		long priorityBytes = m_bytesInPriorityQueue.get();
+		return priority == PRIORITY_HIGH ? priorityBytes : Math.max(0L, m_bytesInQueue.get() - priorityBytes);
+	}
+
+	private static void checkPriority(int priority)
+	{
+		if (priority != PRIORITY_NORMAL && priority != PRIORITY_HIGH) throw new IllegalArgumentException("Invalid priority " + priority);
+	}
+
+	public void setWriteBatchSize(int maxPackets, int maxBytes)
+	{
+		if (maxPackets < 1) throw new IllegalArgumentException("Batch must allow at least one packet, was " + maxPackets);
+		if (maxBytes < 1) throw new IllegalArgumentException("Batch must allow at least one byte, was " + maxBytes);
+		m_writeBatchPackets = maxPackets;
+		m_writeBatchBytes = maxBytes;
+	}
+
+	public int getWriteBatchPackets()
+	{
+		return m_writeBatchPackets;
+	}
+
+	public int getWriteBatchBytes()
+	{
+		return m_writeBatchBytes;
+	}
+
+	public void setWriteWatermarks(int low, int high)
+	{
+		if (low < 0) throw new IllegalArgumentException("Low watermark must not be negative, was " + low);
+		if (high < low) throw new IllegalArgumentException("High watermark must not be less than the low watermark, was " + high + " < " + low);
+		m_lowWriteWatermark = low;
+		m_highWriteWatermark = high;
+	}
+
+	public int getLowWriteWatermark()
+	{
+		return m_lowWriteWatermark;
+	}
+
+	public int getHighWriteWatermark()
+	{
+		return m_highWriteWatermark;
+	}
+
+	public boolean isWritable()
+	{
+		return m_writable.get();
+	}
+
 	public String toString()
 	{
 		try
@@ -314,6 +945,16 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		m_maxQueueSize = maxQueueSize;
 	}
 
+	public int getMaxReadBufferSize()
+	{
+		return m_socketReader.getMaxBufferSize();
+	}
+
+	public void setMaxReadBufferSize(int maxReadBufferSize)
+	{
+		m_socketReader.setMaxBufferSize(maxReadBufferSize);
+	}
+
 	public void listen(SocketObserver socketObserver)
 	{
 		markObserverSet();
@@ -374,15 +1015,76 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 		return (SocketChannel) super.getChannel();
 	}
 
+	/**
+	 * Sets a hook to run when this socket closes, after the observer is notified.
+	 * <p>
+	 * Must be set before the socket is registered with the NIOService.
+	 *
+	 * @param closeHook the hook to run on close, or null for none.
+	 */
+	void setCloseHook(Runnable closeHook)
+	{
+		m_closeHook = closeHook;
+	}
+
 	protected void shutdown(Exception e)
 	{
-		m_timeOpened = -1;
+		m_timeOpened = NOT_OPENED;
 		m_packetQueue.clear();
+		m_priorityQueue.clear();
+		m_chunkedQueue = null;
 		m_bytesInQueue.set(0);
+		m_bytesInPriorityQueue.set(0);
+		m_bytesInWriter = 0L;
+		m_socketReader.release();
 		notifyObserverOfDisconnect(e);
+		Runnable closeHook = m_closeHook;
+		if (closeHook != null) closeHook.run();
 	}
 
 
+    /**
+     * A region of a file queued for writing.
+     * <p>
+     * Reading chunks moves the start of the region, which is only done on the NIOService thread.
+     */
+    private static class FileRegion
+    {
+        private final FileChannel m_file;
+        private long m_position;
+        private long m_count;
+
+        private FileRegion(FileChannel file, long position, long count)
+        {
+            m_file = file;
+            m_position = position;
+            m_count = count;
+        }
+
+        /**
+         * Reads the start of the region into a new buffer, and removes it from the region.
+         *
+         * @param maxSize the maximum number of bytes to read.
+         * @return a buffer with the next bytes of the region.
+         * @throws IOException if reading failed or the file ended before the region.
+         */
+        private ByteBuffer readChunk(int maxSize) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(m_count, maxSize));
+            while (buffer.hasRemaining())
+            {
+                if (m_file.read(buffer, m_position + buffer.position()) < 0)
+                {
+                    throw new EOFException("File ended before all bytes were read.");
+                }
+            }
+            buffer.flip();
+            m_position += buffer.remaining();
+            m_count -= buffer.remaining();
+            return buffer;
+        }
+    }
+
     private class AddInterestEvent implements Runnable
     {
         private final int m_interest;
@@ -420,7 +1122,7 @@ class SocketChannelResponder extends ChannelResponder implements NIOSocket
 			{
 				m_responder.notifyObserverOfDisconnect(null);
 			}
-			m_responder.addInterest(SelectionKey.OP_READ);
+			if (!m_responder.m_readsSuspended) m_responder.addInterest(SelectionKey.OP_READ);
 		}
 
 		@Override
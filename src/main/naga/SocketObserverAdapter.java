@@ -26,7 +26,7 @@ package naga;
  * 
  * @author Christoffer Lerno
  */
-public class SocketObserverAdapter implements SocketObserver
+public class SocketObserverAdapter implements WritabilitySocketObserver
 {
 
 	public void connectionBroken(NIOSocket nioSocket, Exception exception)
@@ -45,4 +45,8 @@ public class SocketObserverAdapter implements SocketObserver
     public void packetSent(NIOSocket socket, Object tag)
     {
     }
+
+    public void writabilityChanged(NIOSocket socket, boolean writable)
+    {
+    }
 }
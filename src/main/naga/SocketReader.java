@@ -36,18 +36,37 @@ class SocketReader
 {
     private final NIOService m_nioService;
     private ByteBuffer m_previousBytes;
+    private ByteBuffer m_socketBuffer;
+    private ByteBuffer m_currentBuffer;
+    private volatile int m_maxBufferSize;
     private long m_bytesRead;
 
     SocketReader(NIOService nioService)
     {
         m_nioService = nioService;
+        m_socketBuffer = null;
+        m_currentBuffer = null;
+        m_maxBufferSize = -1;
         m_bytesRead = 0;
     }
 
     public int read(SocketChannel channel) throws IOException
     {
         // Retrieve the shared buffer.
-        ByteBuffer buffer = getBuffer();
+        ByteBuffer buffer = m_nioService.getSharedBuffer();
+
+        // If the unconsumed bytes fill the shared buffer, they need to move to a larger buffer.
+        if (previousBytesFill(buffer))
+        {
+            m_socketBuffer = grow(buffer.capacity(), m_previousBytes);
+            m_socketBuffer.flip();
+            m_previousBytes = null;
+        }
+
+        // If we hold a partial packet in our own buffer, keep reading into that buffer.
+        if (m_socketBuffer != null) return readIntoSocketBuffer(channel);
+
+        m_currentBuffer = buffer;
 
         // Clear the buffer.
         buffer.clear();
@@ -64,9 +83,6 @@ class SocketReader
         // We might encounter the end of the socket stream here.
         if (read < 0) throw new EOFException("Buffer read -1");
 
-        // If we have no space left in the buffer, we need to throw an exception.
-        if (!buffer.hasRemaining()) throw new BufferOverflowException();
-
         // Increase the bytes read.
         m_bytesRead += read;
 
@@ -99,21 +115,177 @@ class SocketReader
         return read;
     }
 
+    /**
+     * Makes the bytes left unconsumed by the previous read available through getBuffer()
+     * again, without reading from the channel.
+     *
+     * @return true if there were unconsumed bytes, false otherwise.
+     */
+    public boolean readBuffered()
+    {
+        if (m_socketBuffer != null)
+        {
+            m_currentBuffer = m_socketBuffer;
+            return m_socketBuffer.hasRemaining();
+        }
+        if (m_previousBytes == null) return false;
+        ByteBuffer buffer = m_nioService.getSharedBuffer();
+        if (previousBytesFill(buffer))
+        {
+            m_socketBuffer = grow(buffer.capacity(), m_previousBytes);
+            m_socketBuffer.flip();
+            buffer = m_socketBuffer;
+        }
+        else
+        {
+            buffer.clear();
+            buffer.put(m_previousBytes);
+            buffer.flip();
+        }
+        m_previousBytes = null;
+        m_currentBuffer = buffer;
+        return true;
+    }
+
+    /**
+     * Tests if the bytes left unconsumed fill the shared buffer, leaving no room to read more.
+     * <p>
+     * Both read() and readBuffered() move the bytes to a larger buffer in this case, so that a
+     * packet filling the whole shared buffer is handled the same way on both paths.
+     *
+     * @param sharedBuffer the shared buffer.
+     * @return true if there are unconsumed bytes and they need a larger buffer.
+     */
+    private boolean previousBytesFill(ByteBuffer sharedBuffer)
+    {
+        return m_previousBytes != null && m_previousBytes.remaining() >= sharedBuffer.capacity();
+    }
+
+    /**
+     * Reads into the socket's own buffer, appending to the unconsumed bytes already in the buffer.
+     *
+     * @param channel the channel to read from.
+     * @return the number of bytes read.
+     * @throws IOException if the read fails.
+     */
+    private int readIntoSocketBuffer(SocketChannel channel) throws IOException
+    {
+        ByteBuffer buffer = m_socketBuffer;
+
+        // Move the unconsumed bytes to the start of the buffer and prepare for writing.
+        buffer.compact();
+
+        // If the unconsumed bytes fill the buffer, move them to a larger buffer.
+        if (!buffer.hasRemaining())
+        {
+            buffer.flip();
+            ByteBuffer largerBuffer = grow(buffer.capacity(), buffer);
+            m_nioService.getBufferAllocator().release(buffer);
+            m_socketBuffer = largerBuffer;
+            buffer = largerBuffer;
+        }
+        m_currentBuffer = buffer;
+
+        // Read data
+        int read = channel.read(buffer);
+
+        // Prepare the buffer for reading.
+        buffer.flip();
+
+        // We might encounter the end of the socket stream here.
+        if (read < 0) throw new EOFException("Buffer read -1");
+
+        // Increase the bytes read.
+        m_bytesRead += read;
+
+        return read;
+    }
+
+    /**
+     * Copies unconsumed bytes into a larger buffer from the allocator, doubling the size of the
+     * buffer currently holding the bytes.
+     *
+     * @param currentSize the size of the buffer currently holding the bytes.
+     * @param bytes the unconsumed bytes.
+     * @return a larger buffer containing the bytes, ready for writing.
+     * @throws BufferOverflowException if the buffer already has reached the maximum buffer size.
+     */
+    private ByteBuffer grow(int currentSize, ByteBuffer bytes)
+    {
+        int maxSize = getMaxBufferSize();
+        if (currentSize >= maxSize) throw new BufferOverflowException();
+        ByteBuffer buffer = m_nioService.getBufferAllocator().allocate((int) Math.min(2L * currentSize, maxSize));
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    /**
+     * Returns the largest buffer this reader may grow to.
+     *
+     * @return the maximum buffer size, which is never less than the size of the shared buffer.
+     */
+    public int getMaxBufferSize()
+    {
+        return Math.max(m_maxBufferSize, m_nioService.getBufferSize());
+    }
+
+    /**
+     * Sets the largest buffer this reader may grow to.
+     * <p>
+     * <em>This method is thread-safe.</em>
+     *
+     * @param maxBufferSize the maximum buffer size, a value less than 1 limits the reader
+     * to the size of the shared buffer.
+     */
+    public void setMaxBufferSize(int maxBufferSize)
+    {
+        m_maxBufferSize = maxBufferSize;
+    }
+
     /**
      * Moves any unread bytes to a buffer to be available later.
      */
     public void compact()
     {
-        // Retrieve our shared buffer.
+        // Retrieve the buffer we last read into.
         ByteBuffer buffer = getBuffer();
 
+        if (buffer == m_socketBuffer)
+        {
+            // Unconsumed bytes stay in place, release the buffer once it is drained.
+            if (!buffer.hasRemaining()) release();
+            return;
+        }
+
         // If there is data remaining, copy that data.
         if (buffer.remaining() > 0)
         {
-            m_previousBytes = NIOUtils.copy(buffer);
+            if (m_nioService.isSocketReadBuffers())
+            {
+                m_socketBuffer = m_nioService.getBufferAllocator().allocate(buffer.capacity());
+                m_socketBuffer.put(buffer);
+                m_socketBuffer.flip();
+            }
+            else
+            {
+                m_previousBytes = NIOUtils.copy(buffer);
+            }
         }
     }
 
+    /**
+     * Releases the socket's own read buffer, discarding any unconsumed bytes.
+     * <p>
+     * Called on the NIOService thread.
+     */
+    public void release()
+    {
+        if (m_socketBuffer == null) return;
+        if (m_currentBuffer == m_socketBuffer) m_currentBuffer = null;
+        m_nioService.getBufferAllocator().release(m_socketBuffer);
+        m_socketBuffer = null;
+    }
+
     /**
      * Return the number of raw bytes read.
      *
@@ -125,12 +297,13 @@ class SocketReader
     }
 
     /**
-     * Returns the shared buffer (associated with the NIOService) for read/write.
+     * Returns the buffer used by the latest read. This is either the shared buffer (associated with the NIOService)
+     * or the socket's own buffer if it holds a partial packet.
      *
-     * @return the shared buffer-
+     * @return the buffer containing the bytes read.
      */
     public ByteBuffer getBuffer()
     {
-        return m_nioService.getSharedBuffer();
+        return m_currentBuffer == null ? m_nioService.getSharedBuffer() : m_currentBuffer;
     }
 }
@@ -23,28 +23,57 @@ package naga;
 
 import naga.packetwriter.RawPacketWriter;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 /**
  * A helper class to handle writes on a socket.
+ * <p>
+ * The writer holds a batch of one or more packets, which are written to the channel
+ * using a single gathering write. Packets are reported as sent in the order they were added,
+ * as soon as all of their bytes have been written.
+ * <p>
+ * Alternatively the writer may hold a single file region, which is written
+ * using FileChannel.transferTo without passing through the PacketWriter.
  *
  * @author Christoffer Lerno
  */
 class SocketWriter
 {
+    private final static ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
     private long m_bytesWritten;
     private ByteBuffer[] m_writeBuffers;
-    private PacketWriter m_packetWriter;
-    private Object m_tag;
+    private ByteBuffer[] m_batchBuffers;
+    private int m_bufferCount;
     private int m_currentBuffer;
+    private Object[] m_tags;
+    private int[] m_packetEnds;
+    private int m_packetCount;
+    private int m_sentPackets;
+    private PacketWriter m_packetWriter;
+    private FileChannel m_file;
+    private long m_filePosition;
+    private long m_fileRemaining;
 
     SocketWriter()
     {
         m_bytesWritten = 0;
         m_writeBuffers = null;
+        m_batchBuffers = NO_BUFFERS;
+        m_bufferCount = 0;
+        m_currentBuffer = 0;
+        m_tags = new Object[1];
+        m_packetEnds = new int[1];
+        m_packetCount = 0;
+        m_sentPackets = 0;
         m_packetWriter = RawPacketWriter.INSTANCE;
+        m_file = null;
+        m_filePosition = 0;
+        m_fileRemaining = 0;
     }
 
     public PacketWriter getPacketWriter()
@@ -57,34 +86,167 @@ class SocketWriter
         m_packetWriter = packetWriter;
     }
 
+    /**
+     * Returns true if there are no packets in the current batch, i.e. all packets
+     * have been written and reported as sent.
+     *
+     * @return true if the batch is empty.
+     */
     public boolean isEmpty()
     {
-        return m_writeBuffers == null;
+        return m_packetCount == 0;
     }
 
-    public void setPacket(byte[] data, Object tag)
+    /**
+     * Returns the number of packets in the current batch.
+     *
+     * @return the number of packets that are not yet reported as sent.
+     */
+    public int getPacketCount()
     {
-        if (!isEmpty()) throw new IllegalStateException("This method should only called when m_writeBuffers == null");
+        return m_packetCount - m_sentPackets;
+    }
 
-        // Set the current packet
-        m_writeBuffers = m_packetWriter.write(new ByteBuffer[] { ByteBuffer.wrap(data) });
-        m_currentBuffer = 0;
-        m_tag = tag;
+    /**
+     * Adds a packet to the current batch.
+     * <p>
+     * The packet is converted by the current PacketWriter immediately.
+     *
+     * @param data the packet data.
+     * @param tag the tag associated with the packet, may be null.
+     */
+    public void addPacket(byte[] data, Object tag)
+    {
+        addPacket(new ByteBuffer[] { ByteBuffer.wrap(data) }, tag);
     }
 
-    public boolean write(SocketChannel channel) throws IOException
+    /**
+     * Adds a packet to the current batch.
+     * <p>
+     * The packet is converted by the current PacketWriter immediately.
+     *
+     * @param data the packet data, between the position and limit of each buffer.
+     * @param tag the tag associated with the packet, may be null.
+     * @throws IllegalStateException if the writer holds a file region.
+     */
+    public void addPacket(ByteBuffer[] data, Object tag)
     {
-        // If the packet is empty, just clear data and return true
-        if (m_writeBuffers == null
-            || (m_currentBuffer == m_writeBuffers.length - 1
-                && !m_writeBuffers[m_currentBuffer].hasRemaining()))
+        if (m_file != null) throw new IllegalStateException("Tried to add a packet while writing a file.");
+        ByteBuffer[] buffers = m_packetWriter.write(data);
+        if (buffers == null) buffers = NO_BUFFERS;
+        // A batch that is added to while it is written may never drain, so drop the sent packets.
+        if (m_sentPackets > 0 && 2 * m_sentPackets >= m_packetCount) compactBatch();
+        if (m_packetCount == 0)
         {
-            m_writeBuffers = null;
-            return true;
+            // Write the buffers from the packet writer directly, unless more packets are added.
+            m_writeBuffers = buffers;
+            m_bufferCount = buffers.length;
+            m_currentBuffer = 0;
+        }
+        else
+        {
+            if (m_writeBuffers != m_batchBuffers || m_bufferCount + buffers.length > m_batchBuffers.length)
+            {
+                ByteBuffer[] batchBuffers = m_batchBuffers;
+                if (m_bufferCount + buffers.length > batchBuffers.length)
+                {
+                    batchBuffers = new ByteBuffer[Math.max(16, 2 * (m_bufferCount + buffers.length))];
+                }
+                System.arraycopy(m_writeBuffers, 0, batchBuffers, 0, m_bufferCount);
+                m_batchBuffers = batchBuffers;
+                m_writeBuffers = batchBuffers;
+            }
+            System.arraycopy(buffers, 0, m_writeBuffers, m_bufferCount, buffers.length);
+            m_bufferCount += buffers.length;
+        }
+        if (m_packetCount == m_tags.length)
+        {
+            Object[] tags = new Object[m_packetCount * 2];
+            int[] packetEnds = new int[m_packetCount * 2];
+            System.arraycopy(m_tags, 0, tags, 0, m_packetCount);
+            System.arraycopy(m_packetEnds, 0, packetEnds, 0, m_packetCount);
+            m_tags = tags;
+            m_packetEnds = packetEnds;
         }
+        m_tags[m_packetCount] = tag;
+        m_packetEnds[m_packetCount] = m_bufferCount;
+        m_packetCount++;
+    }
+
+    /**
+     * Moves the packets that are not yet reported as sent to the front of the batch.
+     */
+    private void compactBatch()
+    {
+        // Every buffer before the end of the last reported packet has been written.
+        int offset = m_packetEnds[m_sentPackets - 1];
+        int packets = m_packetCount - m_sentPackets;
+        System.arraycopy(m_tags, m_sentPackets, m_tags, 0, packets);
+        Arrays.fill(m_tags, packets, m_packetCount, null);
+        for (int i = 0; i < packets; i++)
+        {
+            m_packetEnds[i] = m_packetEnds[m_sentPackets + i] - offset;
+        }
+        m_packetCount = packets;
+        m_sentPackets = 0;
+        System.arraycopy(m_writeBuffers, offset, m_writeBuffers, 0, m_bufferCount - offset);
+        Arrays.fill(m_writeBuffers, m_bufferCount - offset, m_bufferCount, null);
+        m_bufferCount -= offset;
+        m_currentBuffer -= offset;
+    }
+
+    /**
+     * Sets a region of a file to be written, which is transferred to the channel as is.
+     * <p>
+     * The file region is treated as a single packet, and may only be added
+     * when the writer is empty.
+     *
+     * @param file the file to write from.
+     * @param position the position of the first byte to write.
+     * @param count the number of bytes to write.
+     * @param tag the tag associated with the file region, may be null.
+     * @throws IllegalStateException if the writer is not empty.
+     */
+    public void addFile(FileChannel file, long position, long count, Object tag)
+    {
+        if (!isEmpty()) throw new IllegalStateException("Tried to add a file to a non-empty writer.");
+        m_file = file;
+        m_filePosition = position;
+        m_fileRemaining = count;
+        m_tags[0] = tag;
+        m_packetEnds[0] = 0;
+        m_packetCount = 1;
+    }
+
+    /**
+     * Skips past all buffers that have no bytes remaining.
+     */
+    private void skipWrittenBuffers()
+    {
+        while (m_currentBuffer < m_bufferCount && !m_writeBuffers[m_currentBuffer].hasRemaining())
+        {
+            m_writeBuffers[m_currentBuffer++] = null;
+        }
+    }
+
+    /**
+     * Writes as much as possible of the current batch to the channel.
+     *
+     * @param channel the channel to write to.
+     * @return false if there were bytes to write but the channel did not accept any, true otherwise.
+     * @throws IOException if the write failed.
+     */
+    public boolean write(SocketChannel channel) throws IOException
+    {
+        if (m_file != null) return writeFile(channel);
+
+        skipWrittenBuffers();
+
+        // If the batch is empty, there is nothing to write.
+        if (m_currentBuffer == m_bufferCount) return true;
 
         // Write as much as possible to the channel.
-        long written = channel.write(m_writeBuffers, m_currentBuffer, m_writeBuffers.length - m_currentBuffer);
+        long written = channel.write(m_writeBuffers, m_currentBuffer, m_bufferCount - m_currentBuffer);
 
         // If nothing is written, then the buffer is full and writing should end temporarily.
         if (written == 0) return false;
@@ -93,31 +255,87 @@ class SocketWriter
         m_bytesWritten += written;
 
         // Delete written buffers, update currentBuffer
-        for (int i = m_currentBuffer; i < m_writeBuffers.length; i++)
+        skipWrittenBuffers();
+        return true;
+    }
+
+    /**
+     * Transfers as much as possible of the current file region to the channel.
+     *
+     * @param channel the channel to write to.
+     * @return false if there were bytes to write but the channel did not accept any, true otherwise.
+     * @throws IOException if the transfer failed or the file ended before the region was written.
+     */
+    private boolean writeFile(SocketChannel channel) throws IOException
+    {
+        if (m_fileRemaining == 0) return true;
+        long written = m_file.transferTo(m_filePosition, m_fileRemaining, channel);
+        if (written == 0)
         {
-            if (m_writeBuffers[i].hasRemaining())
-            {
-                m_currentBuffer = i;
-                break;
-            }
-            m_writeBuffers[i] = null;
+            // transferTo does not report end of file, so check it here.
+            if (m_filePosition >= m_file.size()) throw new EOFException("File ended before all bytes were written.");
+            return false;
         }
+        m_bytesWritten += written;
+        m_filePosition += written;
+        m_fileRemaining -= written;
+        return true;
+    }
 
-        // If the current buffer is empty, clear all.
-        if (m_writeBuffers[m_currentBuffer] == null)
+    /**
+     * Returns true if the oldest packet in the batch has been completely written.
+     *
+     * @return true if there is a packet to be reported as sent.
+     */
+    public boolean hasSentPacket()
+    {
+        if (m_sentPackets == m_packetCount) return false;
+        if (m_file != null) return m_fileRemaining == 0;
+        skipWrittenBuffers();
+        return m_packetEnds[m_sentPackets] <= m_currentBuffer;
+    }
+
+    /**
+     * Removes the oldest packet from the batch, this must only be called if
+     * hasSentPacket() returns true.
+     *
+     * @return the tag associated with the packet.
+     */
+    public Object removeSentPacket()
+    {
+        Object tag = m_tags[m_sentPackets];
+        m_tags[m_sentPackets++] = null;
+        if (m_sentPackets == m_packetCount)
         {
+            // The batch is done, so reset it.
+            m_packetCount = 0;
+            m_sentPackets = 0;
             m_writeBuffers = null;
+            m_bufferCount = 0;
+            m_currentBuffer = 0;
+            m_file = null;
         }
-        return true;
+        return tag;
     }
 
-    public long getBytesWritten()
+    /**
+     * Returns the number of bytes in the current batch that are not yet written.
+     *
+     * @return the number of bytes left to write, as converted by the PacketWriter.
+     */
+    public long getBytesRemaining()
     {
-        return m_bytesWritten;
+        if (m_file != null) return m_fileRemaining;
+        long remaining = 0;
+        for (int i = m_currentBuffer; i < m_bufferCount; i++)
+        {
+            remaining += m_writeBuffers[i].remaining();
+        }
+        return remaining;
     }
 
-    public Object getTag()
+    public long getBytesWritten()
     {
-        return m_tag;
+        return m_bytesWritten;
     }
 }
@@ -0,0 +1,57 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+/**
+ * A socket observer that is told when the socket's write queue crosses its watermarks.
+ * <p>
+ * A socket becomes unwritable when its write queue grows above the high watermark, and
+ * writable again when the queue has drained to the low watermark, see
+ * {@link NIOSocket#setWriteWatermarks(int, int)}. A producer can use this to pause
+ * its source - for example stop reading from an upstream socket - rather than
+ * dropping packets or queueing them without bound.
+ * <p>
+ * If a socket's observer implements this interface, changes in writability are
+ * delivered through {@link #writabilityChanged(NIOSocket, boolean)}.
+ *
+ * @author Christoffer Lerno
+ */
+public interface WritabilitySocketObserver extends SocketObserver
+{
+	/**
+	 * Called by the NIOService on the NIO thread when the socket's writability changes.
+	 * <p>
+	 * Calls always alternate between unwritable and writable, starting with unwritable.
+	 * Since writes may happen on other threads, the queue may already have crossed
+	 * the other watermark by the time the callback is made, in which case the change is
+	 * followed by another call.
+	 * <p>
+	 * <b>Note: Since this is a direct callback on the NIO thread, this method will suspend IO on
+	 * all other connections until the method returns. It is therefore strongly recommended
+	 * that the implementation of this method returns as quickly as possible to avoid blocking IO.</b>
+	 *
+	 * @param socket the socket whose writability changed.
+	 * @param writable true if the write queue has drained to the low watermark,
+	 * false if it has grown above the high watermark.
+	 */
+	void writabilityChanged(NIOSocket socket, boolean writable);
+}
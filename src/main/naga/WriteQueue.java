@@ -0,0 +1,363 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The write queue of a socket, a ring buffer of reusable entries that
+ * any number of threads may add to, but only one thread may take from.
+ * <p>
+ * Each slot of the ring holds an entry with the kind of the entry, a packet, its tag, a runnable and
+ * the byte count of the packet in separate fields. The entry of a slot is created the
+ * first time the slot is used and is then reused, so adding to the queue does not
+ * allocate once the ring has been filled once.
+ * <p>
+ * The ring follows the bounded queue design by Dmitry Vyukov: every slot has a sequence
+ * number telling producers when the slot is free and the consumer when it is filled.
+ * If the ring is full, entries are added to an overflow queue instead, which allocates.
+ * Once an entry is in the overflow queue, all later entries go there as well until the
+ * consumer has emptied it, so entries added by a thread are always taken in the order they were added.
+ * <p>
+ * Whenever the consumer reaches the overflow queue, it replaces the ring with one twice
+ * the size, up to the maximum capacity. A ring only allocates when it is created, so
+ * the ring soon holds a steady backlog, and the overflow queue is only needed for bursts.
+ * <p>
+ * <em>The add methods are thread-safe, all other methods must only be called by the consumer thread.</em>
+ *
+ * @author Christoffer Lerno
+ */
+class WriteQueue
+{
+	/** An entry holding a byte[] packet. */
+	final static int BYTES = 0;
+	/** An entry holding a ByteBuffer[] packet. */
+	final static int BUFFERS = 1;
+	/** An entry holding a region of a file. */
+	final static int FILE = 2;
+	/** An entry holding a runnable rather than a packet. */
+	final static int RUNNABLE = 3;
+	/** An entry marking the position of a runnable queued in another write queue. */
+	final static int BARRIER = 4;
+
+	/** The tail of a ring that has been replaced, where no more entries may be added. */
+	private final static long CLOSED = Long.MIN_VALUE;
+
+	private final int m_maxCapacity;
+	private volatile Ring m_ring;
+	private boolean m_overflowing;
+	private boolean m_peekedOverflow;
+	private final ConcurrentLinkedQueue<Entry> m_overflow;
+	private final AtomicInteger m_overflowCount;
+
+	/**
+	 * Creates a new write queue.
+	 *
+	 * @param capacity the number of slots in the ring to start with, must be a power of two.
+	 * @param maxCapacity the number of slots the ring may grow to, must be a power of two.
+	 * @throws IllegalArgumentException if a capacity is not a positive power of two,
+	 * or the maximum capacity is less than the initial capacity.
+	 */
+	WriteQueue(int capacity, int maxCapacity)
+	{
+		checkCapacity(capacity);
+		checkCapacity(maxCapacity);
+		if (maxCapacity < capacity) throw new IllegalArgumentException("Max capacity must be at least the capacity " + capacity + ", was " + maxCapacity);
+		m_maxCapacity = maxCapacity;
+		m_ring = new Ring(capacity);
+		m_overflowing = false;
+		m_peekedOverflow = false;
+		m_overflow = new ConcurrentLinkedQueue<Entry>();
+		m_overflowCount = new AtomicInteger(0);
+	}
+
+	private static void checkCapacity(int capacity)
+	{
+		if (capacity < 1 || (capacity & (capacity - 1)) != 0) throw new IllegalArgumentException("Capacity must be a power of two, was " + capacity);
+	}
+
+	/**
+	 * Returns the number of slots in the current ring.
+	 *
+	 * @return the capacity of the ring.
+	 */
+	int getCapacity()
+	{
+		return m_ring.m_entries.length;
+	}
+
+	/**
+	 * Adds a packet to the queue.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param kind the kind of packet, one of {@link #BYTES}, {@link #BUFFERS} or {@link #FILE}.
+	 * @param packet the packet.
+	 * @param tag the tag of the packet, may be null.
+	 * @param length the number of bytes in the packet.
+	 */
+	void add(int kind, Object packet, Object tag, long length)
+	{
+		add(kind, packet, tag, null, length);
+	}
+
+	/**
+	 * Adds a runnable to the queue.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param runnable the runnable.
+	 */
+	void add(Runnable runnable)
+	{
+		add(RUNNABLE, null, null, runnable, 0L);
+	}
+
+	/**
+	 * Adds a barrier to the queue, marking where a runnable was queued in another queue.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 */
+	void addBarrier()
+	{
+		add(BARRIER, null, null, null, 0L);
+	}
+
+	private void add(int kind, Object packet, Object tag, Runnable runnable, long length)
+	{
+		// Stay in the overflow queue while it holds entries, to preserve the order.
+		if (m_overflowCount.get() == 0 && addToRing(kind, packet, tag, runnable, length)) return;
+		Entry entry = new Entry();
+		entry.set(kind, packet, tag, runnable, length);
+		m_overflowCount.incrementAndGet();
+		m_overflow.offer(entry);
+	}
+
+	/**
+	 * Claims a free slot in the ring and fills it.
+	 *
+	 * @return true if the entry was added, false if the ring was full.
+	 */
+	private boolean addToRing(int kind, Object packet, Object tag, Runnable runnable, long length)
+	{
+		while (true)
+		{
+			Ring ring = m_ring;
+			long tail = ring.m_tail.get();
+			// The ring is being replaced, so read it again.
+			if (tail == CLOSED) continue;
+			int index = (int) tail & ring.m_mask;
+			long available = ring.m_sequences.get(index) - tail;
+			if (available < 0) return false;
+			if (available == 0 && ring.m_tail.compareAndSet(tail, tail + 1))
+			{
+				Entry entry = ring.m_entries[index];
+				if (entry == null)
+				{
+					entry = new Entry();
+					ring.m_entries[index] = entry;
+				}
+				entry.set(kind, packet, tag, runnable, length);
+				// Publish the entry to the consumer.
+				ring.m_sequences.set(index, tail + 1);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the first entry in the queue without removing it.
+	 * <p>
+	 * The entry is only valid until {@link #remove()} is called.
+	 *
+	 * @return the first entry, or null if the queue is empty or the first entry is still being added.
+	 */
+	Entry peek()
+	{
+		Ring ring = m_ring;
+		long head = ring.m_head;
+		int index = (int) head & ring.m_mask;
+		m_peekedOverflow = false;
+		if (ring.m_sequences.get(index) == head + 1) return ring.m_entries[index];
+		// Only look in the overflow queue once every claimed slot has been taken.
+		if (ring.m_tail.get() != head || m_overflowCount.get() == 0) return null;
+		if (!m_overflowing)
+		{
+			m_overflowing = true;
+			grow(ring, head);
+		}
+		// A producer that saw the overflow queue empty may still add to the ring before remove() is called.
+		m_peekedOverflow = true;
+		return m_overflow.peek();
+	}
+
+	/**
+	 * Replaces an empty ring with one twice the size, unless it is at the maximum capacity.
+	 *
+	 * @param ring the current ring.
+	 * @param head the head of the ring, which is also its tail.
+	 */
+	private void grow(Ring ring, long head)
+	{
+		int capacity = ring.m_entries.length;
+		if (capacity >= m_maxCapacity) return;
+		// Closing the ring fails if a producer claimed a slot, in which case the ring is kept for now.
+		if (!ring.m_tail.compareAndSet(head, CLOSED)) return;
+		m_ring = new Ring(capacity * 2);
+	}
+
+	/**
+	 * Removes the first entry in the queue, which must have been returned by {@link #peek()}.
+	 */
+	void remove()
+	{
+		if (m_peekedOverflow)
+		{
+			m_peekedOverflow = false;
+			if (m_overflow.poll() != null && m_overflowCount.decrementAndGet() == 0) m_overflowing = false;
+			return;
+		}
+		Ring ring = m_ring;
+		long head = ring.m_head;
+		int index = (int) head & ring.m_mask;
+		ring.m_entries[index].clear();
+		// Hand the slot back to the producers for the next lap.
+		ring.m_sequences.set(index, head + ring.m_entries.length);
+		ring.m_head = head + 1;
+	}
+
+	/**
+	 * Removes all entries that have been completely added.
+	 */
+	void clear()
+	{
+		while (peek() != null)
+		{
+			remove();
+		}
+	}
+
+	/**
+	 * Tests if the queue is empty.
+	 *
+	 * @return true if there are no entries in the queue, nor any being added.
+	 */
+	boolean isEmpty()
+	{
+		Ring ring = m_ring;
+		return ring.m_tail.get() == ring.m_head && m_overflowCount.get() == 0;
+	}
+
+	/**
+	 * The slots of the queue, with the sequence numbers that order access to them.
+	 */
+	private static class Ring
+	{
+		private final Entry[] m_entries;
+		private final AtomicLongArray m_sequences;
+		private final int m_mask;
+		private final AtomicLong m_tail;
+		private volatile long m_head;
+
+		private Ring(int capacity)
+		{
+			m_entries = new Entry[capacity];
+			m_sequences = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++)
+			{
+				m_sequences.set(i, i);
+			}
+			m_mask = capacity - 1;
+			m_tail = new AtomicLong(0L);
+			m_head = 0L;
+		}
+	}
+
+	/**
+	 * An entry in the write queue, either a packet or a runnable.
+	 */
+	static class Entry
+	{
+		private int m_kind;
+		private Object m_packet;
+		private Object m_tag;
+		private Runnable m_runnable;
+		private long m_length;
+
+		private void set(int kind, Object packet, Object tag, Runnable runnable, long length)
+		{
+			m_kind = kind;
+			m_packet = packet;
+			m_tag = tag;
+			m_runnable = runnable;
+			m_length = length;
+		}
+
+		private void clear()
+		{
+			set(BYTES, null, null, null, 0L);
+		}
+
+		/**
+		 * @return the kind of entry, one of {@link #BYTES}, {@link #BUFFERS}, {@link #FILE}, {@link #RUNNABLE} or {@link #BARRIER}.
+		 */
+		int getKind()
+		{
+			return m_kind;
+		}
+
+		/**
+		 * @return the packet, or null if this entry is a runnable.
+		 */
+		Object getPacket()
+		{
+			return m_packet;
+		}
+
+		/**
+		 * @return the tag of the packet, may be null.
+		 */
+		Object getTag()
+		{
+			return m_tag;
+		}
+
+		/**
+		 * @return the runnable, or null if this entry is a packet.
+		 */
+		Runnable getRunnable()
+		{
+			return m_runnable;
+		}
+
+		/**
+		 * @return the number of bytes in the packet.
+		 */
+		long getLength()
+		{
+			return m_length;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.eventmachine;
+
+/**
+ * The source of time used by an EventMachine.
+ * <p>
+ * All scheduling is done using the monotonic {@link #nanoTime()}, which is not affected
+ * by adjustments of the system clock. The wall clock time is only used to convert dates
+ * given to {@link EventMachine#executeAt(Runnable, java.util.Date)}.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @author Christoffer Lerno
+ */
+public interface Clock
+{
+	/** The default clock, using System.nanoTime() and System.currentTimeMillis() */
+	Clock SYSTEM = new Clock()
+	{
+		public long nanoTime()
+		{
+			return System.nanoTime();
+		}
+
+		public long currentTimeMillis()
+		{
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * Returns the current value of the monotonic clock.
+	 * <p>
+	 * Only the difference between two values is meaningful, see System#nanoTime().
+	 *
+	 * @return the current time in nanoseconds.
+	 */
+	long nanoTime();
+
+	/**
+	 * Returns the current wall clock time.
+	 *
+	 * @return the current time in milliseconds since the epoch, see System#currentTimeMillis().
+	 */
+	long currentTimeMillis();
+}
@@ -36,28 +36,68 @@ class DelayedAction implements Comparable<DelayedAction>, DelayedEvent
 {
 	private final static AtomicLong s_nextId = new AtomicLong(0L);
 	private volatile Runnable m_call;
-	private final long m_time;
+	private final long m_period;
+	private volatile long m_deadline;
+	private volatile long m_time;
 	private final long m_id;
+	private volatile TimerQueue m_queue;
+
+	// Links used by the HashedWheelTimerQueue, only accessed while holding its lock.
+	HashedWheelTimerQueue.Bucket m_bucket;
+	DelayedAction m_previous;
+	DelayedAction m_next;
+	long m_deadlineTick;
 
 	/**
 	 * Creates a new delayed action.
 	 *
 	 * @param call the Runnable to call at a later point.
-	 * @param time the time when the call should execute.
+	 * @param deadline the clock time (in nanoseconds) when the call should execute.
+	 * @param time the wall clock time (in milliseconds) when the call should execute.
 	 */
-	public DelayedAction(Runnable call, long time)
+	public DelayedAction(Runnable call, long deadline, long time)
+	{
+		this(call, deadline, time, 0);
+	}
+
+	/**
+	 * Creates a new periodic delayed action.
+	 *
+	 * @param call the Runnable to call at a later point.
+	 * @param deadline the clock time (in nanoseconds) when the call should first execute.
+	 * @param time the wall clock time (in milliseconds) when the call should first execute.
+	 * @param period the period in nanoseconds, positive for a fixed rate, negative for a fixed delay
+	 * and 0 if the action only executes once.
+	 */
+	public DelayedAction(Runnable call, long deadline, long time, long period)
 	{
 		m_call = call;
+		m_period = period;
+		m_deadline = deadline;
 		m_time = time;
 		m_id = s_nextId.getAndIncrement();
+		m_queue = null;
 	}
 
 	/**
-	 * Cancels this delayed action.
+	 * Sets the queue this action is added to, so that it can be removed
+	 * from the queue when cancelled.
+	 *
+	 * @param queue the queue holding this action.
+	 */
+	void setQueue(TimerQueue queue)
+	{
+		m_queue = queue;
+	}
+
+	/**
+	 * Cancels this delayed action, removing it from its queue if the queue supports it.
 	 */
 	public void cancel()
 	{
 		m_call = null;
+		TimerQueue queue = m_queue;
+		if (queue != null) queue.remove(this);
 	}
 
 	void run()
@@ -74,7 +114,7 @@ class DelayedAction implements Comparable<DelayedAction>, DelayedEvent
 	/**
 	 * Compares one delayed action to another.
 	 * <p>
-	 * Comparison is first done by execution time, then on id (i.e. creation order).
+	 * Comparison is first done by deadline, then on id (i.e. creation order).
 	 *
 	 * @param o the other delayed action.
 	 * @return -1, 0, 1 depending on where this action should be compared to the other action.
@@ -82,8 +122,8 @@ class DelayedAction implements Comparable<DelayedAction>, DelayedEvent
 	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
 	public int compareTo(DelayedAction o)
 	{
-		if (m_time < o.m_time) return -1;
-		if (m_time > o.m_time) return 1;
+		if (m_deadline < o.m_deadline) return -1;
+		if (m_deadline > o.m_deadline) return 1;
 		if (m_id < o.m_id) return -1;
 		return m_id > o.m_id ? 1 : 0;
 	}
@@ -98,6 +138,41 @@ class DelayedAction implements Comparable<DelayedAction>, DelayedEvent
 		return m_time;
 	}
 
+	/**
+	 * Returns the period of this action.
+	 *
+	 * @return the period in nanoseconds, positive for a fixed rate, negative for a fixed delay
+	 * and 0 if the action only executes once.
+	 */
+	long getPeriod()
+	{
+		return m_period;
+	}
+
+	/**
+	 * Sets the next execution time of a periodic action.
+	 * <p>
+	 * This must only be called while the action is not in a queue.
+	 *
+	 * @param deadline the clock time (in nanoseconds) when the call should execute.
+	 * @param time the wall clock time (in milliseconds) when the call should execute.
+	 */
+	void reschedule(long deadline, long time)
+	{
+		m_deadline = deadline;
+		m_time = time;
+	}
+
+	/**
+	 * Returns the time of the event machine's clock when this action should execute.
+	 *
+	 * @return the deadline in nanoseconds, see Clock#nanoTime().
+	 */
+	long getDeadline()
+	{
+		return m_deadline;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -34,10 +34,12 @@ public interface DelayedEvent
 	 * Note that cancelling a delayed event is *not* guaranteed to
 	 * remove the event from the queue. But it is guaranteed to
 	 * clear the reference to the Runnable associated with the event.
+	 * Event machines using a timer wheel remove the event immediately,
+	 * while the default priority queue keeps it until its time is reached.
 	 * The method may be called multiple times with no ill effect.
 	 * <p>
 	 * Cancelling an event while it is executing will not prevent it
-	 * from executing.
+	 * from executing. Cancelling a periodic event stops all further executions.
 	 * <p>
 	 * <em>This metod is thread-safe.</em>
 	 */
@@ -56,6 +58,8 @@ public interface DelayedEvent
 
 	/**
 	 * Returns the time when this event will execute. See Date#getTime().
+	 * <p>
+	 * For periodic events, this is the time of the next execution.
 	 *
 	 * @return a long representing the time when this event will occur.
 	 */
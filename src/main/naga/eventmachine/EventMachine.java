@@ -28,7 +28,7 @@ import java.io.IOException;
 import java.util.Date;
 import java.util.PriorityQueue;
 import java.util.Queue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * EventMachine is a simple event service for driving asynchronous and delayed tasks
@@ -71,13 +71,26 @@ import java.util.concurrent.PriorityBlockingQueue;
  * // Cancel the event before it is executed.
  * event.cancel();
  * </pre>
+ * By default, delayed events are kept in a priority queue. For large numbers of
+ * timers that are frequently cancelled or rescheduled, such as per-connection timeouts,
+ * the event machine can instead use a hashed timer wheel:
+ * <pre>
+ * // A wheel of 512 ticks of 10 ms each.
+ * EventMachine em = new EventMachine(10, TimeUnit.MILLISECONDS, 512);
+ * </pre>
+ * Timers use a monotonic clock, {@link Clock#SYSTEM} by default, so they are not affected by
+ * adjustments of the system time. The clock is read once at the start of each iteration
+ * of the event loop, and that value is used to find the events due to run.
  *
  * @author Christoffer Lerno
  */
 public class EventMachine
 {
 	private final NIOService m_service;
-	private final Queue<DelayedAction> m_queue;
+	private final TimerQueue m_queue;
+	private final Clock m_clock;
+	private volatile long m_loopTime;
+	private volatile long m_wallClockOffset;
 	private Thread m_runThread;
 
 	/**
@@ -86,10 +99,115 @@ public class EventMachine
 	 * @throws IOException if we fail to set up the internal NIOService.
 	 */
 	public EventMachine() throws IOException
+	{
+		this(Clock.SYSTEM);
+	}
+
+	/**
+	 * Creates a new EventMachine with an embedded NIOService, using the given clock.
+	 *
+	 * @param clock the clock to use for scheduling events.
+	 * @throws IOException if we fail to set up the internal NIOService.
+	 */
+	public EventMachine(Clock clock) throws IOException
+	{
+		this(clock, new PriorityTimerQueue());
+	}
+
+	/**
+	 * Creates a new EventMachine with an embedded NIOService, keeping delayed events
+	 * in a hashed timer wheel.
+	 * <p>
+	 * Scheduling and cancelling events on the wheel are O(1) operations, and cancelled
+	 * events are removed immediately. Events run on the first tick at or after their
+	 * scheduled time, so the tick duration is the resolution of the timer.
+	 * Events further away than one turn of the wheel (tick duration * ticks per wheel)
+	 * share buckets with nearer events and are skipped until their turn comes.
+	 *
+	 * @param tickDuration the duration of a tick, at least one nanosecond.
+	 * @param unit the time unit of the tick duration.
+	 * @param ticksPerWheel the number of ticks in the wheel, rounded up to a power of two.
+	 * @throws IOException if we fail to set up the internal NIOService.
+	 * @throws IllegalArgumentException if the tick duration is less than one nanosecond or
+	 * the number of ticks is less than 1.
+	 */
+	public EventMachine(long tickDuration, TimeUnit unit, int ticksPerWheel) throws IOException
+	{
+		this(Clock.SYSTEM, tickDuration, unit, ticksPerWheel);
+	}
+
+	/**
+	 * Creates a new EventMachine with an embedded NIOService, keeping delayed events
+	 * in a hashed timer wheel driven by the given clock.
+	 * <p>
+	 * See {@link #EventMachine(long, java.util.concurrent.TimeUnit, int)}.
+	 *
+	 * @param clock the clock to use for scheduling events.
+	 * @param tickDuration the duration of a tick, at least one nanosecond.
+	 * @param unit the time unit of the tick duration.
+	 * @param ticksPerWheel the number of ticks in the wheel, rounded up to a power of two.
+	 * @throws IOException if we fail to set up the internal NIOService.
+	 * @throws IllegalArgumentException if the tick duration is less than one nanosecond or
+	 * the number of ticks is less than 1.
+	 */
+	public EventMachine(Clock clock, long tickDuration, TimeUnit unit, int ticksPerWheel) throws IOException
+	{
+		this(clock, new HashedWheelTimerQueue(clock.nanoTime(), unit.toNanos(tickDuration), ticksPerWheel));
+	}
+
+	/**
+	 * Creates a new EventMachine with an embedded NIOService, using the given timer queue.
+	 *
+	 * @param clock the clock to use for scheduling events.
+	 * @param queue the queue to hold delayed events.
+	 * @throws IOException if we fail to set up the internal NIOService.
+	 */
+	private EventMachine(Clock clock, TimerQueue queue) throws IOException
 	{
 		m_service = new NIOService();
-		m_queue = new PriorityBlockingQueue<DelayedAction>();
+		m_queue = queue;
+		m_clock = clock;
 		m_runThread = null;
+		updateLoopTime();
+	}
+
+	/**
+	 * Reads the clock, updating the cached loop time and the offset between the
+	 * wall clock and the monotonic clock.
+	 *
+	 * @return the new loop time.
+	 */
+	private long updateLoopTime()
+	{
+		long now = m_clock.nanoTime();
+		m_wallClockOffset = TimeUnit.MILLISECONDS.toNanos(m_clock.currentTimeMillis()) - now;
+		m_loopTime = now;
+		return now;
+	}
+
+	/**
+	 * Returns the clock time read at the start of the current iteration of the event loop.
+	 * <p>
+	 * Events running on the event machine thread can use this instead of reading
+	 * the clock themselves.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the clock time in nanoseconds, see {@link Clock#nanoTime()}.
+	 */
+	public long getLoopTime()
+	{
+		return m_loopTime;
+	}
+
+	/**
+	 * Returns the clock used by this event machine.
+	 *
+	 * @return the clock used for scheduling.
+	 */
+	public Clock getClock()
+	{
+		return m_clock;
 	}
 
 	/**
@@ -119,19 +237,139 @@ public class EventMachine
 	 */
 	public DelayedEvent executeLater(Runnable runnable, long msDelay)
 	{
-		return queueAction(runnable, msDelay + System.currentTimeMillis());
+		return executeLater(runnable, msDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Execute a runnable on the Event/NIO thread after a delay given in any time unit.
+	 * <p>
+	 * Delays shorter than a millisecond are supported, but the event machine thread
+	 * will then poll the NIOService without blocking until the event is due.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param runnable the runnable to execute after the given delay.
+	 * @param delay the delay until executing this runnable.
+	 * @param unit the time unit of the delay.
+	 * @return the delayed event created to execute later. This can be used
+	 * to cancel the event.
+	 */
+	public DelayedEvent executeLater(Runnable runnable, long delay, TimeUnit unit)
+	{
+		long now = m_clock.nanoTime();
+		return queueAction(runnable, now + unit.toNanos(delay), TimeUnit.NANOSECONDS.toMillis(now + m_wallClockOffset) + unit.toMillis(delay));
+	}
+
+	/**
+	 * Execute a runnable on the Event/NIO thread periodically at a fixed rate.
+	 * <p>
+	 * The runnable first executes after the initial delay, then at initialDelay + period,
+	 * initialDelay + 2 * period and so on. Executions are scheduled from these
+	 * times rather than from when the previous execution happened, so the rate does not drift.
+	 * If executions are late by more than a period, the missed executions are
+	 * skipped rather than run back to back.
+	 * <p>
+	 * The same event is reused for all executions and runs until cancelled. Exceptions
+	 * thrown by the runnable are sent to the exception observer and do not stop the event.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param runnable the runnable to execute periodically.
+	 * @param initialDelay the delay until the first execution.
+	 * @param period the period between executions.
+	 * @param unit the time unit of the delay and period.
+	 * @return the delayed event executing the runnable. This can be used
+	 * to cancel all further executions.
+	 * @throws IllegalArgumentException if the period is not positive.
+	 */
+	public DelayedEvent executeAtFixedRate(Runnable runnable, long initialDelay, long period, TimeUnit unit)
+	{
+		if (period <= 0) throw new IllegalArgumentException("Period must be positive, was " + period);
+		return queuePeriodicAction(runnable, initialDelay, unit.toNanos(period), unit);
+	}
+
+	/**
+	 * Execute a runnable on the Event/NIO thread periodically with a fixed delay between
+	 * the end of one execution and the start of the next.
+	 * <p>
+	 * The same event is reused for all executions and runs until cancelled. Exceptions
+	 * thrown by the runnable are sent to the exception observer and do not stop the event.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param runnable the runnable to execute periodically.
+	 * @param initialDelay the delay until the first execution.
+	 * @param delay the delay between the end of an execution and the start of the next.
+	 * @param unit the time unit of the delays.
+	 * @return the delayed event executing the runnable. This can be used
+	 * to cancel all further executions.
+	 * @throws IllegalArgumentException if the delay is not positive.
+	 */
+	public DelayedEvent executeWithFixedDelay(Runnable runnable, long initialDelay, long delay, TimeUnit unit)
+	{
+		if (delay <= 0) throw new IllegalArgumentException("Delay must be positive, was " + delay);
+		return queuePeriodicAction(runnable, initialDelay, -unit.toNanos(delay), unit);
+	}
+
+	/**
+	 * Creates and queues a periodic action.
+	 *
+	 * @param runnable the runnable to execute periodically.
+	 * @param initialDelay the delay until the first execution.
+	 * @param period the period in nanoseconds, positive for a fixed rate, negative for a fixed delay.
+	 * @param unit the time unit of the initial delay.
+	 * @return the delayed action created and queued.
+	 */
+	private DelayedAction queuePeriodicAction(Runnable runnable, long initialDelay, long period, TimeUnit unit)
+	{
+		long deadline = m_clock.nanoTime() + unit.toNanos(initialDelay);
+		DelayedAction action = new DelayedAction(runnable, deadline, TimeUnit.NANOSECONDS.toMillis(deadline + m_wallClockOffset), period);
+		action.setQueue(m_queue);
+		m_queue.add(action);
+		m_service.wakeup();
+		return action;
+	}
+
+	/**
+	 * Puts a periodic action that has just executed back in the queue.
+	 * <p>
+	 * Called on the event machine thread.
+	 *
+	 * @param action the action to reschedule.
+	 * @param now the loop time when the action was polled.
+	 */
+	private void reschedule(DelayedAction action, long now)
+	{
+		long period = action.getPeriod();
+		long deadline;
+		if (period > 0)
+		{
+			// Fixed rate: keep to the original schedule, skipping any executions we are too late for.
+			deadline = action.getDeadline() + period;
+			if (deadline <= now) deadline += ((now - deadline) / period + 1) * period;
+		}
+		else
+		{
+			deadline = m_clock.nanoTime() - period;
+		}
+		action.reschedule(deadline, TimeUnit.NANOSECONDS.toMillis(deadline + m_wallClockOffset));
+		m_queue.add(action);
+		// If the action was cancelled while running, it could not be removed, so remove it now.
+		if (action.getCall() == null) m_queue.remove(action);
 	}
 
 	/**
 	 * Creates and queuest a delayed action for execution at a certain time.
 	 *
 	 * @param runnable the runnable to execute at the given time.
-	 * @param time the time date when this runnable should execute.
+	 * @param deadline the clock time when this runnable should execute.
+	 * @param time the wall clock time date when this runnable should execute.
 	 * @return the delayed action created and queued.
 	 */
-	private DelayedAction queueAction(Runnable runnable, long time)
+	private DelayedAction queueAction(Runnable runnable, long deadline, long time)
 	{
-		DelayedAction action = new DelayedAction(runnable, time);
+		DelayedAction action = new DelayedAction(runnable, deadline, time);
+		action.setQueue(m_queue);
 		m_queue.add(action);
 		m_service.wakeup();
 		return action;
@@ -150,7 +388,9 @@ public class EventMachine
 	 */
 	public DelayedEvent executeAt(Runnable runnable, Date date)
 	{
-		return queueAction(runnable, date.getTime());
+		// Convert the date using the offset from the last loop iteration, so that
+		// events at the same date keep their order.
+		return queueAction(runnable, TimeUnit.MILLISECONDS.toNanos(date.getTime()) - m_wallClockOffset, date.getTime());
 	}
 
 	/**
@@ -176,8 +416,8 @@ public class EventMachine
 	 */
 	public long timeOfNextEvent()
 	{
-		DelayedAction action = m_queue.peek();
-		return action == null ? Long.MAX_VALUE : action.getTime();
+		long deadline = m_queue.timeOfNextEvent();
+		return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(deadline + m_wallClockOffset);
 	}
 
 	/**
@@ -188,10 +428,20 @@ public class EventMachine
 	 * functions) on another thread if the EventMachine is used.
 	 */
 	public synchronized void start()
+	{
+		start("EventMachine");
+	}
+
+	/**
+	 * Causes the event machine to start running on a separate thread with the given name.
+	 *
+	 * @param threadName the name of the event machine thread.
+	 */
+	synchronized void start(String threadName)
 	{
 		if (m_runThread != null) throw new IllegalStateException("Service already running.");
         if (!m_service.isOpen()) throw new IllegalStateException("Service has been shut down.");
-		m_runThread = new Thread()
+		m_runThread = new Thread(threadName)
 		{
 			@Override
 			public void run()
@@ -240,37 +490,44 @@ public class EventMachine
 	 */
 	private void select() throws Throwable
 	{
+		long now = updateLoopTime();
+
 		// Run queued actions to be called
-		while (timeOfNextEvent() <= System.currentTimeMillis())
+		DelayedAction action;
+		boolean actionsRun = false;
+		while ((action = m_queue.poll(now)) != null)
 		{
             try
             {
-                runNextAction();
+                action.run();
             }
             catch (Throwable t)
             {
                 getNIOService().notifyException(t);
             }
+			if (action.getPeriod() != 0 && action.getCall() != null) reschedule(action, now);
+			actionsRun = true;
 		}
-		if (timeOfNextEvent() == Long.MAX_VALUE)
+		// Only read the clock again if running the actions took time.
+		if (actionsRun) now = m_clock.nanoTime();
+		long deadline = m_queue.timeOfNextEvent();
+		if (deadline == Long.MAX_VALUE)
         {
 			m_service.selectBlocking();
+			return;
+		}
+		long delay = TimeUnit.NANOSECONDS.toMillis(deadline - now);
+		if (delay > 0)
+		{
+			m_service.selectBlocking(delay);
 		}
 		else
 		{
-			long delay = timeOfNextEvent() - System.currentTimeMillis();
-			m_service.selectBlocking(Math.max(1, delay));
+			// Less than a millisecond left, so poll instead of blocking.
+			m_service.selectNonBlocking();
 		}
 	}
 
-	/**
-	 * Runs the next action in the queue.
-	 */
-	private void runNextAction()
-	{
-		m_queue.poll().run();
-	}
-
 	/**
 	 * Returns the NIOService used by this event service.
 	 *
@@ -288,7 +545,7 @@ public class EventMachine
 	 */
 	public Queue<DelayedEvent> getQueue()
 	{
-		return new PriorityQueue<DelayedEvent>(m_queue);
+		return new PriorityQueue<DelayedEvent>(m_queue.actions());
 	}
 
 	/**
@@ -0,0 +1,318 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.eventmachine;
+
+import naga.ExceptionObserver;
+import naga.NIOAbstractSocket;
+import naga.NIOService;
+import naga.NIOServiceGroup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of EventMachines, each running its own event loop on its own thread.
+ * <p>
+ * Every event machine in the group owns an NIOService and a timer queue. Sockets opened
+ * through the {@link #getServiceGroup() service group} are spread round-robin over
+ * the event machines, and tasks can be sent to the event machine owning a particular socket.
+ * Timers that touch the state of a socket then run on the same thread as the
+ * callbacks of that socket, so no locking is needed.
+ * <p>
+ * Example use:
+ * <pre>
+ * final EventMachineGroup group = new EventMachineGroup(4);
+ * NIOServerSocket serverSocket = group.getServiceGroup().openServerSocket(1234);
+ * serverSocket.listen(new ServerSocketObserverAdapter()
+ * {
+ *   public void newConnection(final NIOSocket nioSocket)
+ *   {
+ *     // Close the connection after 30 seconds, on the thread of the socket.
+ *     group.executeLater(nioSocket, new Runnable()
+ *     {
+ *       public void run()
+ *       {
+ *         nioSocket.close();
+ *       }
+ *     }, 30, TimeUnit.SECONDS);
+ *   }
+ * });
+ * serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+ * group.start();
+ * </pre>
+ *
+ * @author Christoffer Lerno
+ */
+public class EventMachineGroup
+{
+	private final EventMachine[] m_eventMachines;
+	private final NIOServiceGroup m_serviceGroup;
+	private final AtomicInteger m_nextEventMachine;
+	private boolean m_running;
+
+	/**
+	 * Creates a new group with one event machine per available processor.
+	 *
+	 * @throws IOException if we fail to set up the internal NIOServices.
+	 */
+	public EventMachineGroup() throws IOException
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a new group of event machines.
+	 *
+	 * @param eventMachines the number of event machines (and threads) to use.
+	 * @throws IOException if we fail to set up the internal NIOServices.
+	 * @throws IllegalArgumentException if the number of event machines is less than 1.
+	 */
+	public EventMachineGroup(int eventMachines) throws IOException
+	{
+		this(eventMachines, Clock.SYSTEM);
+	}
+
+	/**
+	 * Creates a new group of event machines using the given clock.
+	 *
+	 * @param eventMachines the number of event machines (and threads) to use.
+	 * @param clock the clock to use for scheduling events.
+	 * @throws IOException if we fail to set up the internal NIOServices.
+	 * @throws IllegalArgumentException if the number of event machines is less than 1.
+	 */
+	public EventMachineGroup(int eventMachines, Clock clock) throws IOException
+	{
+		this(eventMachines, clock, 0, null, 0);
+	}
+
+	/**
+	 * Creates a new group of event machines, each keeping its delayed events in a hashed timer wheel.
+	 * <p>
+	 * See {@link EventMachine#EventMachine(long, java.util.concurrent.TimeUnit, int)}.
+	 *
+	 * @param eventMachines the number of event machines (and threads) to use.
+	 * @param clock the clock to use for scheduling events.
+	 * @param tickDuration the duration of a tick, at least one nanosecond.
+	 * @param unit the time unit of the tick duration.
+	 * @param ticksPerWheel the number of ticks in each wheel, rounded up to a power of two.
+	 * @throws IOException if we fail to set up the internal NIOServices.
+	 * @throws IllegalArgumentException if the number of event machines is less than 1, if the
+	 * tick duration is less than one nanosecond or the number of ticks is less than 1.
+	 */
+	public EventMachineGroup(int eventMachines, Clock clock, long tickDuration, TimeUnit unit, int ticksPerWheel) throws IOException
+	{
+		if (eventMachines < 1) throw new IllegalArgumentException("The group must contain at least one event machine.");
+		m_eventMachines = new EventMachine[eventMachines];
+		m_nextEventMachine = new AtomicInteger(0);
+		m_running = false;
+		NIOService[] services = new NIOService[eventMachines];
+		try
+		{
+			for (int i = 0; i < eventMachines; i++)
+			{
+				m_eventMachines[i] = unit == null
+				                     ? new EventMachine(clock)
+				                     : new EventMachine(clock, tickDuration, unit, ticksPerWheel);
+				services[i] = m_eventMachines[i].getNIOService();
+			}
+		}
+		catch (IOException e)
+		{
+			closeServices();
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			closeServices();
+			throw e;
+		}
+		m_serviceGroup = new NIOServiceGroup(services);
+	}
+
+	/**
+	 * Closes the services of all event machines created so far.
+	 */
+	private void closeServices()
+	{
+		for (EventMachine eventMachine : m_eventMachines)
+		{
+			if (eventMachine != null) eventMachine.getNIOService().close();
+		}
+	}
+
+	/**
+	 * Starts the thread of every event machine in the group.
+	 *
+	 * @throws IllegalStateException if the group already is running or has been shut down.
+	 */
+	public synchronized void start()
+	{
+		if (m_running) throw new IllegalStateException("Group already running.");
+		if (!m_serviceGroup.isOpen()) throw new IllegalStateException("Group has been shut down.");
+		for (int i = 0; i < m_eventMachines.length; i++)
+		{
+			m_eventMachines[i].start("EventMachineGroup-" + i);
+		}
+		m_running = true;
+	}
+
+	/**
+	 * Stops the threads of the group, it may be restarted using start().
+	 *
+	 * @throws IllegalStateException if the group is not running.
+	 */
+	public synchronized void stop()
+	{
+		if (!m_running) throw new IllegalStateException("Group is not running.");
+		for (EventMachine eventMachine : m_eventMachines)
+		{
+			eventMachine.stop();
+		}
+		m_running = false;
+	}
+
+	/**
+	 * Stops the group if it is running and closes all NIOServices of the group.
+	 * It is not possible to restart the group after shutdown.
+	 */
+	public synchronized void shutdown()
+	{
+		if (m_running) stop();
+		closeServices();
+	}
+
+	/**
+	 * Returns the number of event machines in this group.
+	 *
+	 * @return the number of event machines.
+	 */
+	public int getEventMachineCount()
+	{
+		return m_eventMachines.length;
+	}
+
+	/**
+	 * Returns an event machine in this group.
+	 *
+	 * @param index the index of the event machine, 0 to getEventMachineCount() - 1.
+	 * @return the event machine at the given index.
+	 */
+	public EventMachine getEventMachine(int index)
+	{
+		return m_eventMachines[index];
+	}
+
+	/**
+	 * Returns the event machine owning a socket, i.e. the event machine running the
+	 * callbacks of the socket.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param socket a socket opened or accepted by the services of this group.
+	 * @return the event machine owning the socket.
+	 * @throws IllegalArgumentException if the socket is not owned by any event machine in the group.
+	 */
+	public EventMachine getEventMachine(NIOAbstractSocket socket)
+	{
+		for (EventMachine eventMachine : m_eventMachines)
+		{
+			if (eventMachine.getNIOService().isOwnerOf(socket)) return eventMachine;
+		}
+		throw new IllegalArgumentException("Socket " + socket + " is not owned by this group.");
+	}
+
+	/**
+	 * Returns the event machine that should handle the next task without
+	 * a particular socket. Event machines are handed out round-robin.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @return the next event machine to use.
+	 */
+	public EventMachine nextEventMachine()
+	{
+		int index = m_nextEventMachine.getAndIncrement() % m_eventMachines.length;
+		return m_eventMachines[index < 0 ? index + m_eventMachines.length : index];
+	}
+
+	/**
+	 * Returns a service group made up of the NIOServices of the event machines.
+	 * <p>
+	 * Sockets opened through the service group are spread over the event machines.
+	 * The service group is driven by the event machines, so it must not be
+	 * started or stopped.
+	 *
+	 * @return the service group of this event machine group.
+	 */
+	public NIOServiceGroup getServiceGroup()
+	{
+		return m_serviceGroup;
+	}
+
+	/**
+	 * Execute a runnable on the thread of the event machine owning a socket.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param socket the socket whose event machine should run the runnable.
+	 * @param runnable the runnable to execute on that thread.
+	 * @throws IllegalArgumentException if the socket is not owned by any event machine in the group.
+	 */
+	public void asyncExecute(NIOAbstractSocket socket, Runnable runnable)
+	{
+		getEventMachine(socket).asyncExecute(runnable);
+	}
+
+	/**
+	 * Execute a runnable on the thread of the event machine owning a socket after a delay.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param socket the socket whose event machine should run the runnable.
+	 * @param runnable the runnable to execute after the given time.
+	 * @param delay the delay until the runnable is executed.
+	 * @param unit the time unit of the delay.
+	 * @return the delayed event created to execute later. This can be used
+	 * to cancel the event.
+	 * @throws IllegalArgumentException if the socket is not owned by any event machine in the group.
+	 */
+	public DelayedEvent executeLater(NIOAbstractSocket socket, Runnable runnable, long delay, TimeUnit unit)
+	{
+		return getEventMachine(socket).executeLater(runnable, delay, unit);
+	}
+
+	/**
+	 * Sets the ExceptionObserver for all event machines in the group.
+	 * <p>
+	 * <em>This method is thread-safe.</em>
+	 *
+	 * @param observer the observer to use, null will cause exceptions to log to stderr
+	 */
+	public void setObserver(ExceptionObserver observer)
+	{
+		for (EventMachine eventMachine : m_eventMachines)
+		{
+			eventMachine.setObserver(observer);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.eventmachine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * A timer queue using a hashed timing wheel.
+ * <p>
+ * Time is divided into ticks of a fixed duration, and each action is put into the
+ * bucket of the first tick at or after its time. Buckets are doubly linked lists, so adding and
+ * cancelling an action are O(1) operations, and cancelled actions are removed immediately.
+ * <p>
+ * Actions are run when their tick is reached, so the tick duration is the resolution
+ * of the timer: actions may run up to one tick late, and actions due in the same tick run
+ * in the order they were added rather than strictly by time.
+ *
+ * @author Christoffer Lerno
+ */
+class HashedWheelTimerQueue implements TimerQueue
+{
+	private final Bucket[] m_wheel;
+	private final int m_mask;
+	private final long m_tickDuration;
+	private final long m_startTime;
+	private final Bucket m_expired;
+	private long m_currentTick;
+	private int m_size;
+
+	/**
+	 * Creates a new timer wheel.
+	 *
+	 * @param startTime the time of tick 0.
+	 * @param tickDuration the duration of a tick.
+	 * @param ticksPerWheel the number of buckets in the wheel, rounded up to a power of two.
+	 * @throws IllegalArgumentException if the tick duration or the number of ticks is less than 1.
+	 */
+	HashedWheelTimerQueue(long startTime, long tickDuration, int ticksPerWheel)
+	{
+		if (tickDuration < 1) throw new IllegalArgumentException("Tick duration must be at least 1, was " + tickDuration);
+		if (ticksPerWheel < 1 || ticksPerWheel > 1 << 30) throw new IllegalArgumentException("Ticks per wheel must be between 1 and 2^30, was " + ticksPerWheel);
+		int size = 1;
+		while (size < ticksPerWheel) size <<= 1;
+		m_wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+		{
+			m_wheel[i] = new Bucket();
+		}
+		m_mask = size - 1;
+		m_tickDuration = tickDuration;
+		m_startTime = startTime;
+		m_expired = new Bucket();
+		m_currentTick = 0;
+		m_size = 0;
+	}
+
+	public synchronized void add(DelayedAction action)
+	{
+		long time = action.getDeadline() - m_startTime;
+		// Round up to the first tick at or after the time of the action.
+		long tick = time <= 0 ? 0 : (time - 1) / m_tickDuration + 1;
+		action.m_deadlineTick = tick;
+		if (tick <= m_currentTick)
+		{
+			m_expired.append(action);
+		}
+		else
+		{
+			m_wheel[(int) (tick & m_mask)].append(action);
+		}
+		m_size++;
+	}
+
+	public synchronized boolean remove(DelayedAction action)
+	{
+		if (action.m_bucket == null) return false;
+		action.m_bucket.unlink(action);
+		m_size--;
+		return true;
+	}
+
+	public synchronized DelayedAction poll(long now)
+	{
+		if (m_expired.m_head == null) advance(now);
+		DelayedAction action = m_expired.m_head;
+		if (action == null) return null;
+		m_expired.unlink(action);
+		m_size--;
+		return action;
+	}
+
+	/**
+	 * Moves the wheel forward to the given time, moving all actions that are due to the expired list.
+	 *
+	 * @param now the current time.
+	 */
+	private void advance(long now)
+	{
+		long targetTick = (now - m_startTime) / m_tickDuration;
+		if (targetTick <= m_currentTick) return;
+		if (targetTick - m_currentTick >= m_wheel.length)
+		{
+			// We have passed at least one full turn, so every bucket needs to be checked.
+			// Buckets are then out of tick order, so sort the actions by time.
+			Bucket expired = new Bucket();
+			for (Bucket bucket : m_wheel)
+			{
+				expire(bucket, targetTick, expired);
+			}
+			ArrayList<DelayedAction> actions = new ArrayList<DelayedAction>();
+			expired.addTo(actions);
+			Collections.sort(actions);
+			for (DelayedAction action : actions)
+			{
+				expired.unlink(action);
+				m_expired.append(action);
+			}
+			m_currentTick = targetTick;
+			return;
+		}
+		while (m_currentTick < targetTick)
+		{
+			m_currentTick++;
+			expire(m_wheel[(int) (m_currentTick & m_mask)], m_currentTick, m_expired);
+		}
+	}
+
+	/**
+	 * Moves all actions of a bucket that are due at the given tick to another bucket.
+	 *
+	 * @param bucket the bucket to check.
+	 * @param tick the current tick.
+	 * @param expired the bucket to move the due actions to.
+	 */
+	private void expire(Bucket bucket, long tick, Bucket expired)
+	{
+		DelayedAction action = bucket.m_head;
+		while (action != null)
+		{
+			DelayedAction next = action.m_next;
+			// Actions in later turns of the wheel share the bucket, so these are kept.
+			if (action.m_deadlineTick <= tick)
+			{
+				bucket.unlink(action);
+				expired.append(action);
+			}
+			action = next;
+		}
+	}
+
+	public synchronized long timeOfNextEvent()
+	{
+		if (m_expired.m_head != null) return m_expired.m_head.getDeadline();
+		if (m_size == 0) return Long.MAX_VALUE;
+		// Find the first non-empty bucket, which is the earliest tick that may have actions due.
+		for (int i = 1; i <= m_wheel.length; i++)
+		{
+			long tick = m_currentTick + i;
+			if (m_wheel[(int) (tick & m_mask)].m_head != null)
+			{
+				return m_startTime + tick * m_tickDuration;
+			}
+		}
+		throw new IllegalStateException("Timer wheel holds " + m_size + " actions but all buckets are empty.");
+	}
+
+	public synchronized int size()
+	{
+		return m_size;
+	}
+
+	public synchronized Collection<DelayedAction> actions()
+	{
+		ArrayList<DelayedAction> actions = new ArrayList<DelayedAction>(m_size);
+		m_expired.addTo(actions);
+		for (Bucket bucket : m_wheel)
+		{
+			bucket.addTo(actions);
+		}
+		return actions;
+	}
+
+	/**
+	 * A doubly linked list of actions, linked through the actions themselves.
+	 */
+	static class Bucket
+	{
+		private DelayedAction m_head;
+		private DelayedAction m_tail;
+
+		private void append(DelayedAction action)
+		{
+			action.m_bucket = this;
+			action.m_previous = m_tail;
+			action.m_next = null;
+			if (m_tail == null)
+			{
+				m_head = action;
+			}
+			else
+			{
+				m_tail.m_next = action;
+			}
+			m_tail = action;
+		}
+
+		private void unlink(DelayedAction action)
+		{
+			if (action.m_previous == null)
+			{
+				m_head = action.m_next;
+			}
+			else
+			{
+				action.m_previous.m_next = action.m_next;
+			}
+			if (action.m_next == null)
+			{
+				m_tail = action.m_previous;
+			}
+			else
+			{
+				action.m_next.m_previous = action.m_previous;
+			}
+			action.m_bucket = null;
+			action.m_previous = null;
+			action.m_next = null;
+		}
+
+		private void addTo(Collection<DelayedAction> actions)
+		{
+			for (DelayedAction action = m_head; action != null; action = action.m_next)
+			{
+				actions.add(action);
+			}
+		}
+	}
+}
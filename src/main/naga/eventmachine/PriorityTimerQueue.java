@@ -0,0 +1,78 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.eventmachine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * A timer queue keeping the actions in a priority queue ordered by time.
+ * <p>
+ * Adding and polling actions costs O(log n), and cancelled actions remain
+ * in the queue until their time is reached.
+ *
+ * @author Christoffer Lerno
+ */
+class PriorityTimerQueue implements TimerQueue
+{
+	private final PriorityBlockingQueue<DelayedAction> m_queue;
+
+	PriorityTimerQueue()
+	{
+		m_queue = new PriorityBlockingQueue<DelayedAction>();
+	}
+
+	public void add(DelayedAction action)
+	{
+		m_queue.add(action);
+	}
+
+	public boolean remove(DelayedAction action)
+	{
+		// Cancelled actions are left in the queue and discarded when they are due.
+		return false;
+	}
+
+	public DelayedAction poll(long now)
+	{
+		DelayedAction action = m_queue.peek();
+		if (action == null || action.getDeadline() > now) return null;
+		return m_queue.poll();
+	}
+
+	public long timeOfNextEvent()
+	{
+		DelayedAction action = m_queue.peek();
+		return action == null ? Long.MAX_VALUE : action.getDeadline();
+	}
+
+	public int size()
+	{
+		return m_queue.size();
+	}
+
+	public Collection<DelayedAction> actions()
+	{
+		return new ArrayList<DelayedAction>(m_queue);
+	}
+}
@@ -0,0 +1,80 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.eventmachine;
+
+import java.util.Collection;
+
+/**
+ * The structure holding the delayed actions of an EventMachine.
+ * <p>
+ * All times are clock times in nanoseconds, see {@link Clock#nanoTime()}.
+ * <p>
+ * All methods must be thread-safe, since actions may be added and cancelled from any thread.
+ *
+ * @author Christoffer Lerno
+ */
+interface TimerQueue
+{
+	/**
+	 * Adds an action to the queue.
+	 *
+	 * @param action the action to add.
+	 */
+	void add(DelayedAction action);
+
+	/**
+	 * Removes an action from the queue, if the queue supports early removal.
+	 *
+	 * @param action the action to remove.
+	 * @return true if the action was removed.
+	 */
+	boolean remove(DelayedAction action);
+
+	/**
+	 * Removes and returns the next action that is due.
+	 *
+	 * @param now the current time.
+	 * @return the next action due to run at the given time, or null if no action is due.
+	 */
+	DelayedAction poll(long now);
+
+	/**
+	 * Returns the time when the queue next needs to be polled.
+	 *
+	 * @return the time when the next action may be due, or Long.MAX_VALUE if the queue is empty.
+	 */
+	long timeOfNextEvent();
+
+	/**
+	 * Returns the number of actions in the queue.
+	 *
+	 * @return the number of queued actions.
+	 */
+	int size();
+
+	/**
+	 * Returns a copy of all actions in the queue.
+	 *
+	 * @return all actions in the queue, in no particular order.
+	 */
+	Collection<DelayedAction> actions();
+}
@@ -0,0 +1,173 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.examples;
+
+import naga.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Measures how fast a server socket accepts a burst of connections from local clients.
+ * <p>
+ * A number of client threads connect to a local server socket as fast as they can,
+ * resetting each connection right after it opens. The benchmark is run with one accept per
+ * select, and then with the given accept batch size, see {@link NIOServerSocket#setAcceptBatchSize(int)}.
+ * <p>
+ * Run using {@code java naga.examples.AcceptBenchmark [connections] [client threads] [batch size]}
+ *
+ * @author Christoffer Lerno
+ */
+public class AcceptBenchmark
+{
+	private final NIOServerSocket m_serverSocket;
+	private final int m_clients;
+
+	AcceptBenchmark(NIOServerSocket serverSocket, int clients)
+	{
+		m_serverSocket = serverSocket;
+		m_clients = clients;
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args command line arguments, optionally the number of connections, client threads and the batch size.
+	 */
+	public static void main(String... args)
+	{
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : NIOServerSocket.DEFAULT_ACCEPT_BATCH_SIZE;
+		try
+		{
+			final NIOService service = new NIOService();
+			NIOServerSocket serverSocket = service.openServerSocket(new InetSocketAddress("localhost", 0), 1024);
+			serverSocket.listen(new ServerSocketObserverAdapter()
+			{
+				public void newConnection(NIOSocket nioSocket)
+				{
+					nioSocket.close();
+				}
+			});
+			serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+			Thread serviceThread = new Thread("AcceptBenchmark")
+			{
+				public void run()
+				{
+					try
+					{
+						while (service.isOpen())
+						{
+							service.selectBlocking();
+						}
+					}
+					catch (Exception e)
+					{
+						if (service.isOpen()) e.printStackTrace();
+					}
+				}
+			};
+			serviceThread.start();
+			AcceptBenchmark benchmark = new AcceptBenchmark(serverSocket, clients);
+
+			// Warm up, then measure.
+			serverSocket.setAcceptBatchSize(1);
+			benchmark.run(connections);
+			double single = benchmark.run(connections);
+			System.out.printf("Batch size %4d: %10.0f accepts per second%n", 1, single);
+
+			serverSocket.setAcceptBatchSize(batchSize);
+			benchmark.run(connections);
+			double batched = benchmark.run(connections);
+			System.out.printf("Batch size %4d: %10.0f accepts per second%n", batchSize, batched);
+			service.close();
+			serviceThread.join();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Opens the connections from the client threads and waits until the server socket has accepted all of them.
+	 *
+	 * @param connections the number of connections to open.
+	 * @return the number of connections accepted per second.
+	 * @throws InterruptedException if the benchmark was interrupted.
+	 */
+	double run(int connections) throws InterruptedException
+	{
+		final InetAddress address = m_serverSocket.socket().getInetAddress();
+		final int port = m_serverSocket.socket().getLocalPort();
+		long target = m_serverSocket.getTotalAcceptedConnections() + connections;
+		Thread[] threads = new Thread[m_clients];
+		long start = System.nanoTime();
+		for (int i = 0; i < threads.length; i++)
+		{
+			final int count = connections / m_clients + (i < connections % m_clients ? 1 : 0);
+			threads[i] = new Thread("AcceptBenchmark-client-" + i)
+			{
+				public void run()
+				{
+					for (int j = 0; j < count; j++)
+					{
+						connect(address, port);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		while (m_serverSocket.getTotalAcceptedConnections() < target)
+		{
+			Thread.sleep(1);
+		}
+		return connections / ((System.nanoTime() - start) / 1000000000.0);
+	}
+
+	/**
+	 * Connects to the server, then resets the connection so that it leaves no socket in TIME_WAIT.
+	 *
+	 * @param address the address of the server.
+	 * @param port the port of the server.
+	 */
+	private static void connect(InetAddress address, int port)
+	{
+		try
+		{
+			Socket socket = new Socket(address, port);
+			socket.setSoLinger(true, 0);
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
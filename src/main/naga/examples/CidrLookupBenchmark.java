@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.examples;
+
+import naga.CidrAcceptor;
+import naga.CidrRules;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Measures the number of lookups per second of a {@link CidrAcceptor} with a large set of rules.
+ * <p>
+ * The benchmark denies a number of random IPv4 ranges, and a fifth as many random IPv6
+ * ranges, then checks random IPv4 and IPv6 addresses against the rules.
+ * <p>
+ * Run using {@code java naga.examples.CidrLookupBenchmark [rules] [lookups]}
+ *
+ * @author Christoffer Lerno
+ */
+public class CidrLookupBenchmark
+{
+	private final static int ADDRESSES = 4096;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args command line arguments, optionally the number of IPv4 rules and lookups.
+	 */
+	public static void main(String... args)
+	{
+		int ruleCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+		try
+		{
+			Random random = new Random(0);
+			CidrRules rules = new CidrRules(true);
+			for (int i = 0; i < ruleCount; i++)
+			{
+				rules.deny(randomAddress(random, 4), 8 + random.nextInt(25));
+			}
+			for (int i = 0; i < ruleCount / 5; i++)
+			{
+				rules.deny(randomAddress(random, 16), 16 + random.nextInt(113));
+			}
+			long start = System.nanoTime();
+			CidrAcceptor acceptor = new CidrAcceptor(rules);
+			System.out.printf("Swapped in %d rules in %.1f ms%n", rules.size(), (System.nanoTime() - start) / 1000000.0);
+
+			InetSocketAddress[] addresses = new InetSocketAddress[ADDRESSES];
+			for (int i = 0; i < addresses.length; i++)
+			{
+				addresses[i] = new InetSocketAddress(randomAddress(random, i % 2 == 0 ? 4 : 16), 1000);
+			}
+			// Warm up, then measure.
+			run(acceptor, addresses, lookups);
+			start = System.nanoTime();
+			int allowed = run(acceptor, addresses, lookups);
+			double seconds = (System.nanoTime() - start) / 1000000000.0;
+			System.out.printf("%.0f lookups per second, %.1f%% allowed%n", lookups / seconds, 100.0 * allowed / lookups);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private static int run(CidrAcceptor acceptor, InetSocketAddress[] addresses, int lookups)
+	{
+		int allowed = 0;
+		for (int i = 0; i < lookups; i++)
+		{
+			if (acceptor.acceptConnection(addresses[i & (ADDRESSES - 1)])) allowed++;
+		}
+		return allowed;
+	}
+
+	private static InetAddress randomAddress(Random random, int length) throws UnknownHostException
+	{
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return InetAddress.getByAddress(bytes);
+	}
+}
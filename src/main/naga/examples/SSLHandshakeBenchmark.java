@@ -0,0 +1,244 @@
+/*
+Copyright (c) 2008-2011 Christoffer Lernö
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package naga.examples;
+
+import naga.*;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+
+/**
+ * Compares the cost of full SSL handshakes with handshakes resuming a cached session.
+ * <p>
+ * The benchmark generates a temporary keystore using keytool, then opens one connection
+ * at a time to a local SSL echo server, timing each connection from opening the socket until
+ * the first packet is echoed back. The full handshakes use engines created without peer hints,
+ * so no session can be resumed, while the resumed handshakes use an {@link SSLEngineFactory}.
+ * <p>
+ * Run using {@code java naga.examples.SSLHandshakeBenchmark [connections] [protocol]}
+ *
+ * @author Christoffer Lerno
+ */
+public class SSLHandshakeBenchmark
+{
+	private final static String PASSWORD = "benchmark";
+
+	private final NIOService m_service;
+	private final SSLContext m_sslContext;
+	private final int m_port;
+	private int m_remaining;
+	private long m_totalTime;
+
+	SSLHandshakeBenchmark(NIOService service, SSLContext sslContext, int port)
+	{
+		m_service = service;
+		m_sslContext = sslContext;
+		m_port = port;
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args command line arguments, optionally the number of connections and the SSL protocol.
+	 */
+	public static void main(String... args)
+	{
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		String protocol = args.length > 1 ? args[1] : "TLS";
+		try
+		{
+			SSLContext sslContext = createContext(protocol);
+			NIOService service = new NIOService();
+			SSLEngineFactory serverFactory = new SSLEngineFactory(sslContext);
+			NIOServerSocketSSL serverSocket = service.openSSLServerSocket(serverFactory, new InetSocketAddress("localhost", 0), -1);
+			serverSocket.listen(new ServerSocketObserverAdapter()
+			{
+				public void newConnection(NIOSocket nioSocket)
+				{
+					nioSocket.listen(new SocketObserverAdapter()
+					{
+						public void connectionOpened(NIOSocket nioSocket)
+						{
+							start(nioSocket);
+						}
+
+						public void packetReceived(NIOSocket socket, byte[] packet)
+						{
+							socket.write(packet);
+						}
+					});
+				}
+			});
+			serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+			SSLHandshakeBenchmark benchmark = new SSLHandshakeBenchmark(service, sslContext, serverSocket.socket().getLocalPort());
+
+			// Warm up, then measure.
+			benchmark.run(null, connections);
+			double full = benchmark.run(null, connections);
+			System.out.printf("Full handshakes:    %8.3f ms per connection%n", full);
+
+			SSLEngineFactory clientFactory = new SSLEngineFactory(sslContext);
+			benchmark.run(clientFactory, connections);
+			double resumed = benchmark.run(clientFactory, connections);
+			System.out.printf("Resumed handshakes: %8.3f ms per connection (client hit rate %.1f%%)%n",
+			                  resumed, 100 * clientFactory.getHitRate());
+			System.out.printf("Server: %d full, %d resumed handshakes%n",
+			                  serverFactory.getFullHandshakes(), serverFactory.getResumedHandshakes());
+			service.close();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates an SSLContext with a newly generated key pair, trusting its own certificate.
+	 *
+	 * @param protocol the protocol of the context.
+	 * @return the new context.
+	 * @throws Exception if generating the keystore or initializing the context failed.
+	 */
+	private static SSLContext createContext(String protocol) throws Exception
+	{
+		File file = File.createTempFile("naga", ".jks");
+		file.delete();
+		try
+		{
+			String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+			Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "naga", "-keyalg", "RSA",
+			                                     "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1",
+			                                     "-storetype", "JKS", "-keystore", file.getPath(),
+			                                     "-storepass", PASSWORD, "-keypass", PASSWORD)
+					.redirectErrorStream(true).start();
+			InputStream output = process.getInputStream();
+			while (output.read() != -1)
+			{
+				// Discard the output of keytool.
+			}
+			if (process.waitFor() != 0) throw new IOException("keytool failed to generate a keystore.");
+			KeyStore keyStore = KeyStore.getInstance("JKS");
+			FileInputStream in = new FileInputStream(file);
+			try
+			{
+				keyStore.load(in, PASSWORD.toCharArray());
+			}
+			finally
+			{
+				in.close();
+			}
+			KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagerFactory.init(keyStore, PASSWORD.toCharArray());
+			TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagerFactory.init(keyStore);
+			SSLContext sslContext = SSLContext.getInstance(protocol);
+			sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+			return sslContext;
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	/**
+	 * Disables Nagle's algorithm, which would otherwise delay the last flight of the
+	 * handshake, then begins the handshake.
+	 *
+	 * @param socket the socket to start.
+	 */
+	private static void start(NIOSocket socket)
+	{
+		try
+		{
+			socket.socket().setTcpNoDelay(true);
+			((NIOSocketSSL) socket).beginHandshake();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Opens connections one at a time, waiting for a packet to be echoed on each.
+	 *
+	 * @param factory the factory to create client engines with, or null to create engines without peer hints.
+	 * @param connections the number of connections to open.
+	 * @return the average time per connection in milliseconds.
+	 * @throws IOException if opening a socket or selecting failed.
+	 */
+	double run(SSLEngineFactory factory, int connections) throws IOException
+	{
+		m_remaining = connections;
+		m_totalTime = 0;
+		connect(factory);
+		while (m_remaining > 0)
+		{
+			m_service.selectBlocking();
+		}
+		return m_totalTime / 1000000.0 / connections;
+	}
+
+	private void connect(final SSLEngineFactory factory) throws IOException
+	{
+		final long start = System.nanoTime();
+		NIOSocket socket = factory == null
+		                   ? m_service.openSSLSocket(m_sslContext.createSSLEngine(), "localhost", m_port)
+		                   : m_service.openSSLSocket(factory, "localhost", m_port);
+		socket.listen(new SocketObserverAdapter()
+		{
+			public void connectionOpened(NIOSocket nioSocket)
+			{
+				start(nioSocket);
+				nioSocket.write(new byte[] { 1 });
+			}
+
+			public void packetReceived(NIOSocket socket, byte[] packet)
+			{
+				m_totalTime += System.nanoTime() - start;
+				socket.close();
+				if (--m_remaining == 0) return;
+				try
+				{
+					connect(factory);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+
+			public void connectionBroken(NIOSocket nioSocket, Exception exception)
+			{
+				if (exception != null) exception.printStackTrace();
+			}
+		});
+	}
+}
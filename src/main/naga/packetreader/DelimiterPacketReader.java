@@ -21,7 +21,8 @@ SOFTWARE.
 */
 package naga.packetreader;
 
-import naga.PacketReader;
+import naga.ByteBufferPacketReader;
+import naga.NIOUtils;
 import naga.exception.ProtocolViolationException;
 
 import java.nio.ByteBuffer;
@@ -37,7 +38,7 @@ import java.nio.ByteBuffer;
  *
  * @author Christoffer Lerno
  */
-public class DelimiterPacketReader implements PacketReader
+public class DelimiterPacketReader implements ByteBufferPacketReader
 {
 	private volatile int m_maxPacketSize;
 	private byte m_delimiter;
@@ -94,8 +95,13 @@ public class DelimiterPacketReader implements PacketReader
 		m_maxPacketSize = maxPacketSize;
 	}
 
-    @SuppressWarnings({"ResultOfMethodCallIgnored"})
     public byte[] nextPacket(ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        ByteBuffer packet = nextPacketBuffer(byteBuffer);
+        return packet == null ? null : NIOUtils.getBytes(packet);
+    }
+
+    public ByteBuffer nextPacketBuffer(ByteBuffer byteBuffer) throws ProtocolViolationException
     {
         byteBuffer.mark();
         int bytesRead = 0;
@@ -104,10 +110,11 @@ public class DelimiterPacketReader implements PacketReader
             int ch = byteBuffer.get();
             if (ch == m_delimiter)
             {
-                byte[] packet = new byte[bytesRead];
                 byteBuffer.reset();
-                byteBuffer.get(packet);
-                byteBuffer.get();
+                ByteBuffer packet = byteBuffer.slice();
+                packet.limit(bytesRead);
+                // Skip past the packet and the delimiter.
+                byteBuffer.position(byteBuffer.position() + bytesRead + 1);
                 return packet;
             }
             bytesRead++;
@@ -21,7 +21,8 @@ SOFTWARE.
 */
 package naga.packetreader;
 
-import naga.PacketReader;
+import naga.ByteBufferPacketReader;
+import naga.NIOUtils;
 import naga.exception.ProtocolViolationException;
 
 import java.nio.ByteBuffer;
@@ -32,7 +33,7 @@ import java.nio.ByteBuffer;
  *
  * @author Christoffer Lerno
  */
-public class RawPacketReader implements PacketReader
+public class RawPacketReader implements ByteBufferPacketReader
 {
 
     public final static RawPacketReader INSTANCE = new RawPacketReader();
@@ -43,8 +44,13 @@ public class RawPacketReader implements PacketReader
 
     public byte[] nextPacket(ByteBuffer byteBuffer) throws ProtocolViolationException
     {
-        byte[] packet = new byte[byteBuffer.remaining()];
-        byteBuffer.get(packet);
+        return NIOUtils.getBytes(byteBuffer);
+    }
+
+    public ByteBuffer nextPacketBuffer(ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        ByteBuffer packet = byteBuffer.slice();
+        byteBuffer.position(byteBuffer.limit());
         return packet;
     }
 
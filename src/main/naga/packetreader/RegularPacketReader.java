@@ -21,8 +21,8 @@ SOFTWARE.
 */
 package naga.packetreader;
 
+import naga.ByteBufferPacketReader;
 import naga.NIOUtils;
-import naga.PacketReader;
 import naga.exception.ProtocolViolationException;
 
 import java.nio.ByteBuffer;
@@ -40,7 +40,7 @@ import java.nio.ByteBuffer;
  * 
  * @author Christoffer Lerno
  */
-public class RegularPacketReader implements PacketReader
+public class RegularPacketReader implements ByteBufferPacketReader
 {
 	private final boolean m_bigEndian;
     private final int m_headerSize;
@@ -59,14 +59,21 @@ public class RegularPacketReader implements PacketReader
 	}
 
     public byte[] nextPacket(ByteBuffer byteBuffer) throws ProtocolViolationException
+    {
+        ByteBuffer packet = nextPacketBuffer(byteBuffer);
+        return packet == null ? null : NIOUtils.getBytes(packet);
+    }
+
+    public ByteBuffer nextPacketBuffer(ByteBuffer byteBuffer) throws ProtocolViolationException
     {
         if (byteBuffer.remaining() < m_headerSize) return null;
         byteBuffer.mark();
         int length = NIOUtils.getPacketSizeFromByteBuffer(byteBuffer, m_headerSize, m_bigEndian);
         if (byteBuffer.remaining() >= length)
         {
-            byte[] packet = new byte[length];
-            byteBuffer.get(packet);
+            ByteBuffer packet = byteBuffer.slice();
+            packet.limit(length);
+            byteBuffer.position(byteBuffer.position() + length);
             return packet;
         }
         else
@@ -42,7 +42,6 @@ public class DelimiterPacketWriter implements PacketWriter
 
     public ByteBuffer[] write(ByteBuffer[] byteBuffer)
     {
-        m_endByte.rewind();
-        return NIOUtils.concat(byteBuffer, m_endByte);
+        return NIOUtils.concat(byteBuffer, m_endByte.duplicate());
     }
 }
@@ -47,7 +47,7 @@ import java.nio.ByteBuffer;
 public class RegularPacketWriter implements PacketWriter
 {
 	private final boolean m_bigEndian;
-    private final ByteBuffer m_header;
+    private final int m_headerSize;
 
 	/**
 	 * Creates a regular packet writer with the given header size.
@@ -59,16 +59,16 @@ public class RegularPacketWriter implements PacketWriter
 	{
 		if (headerSize < 1 || headerSize > 4) throw new IllegalArgumentException("Header must be between 1 and 4 bytes long.");
 		m_bigEndian = bigEndian;
-        m_header = ByteBuffer.allocate(headerSize);
+        m_headerSize = headerSize;
 	}
 
     public ByteBuffer[] write(ByteBuffer[] byteBuffers)
     {
-        m_header.clear();
-        NIOUtils.setPacketSizeInByteBuffer(m_header, m_header.capacity(),
+        ByteBuffer header = ByteBuffer.allocate(m_headerSize);
+        NIOUtils.setPacketSizeInByteBuffer(header, m_headerSize,
                                            (int)NIOUtils.remaining(byteBuffers), m_bigEndian);
-        m_header.flip();
-        return NIOUtils.concat(m_header, byteBuffers);
+        header.flip();
+        return NIOUtils.concat(header, byteBuffers);
     }
 
 }
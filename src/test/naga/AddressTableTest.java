@@ -0,0 +1,84 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class AddressTableTest extends TestCase
+{
+	public void testKeyOf() throws Exception
+	{
+		assertEquals(0xFF0000007F000001L, AddressTable.keyOf(InetAddress.getByName("127.0.0.1")));
+		assertEquals(0xFF000000FFFFFFFFL, AddressTable.keyOf(InetAddress.getByName("255.255.255.255")));
+		// The families never share keys.
+		assertEquals(0L, AddressTable.keyOf(InetAddress.getByName("::2")));
+		assertEquals(false, AddressTable.keyOf(InetAddress.getByName("0.0.0.0")) == AddressTable.keyOf(InetAddress.getByName("::2")));
+		assertEquals(false, AddressTable.keyOf(InetAddress.getByName("10.0.0.1")) == AddressTable.keyOf(InetAddress.getByName("0:0:a00:1::")));
+		assertEquals(0x20010DB800010002L, AddressTable.keyOf(InetAddress.getByName("2001:db8:1:2::1")));
+		assertEquals(AddressTable.keyOf(InetAddress.getByName("2001:db8:1:2::1")),
+		             AddressTable.keyOf(InetAddress.getByName("2001:db8:1:2:ffff::")));
+	}
+
+	public void testPutGetAndRemove() throws Exception
+	{
+		AddressTable table = new AddressTable();
+		assertEquals(0, table.get(1));
+		table.put(1, 10);
+		table.put(2, 20);
+		assertEquals(10, table.get(1));
+		assertEquals(20, table.get(2));
+		assertEquals(2, table.size());
+		table.put(1, 0);
+		assertEquals(0, table.get(1));
+		assertEquals(20, table.get(2));
+		assertEquals(1, table.size());
+		table.put(3, 0);
+		assertEquals(1, table.size());
+	}
+
+	public void testMatchesHashMap() throws Exception
+	{
+		AddressTable table = new AddressTable();
+		Map<Long, Long> map = new HashMap<Long, Long>();
+		Random random = new Random(0);
+		for (int i = 0; i < 100000; i++)
+		{
+			long key = random.nextInt(2000);
+			long value = random.nextInt(3);
+			table.put(key, value);
+			if (value == 0)
+			{
+				map.remove(key);
+			}
+			else
+			{
+				map.put(key, value);
+			}
+		}
+		assertEquals(map.size(), table.size());
+		for (long key = 0; key < 2000; key++)
+		{
+			Long value = map.get(key);
+			assertEquals(value == null ? 0 : value, table.get(key));
+		}
+	}
+
+	public void testRemoveUpTo() throws Exception
+	{
+		AddressTable table = new AddressTable();
+		for (int i = 1; i <= 1000; i++)
+		{
+			table.put(i * 7919L, i);
+		}
+		table.removeUpTo(990);
+		assertEquals(10, table.size());
+		assertEquals(0, table.get(990 * 7919L));
+		assertEquals(991, table.get(991 * 7919L));
+	}
+}
@@ -0,0 +1,118 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+public class CidrAcceptorTest extends TestCase
+{
+	private static InetAddress address(String address) throws Exception
+	{
+		return InetAddress.getByName(address);
+	}
+
+	public void testLongestPrefixWins() throws Exception
+	{
+		CidrRules rules = new CidrRules(true);
+		rules.deny("10.0.0.0/8");
+		rules.allow("10.1.0.0/16");
+		rules.deny("10.1.2.3");
+		assertEquals(3, rules.size());
+		assertEquals(true, rules.isAllowed(address("9.255.255.255")));
+		assertEquals(false, rules.isAllowed(address("10.0.0.1")));
+		assertEquals(true, rules.isAllowed(address("10.1.2.2")));
+		assertEquals(false, rules.isAllowed(address("10.1.2.3")));
+		assertEquals(true, rules.isAllowed(address("11.0.0.0")));
+	}
+
+	public void testIPv6() throws Exception
+	{
+		CidrRules rules = new CidrRules(false);
+		rules.allow("2001:db8::/32");
+		rules.deny("2001:db8:bad::/48");
+		assertEquals(true, rules.isAllowed(address("2001:db8::1")));
+		assertEquals(false, rules.isAllowed(address("2001:db8:bad::1")));
+		assertEquals(false, rules.isAllowed(address("2001:db9::1")));
+		assertEquals(false, rules.isAllowed(address("10.0.0.1")));
+	}
+
+	public void testIPv4MappedRanges() throws Exception
+	{
+		CidrRules rules = new CidrRules(true);
+		rules.deny("::ffff:10.0.0.0/104");
+		rules.allow("::ffff:10.1.2.3");
+		assertEquals(false, rules.isAllowed(address("10.0.0.1")));
+		assertEquals(false, rules.isAllowed(address("::ffff:10.0.0.1")));
+		assertEquals(true, rules.isAllowed(address("10.1.2.3")));
+		assertEquals(true, rules.isAllowed(address("11.0.0.1")));
+		rules.deny("::ffff:0:0/96");
+		assertEquals(false, rules.isAllowed(address("11.0.0.1")));
+		assertEquals(true, rules.isAllowed(address("::1")));
+	}
+
+	public void testDefaultRules() throws Exception
+	{
+		CidrRules rules = new CidrRules(false);
+		rules.allow("0.0.0.0/0");
+		assertEquals(true, rules.isAllowed(address("1.2.3.4")));
+		assertEquals(false, rules.isAllowed(address("::1")));
+		rules.deny(address("1.2.3.0"), 24);
+		assertEquals(false, rules.isAllowed(address("1.2.3.4")));
+	}
+
+	public void testLastRuleForRangeWins() throws Exception
+	{
+		CidrRules rules = new CidrRules(true);
+		rules.deny("192.168.0.0/16");
+		rules.allow("192.168.255.255/16");
+		assertEquals(true, rules.isAllowed(address("192.168.1.1")));
+	}
+
+	public void testInvalidRanges() throws Exception
+	{
+		CidrRules rules = new CidrRules(true);
+		String[] invalid = { "10.0.0.0/33", "::/129", "10.0.0.0/-1", "10.0.0.0/x", "localhost", "10.0.0.0.0/8",
+		                     "beef/16", "cafe", "10.0.0/8", "10.0.0.256", "10..0.0", "::g",
+		                     "::ffff:0:0/95", "::ffff:10.0.0.0/129" };
+		for (String cidr : invalid)
+		{
+			try
+			{
+				rules.deny(cidr);
+				fail(cidr);
+			}
+			catch (IllegalArgumentException e)
+			{
+			}
+		}
+		assertEquals(0, rules.size());
+	}
+
+	public void testSetRules() throws Exception
+	{
+		CidrRules rules = new CidrRules(true);
+		CidrAcceptor acceptor = new CidrAcceptor(rules);
+		InetSocketAddress address = new InetSocketAddress("10.0.0.1", 80);
+		assertEquals(true, acceptor.acceptConnection(address));
+		rules.deny("10.0.0.0/8");
+		assertEquals(true, acceptor.acceptConnection(address));
+		acceptor.setRules(rules);
+		assertEquals(false, acceptor.acceptConnection(address));
+		assertEquals(1, acceptor.getRules().size());
+	}
+
+	public void testAllowedConnectionsArePassedOn() throws Exception
+	{
+		AddressConnectionLimitingAcceptor limit = new AddressConnectionLimitingAcceptor(1);
+		CidrAcceptor acceptor = new CidrAcceptor(new CidrRules(true), limit);
+		InetSocketAddress address = new InetSocketAddress("10.0.0.1", 80);
+		assertEquals(true, acceptor.acceptConnection(address));
+		assertEquals(false, acceptor.acceptConnection(address));
+		acceptor.connectionClosed(address);
+		assertEquals(true, acceptor.acceptConnection(address));
+	}
+}
@@ -0,0 +1,145 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public class ConnectionLimitingAcceptorTest extends TestCase
+{
+	private final static InetSocketAddress A = new InetSocketAddress("10.0.0.1", 1000);
+	private final static InetSocketAddress B = new InetSocketAddress("10.0.0.2", 1000);
+
+	public void testRateLimit() throws Exception
+	{
+		RateLimitingAcceptor acceptor = new RateLimitingAcceptor(0.001, 2);
+		assertEquals(true, acceptor.acceptConnection(A));
+		assertEquals(true, acceptor.acceptConnection(B));
+		assertEquals(false, acceptor.acceptConnection(A));
+		acceptor = new RateLimitingAcceptor(1000000, 1);
+		Thread.sleep(1);
+		assertEquals(true, acceptor.acceptConnection(A));
+		Thread.sleep(1);
+		assertEquals(true, acceptor.acceptConnection(A));
+	}
+
+	public void testAddressRateLimit() throws Exception
+	{
+		AddressRateLimitingAcceptor acceptor = new AddressRateLimitingAcceptor(0.001, 2);
+		assertEquals(true, acceptor.acceptConnection(A));
+		assertEquals(true, acceptor.acceptConnection(A));
+		assertEquals(false, acceptor.acceptConnection(A));
+		assertEquals(true, acceptor.acceptConnection(B));
+		assertEquals(2, acceptor.getTrackedAddresses());
+	}
+
+	public void testAddressRateLimitPrunesFullBuckets() throws Exception
+	{
+		AddressRateLimitingAcceptor acceptor = new AddressRateLimitingAcceptor(1000000, 1);
+		for (int i = 0; i < 5000; i++)
+		{
+			assertEquals(true, acceptor.acceptConnection(new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 1, (byte) (i >> 8), (byte) i }), 1000)));
+			if (i % 100 == 0) Thread.sleep(1);
+		}
+		assertTrue(acceptor.getTrackedAddresses() < 5000);
+	}
+
+	public void testRateLimitingArguments() throws Exception
+	{
+		try
+		{
+			new RateLimitingAcceptor(0, 1);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		try
+		{
+			new AddressRateLimitingAcceptor(1, 0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		try
+		{
+			new AddressConnectionLimitingAcceptor(0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	public void testConnectionLimit() throws Exception
+	{
+		AddressConnectionLimitingAcceptor acceptor = new AddressConnectionLimitingAcceptor(2);
+		assertEquals(true, acceptor.acceptConnection(A));
+		assertEquals(true, acceptor.acceptConnection(A));
+		assertEquals(false, acceptor.acceptConnection(A));
+		assertEquals(true, acceptor.acceptConnection(B));
+		assertEquals(2, acceptor.getConnections(A.getAddress()));
+		acceptor.connectionClosed(A);
+		assertEquals(1, acceptor.getConnections(A.getAddress()));
+		assertEquals(true, acceptor.acceptConnection(A));
+		acceptor.connectionClosed(B);
+		assertEquals(1, acceptor.getTrackedAddresses());
+	}
+
+	public void testChainedAcceptorsPassOnClosedConnections() throws Exception
+	{
+		AddressConnectionLimitingAcceptor limit = new AddressConnectionLimitingAcceptor(1);
+		RateLimitingAcceptor acceptor = new RateLimitingAcceptor(1000, 10, limit);
+		assertEquals(true, acceptor.acceptConnection(A));
+		assertEquals(false, acceptor.acceptConnection(A));
+		acceptor.connectionClosed(A);
+		assertEquals(0, limit.getTrackedAddresses());
+	}
+
+	public void testRefusedByNextIsNotCounted() throws Exception
+	{
+		AddressConnectionLimitingAcceptor acceptor = new AddressConnectionLimitingAcceptor(1, ConnectionAcceptor.DENY);
+		assertEquals(false, acceptor.acceptConnection(A));
+		assertEquals(0, acceptor.getConnections(A.getAddress()));
+	}
+
+	public void testServerSocketTracksClosedConnections() throws Exception
+	{
+		NIOService service = new NIOService();
+		AddressConnectionLimitingAcceptor acceptor = new AddressConnectionLimitingAcceptor(1);
+		NIOServerSocket serverSocket = service.openServerSocket(new InetSocketAddress(0), 0);
+		serverSocket.setConnectionAcceptor(acceptor);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			public void newConnection(NIOSocket nioSocket)
+			{
+				nioSocket.listen(SocketObserver.NULL);
+			}
+		});
+		service.selectNonBlocking();
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		Socket first = new Socket(localhost, serverSocket.socket().getLocalPort());
+		Socket second = new Socket(localhost, serverSocket.socket().getLocalPort());
+		long end = System.currentTimeMillis() + 5000;
+		while (serverSocket.getTotalConnections() < 2 && System.currentTimeMillis() < end)
+		{
+			service.selectBlocking(10);
+		}
+		assertEquals(1, serverSocket.getTotalAcceptedConnections());
+		assertEquals(1, serverSocket.getTotalRefusedConnections());
+		assertEquals(1, acceptor.getConnections(localhost));
+		first.close();
+		second.close();
+		while (acceptor.getConnections(localhost) > 0 && System.currentTimeMillis() < end)
+		{
+			service.selectBlocking(10);
+		}
+		assertEquals(0, acceptor.getConnections(localhost));
+		service.close();
+	}
+}
@@ -0,0 +1,110 @@
+package naga;
+/**
+ * @author Christoffer Lerno 
+ */
+
+import junit.framework.TestCase;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class NIOServiceGroupTest extends TestCase
+{
+	NIOServiceGroup m_group;
+
+	public void setUp() throws Exception
+	{
+		m_group = new NIOServiceGroup(2);
+	}
+
+	public void tearDown() throws Exception
+	{
+		m_group.close();
+	}
+
+	public void testNextServiceIsRoundRobin() throws Exception
+	{
+		assertEquals(2, m_group.getServiceCount());
+		assertSame(m_group.getService(0), m_group.nextService());
+		assertSame(m_group.getService(1), m_group.nextService());
+		assertSame(m_group.getService(0), m_group.nextService());
+	}
+
+	public void testAcceptedSocketsAreSpreadOverServices() throws Exception
+	{
+		final CountDownLatch latch = new CountDownLatch(4);
+		final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+		final SocketObserver observer = new SocketObserverAdapter()
+		{
+			public void connectionOpened(NIOSocket nioSocket)
+			{
+				threads.add(Thread.currentThread().getName());
+				latch.countDown();
+			}
+		};
+		NIOServerSocket serverSocket = m_group.openServerSocket(new InetSocketAddress(3135), 0);
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			public void newConnection(NIOSocket nioSocket)
+			{
+				nioSocket.listen(observer);
+			}
+		});
+		m_group.start();
+		NIOService client = new NIOService();
+		for (int i = 0; i < 4; i++)
+		{
+			client.openSocket("localhost", 3135).listen(SocketObserver.NULL);
+		}
+		long end = System.currentTimeMillis() + 10000;
+		while (latch.getCount() > 0 && System.currentTimeMillis() < end)
+		{
+			client.selectBlocking(10);
+		}
+		assertEquals(true, latch.await(1, TimeUnit.SECONDS));
+		assertEquals(2, threads.size());
+		assertEquals(4, serverSocket.getTotalAcceptedConnections());
+		client.close();
+		m_group.stop();
+	}
+
+	public void testReusePortServerSocketAcceptsOnEveryService() throws Exception
+	{
+		if (!NIOUtils.isReusePortSupported()) return;
+		NIOServerSocketGroup serverSocket = m_group.openReusePortServerSocket(new InetSocketAddress(0), 0);
+		assertEquals(2, serverSocket.getServerSocketCount());
+		int port = serverSocket.socket().getLocalPort();
+		assertEquals(port, serverSocket.getServerSocket(1).socket().getLocalPort());
+		final CountDownLatch latch = new CountDownLatch(16);
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			public void newConnection(NIOSocket nioSocket)
+			{
+				nioSocket.listen(SocketObserver.NULL);
+				latch.countDown();
+			}
+		});
+		m_group.start();
+		NIOService client = new NIOService();
+		for (int i = 0; i < 16; i++)
+		{
+			client.openSocket("localhost", port).listen(SocketObserver.NULL);
+		}
+		long end = System.currentTimeMillis() + 10000;
+		while (latch.getCount() > 0 && System.currentTimeMillis() < end)
+		{
+			client.selectBlocking(10);
+		}
+		assertEquals(true, latch.await(1, TimeUnit.SECONDS));
+		assertEquals(16, serverSocket.getTotalAcceptedConnections());
+		serverSocket.close();
+		client.close();
+		m_group.stop();
+	}
+}
@@ -4,10 +4,23 @@ package naga;
  */
 
 import junit.framework.TestCase;
+import naga.packetreader.RegularPacketReader;
+import naga.packetwriter.RegularPacketWriter;
 import org.easymock.classextension.EasyMock;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class NIOServiceTest extends TestCase
 {
@@ -96,4 +109,508 @@ public class NIOServiceTest extends TestCase
 		assertEquals(1, serverSocket.getTotalConnections());
 		assertEquals(1, serverSocket.getTotalRefusedConnections());
 	}
-}
\ No newline at end of file
+
+	public void testAcceptBatch() throws Exception
+	{
+		NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(0), 0);
+		assertEquals(NIOServerSocket.DEFAULT_ACCEPT_BATCH_SIZE, serverSocket.getAcceptBatchSize());
+		serverSocket.setAcceptBatchSize(2);
+		serverSocket.listen(new ServerSocketObserverAdapter());
+		m_service.selectNonBlocking();
+		Socket[] clients = new Socket[3];
+		for (int i = 0; i < clients.length; i++)
+		{
+			clients[i] = new Socket("localhost", serverSocket.socket().getLocalPort());
+		}
+		m_service.selectBlocking(1000);
+		assertEquals(2, serverSocket.getTotalAcceptedConnections());
+		m_service.selectBlocking(1000);
+		assertEquals(3, serverSocket.getTotalAcceptedConnections());
+		assertEquals(3, serverSocket.getTotalConnections());
+		for (Socket client : clients)
+		{
+			client.close();
+		}
+		try
+		{
+			serverSocket.setAcceptBatchSize(0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		m_service.close();
+	}
+
+	public void testWritabilityChanged() throws Exception
+	{
+		final ServerSocket server = new ServerSocket(0);
+		final List<Boolean> changes = new ArrayList<Boolean>();
+		NIOSocket socket = m_service.openSocket("localhost", server.getLocalPort());
+		socket.setWriteWatermarks(1000, 10000);
+		socket.listen(new SocketObserverAdapter()
+		{
+			public void writabilityChanged(NIOSocket socket, boolean writable)
+			{
+				changes.add(writable);
+			}
+		});
+		final Socket peer = server.accept();
+		while (socket.getTimeOpen() < 0)
+		{
+			m_service.selectBlocking(10);
+		}
+		// Nothing reads on the other side, so the queue stops draining once the channel is full.
+		for (int i = 0; i < 10000 && socket.isWritable(); i++)
+		{
+			changes.clear();
+			socket.write(new byte[64 * 1024]);
+			assertEquals(false, socket.isWritable());
+			// The change is delivered on the service thread.
+			assertEquals("[]", changes.toString());
+			m_service.selectNonBlocking();
+		}
+		assertEquals(false, socket.isWritable());
+		assertEquals("[false]", changes.toString());
+		Thread reader = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					byte[] buffer = new byte[64 * 1024];
+					while (peer.getInputStream().read(buffer) != -1)
+					{
+						// Discard the data.
+					}
+				}
+				catch (IOException e)
+				{
+					// Closed.
+				}
+			}
+		};
+		reader.start();
+		long end = System.currentTimeMillis() + 10000;
+		while (!socket.isWritable() && System.currentTimeMillis() < end)
+		{
+			m_service.selectBlocking(10);
+		}
+		assertEquals("[false, true]", changes.toString());
+		assertTrue(socket.getWriteQueueSize() <= 1000);
+		peer.close();
+		server.close();
+		m_service.close();
+		reader.join();
+	}
+
+	public void testPartialDirectWriteAboveHighWatermark() throws Exception
+	{
+		final List<Boolean> changes = new ArrayList<Boolean>();
+		Socket[] client = new Socket[1];
+		final NIOSocket socket = acceptClient(client, new SocketObserverAdapter()
+		{
+			public void writabilityChanged(NIOSocket socket, boolean writable)
+			{
+				changes.add(writable);
+			}
+		}, 0);
+		socket.setWriteWatermarks(1000, 10000);
+		// Nothing reads on the other side, so the channel takes only part of the packet.
+		m_service.queue(new Runnable()
+		{
+			public void run()
+			{
+				socket.write(new byte[16 * 1024 * 1024]);
+			}
+		});
+		m_service.selectNonBlocking();
+		assertEquals(0, socket.getWriteQueueSize());
+		assertEquals(false, socket.isWritable());
+		assertEquals("[false]", changes.toString());
+		client[0].close();
+		m_service.close();
+	}
+
+	public void testInvalidWriteWatermarks() throws Exception
+	{
+		NIOSocket socket = m_service.openSocket("localhost", 1);
+		assertEquals(NIOSocket.DEFAULT_LOW_WRITE_WATERMARK, socket.getLowWriteWatermark());
+		assertEquals(NIOSocket.DEFAULT_HIGH_WRITE_WATERMARK, socket.getHighWriteWatermark());
+		try
+		{
+			socket.setWriteWatermarks(-1, 10);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		try
+		{
+			socket.setWriteWatermarks(10, 9);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		m_service.close();
+	}
+
+	/**
+	 * Opens a server socket, connects a blocking client to it and returns the accepted socket.
+	 */
+	private NIOSocket acceptClient(final Socket[] client, final SocketObserver observer, final long readBudget) throws Exception
+	{
+		final NIOSocket[] accepted = new NIOSocket[1];
+		NIOServerSocket serverSocket = m_service.openServerSocket(new InetSocketAddress(0), 0);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			public void newConnection(NIOSocket nioSocket)
+			{
+				accepted[0] = nioSocket;
+				nioSocket.setPacketReader(new RegularPacketReader(1, true));
+				nioSocket.setReadBudget(readBudget);
+				nioSocket.listen(observer);
+			}
+		});
+		m_service.selectNonBlocking();
+		client[0] = new Socket("localhost", serverSocket.socket().getLocalPort());
+		while (accepted[0] == null)
+		{
+			m_service.selectBlocking(10);
+		}
+		m_service.selectNonBlocking();
+		return accepted[0];
+	}
+
+	public void testSuspendAndResumeReads() throws Exception
+	{
+		final List<Byte> packets = new ArrayList<Byte>();
+		Socket[] client = new Socket[1];
+		NIOSocket socket = acceptClient(client, new SocketObserverAdapter()
+		{
+			public void packetReceived(NIOSocket socket, byte[] packet)
+			{
+				packets.add(packet[0]);
+				if (packets.size() == 3) socket.suspendReads();
+			}
+		}, 0);
+		byte[] data = new byte[20];
+		for (int i = 0; i < 10; i++)
+		{
+			data[2 * i] = 1;
+			data[2 * i + 1] = (byte) i;
+		}
+		client[0].getOutputStream().write(data);
+		long end = System.currentTimeMillis() + 5000;
+		while (packets.size() < 3 && System.currentTimeMillis() < end)
+		{
+			m_service.selectBlocking(10);
+		}
+		assertEquals(true, socket.isReadSuspended());
+		client[0].getOutputStream().write(new byte[] { 1, 10 });
+		for (int i = 0; i < 10; i++)
+		{
+			m_service.selectBlocking(5);
+		}
+		assertEquals("[0, 1, 2]", packets.toString());
+		socket.resumeReads();
+		assertEquals(false, socket.isReadSuspended());
+		while (packets.size() < 11 && System.currentTimeMillis() < end)
+		{
+			m_service.selectBlocking(10);
+		}
+		assertEquals("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10]", packets.toString());
+		client[0].close();
+		m_service.close();
+	}
+
+	public void testWritePriority() throws Exception
+	{
+		final List<Object> sent = new ArrayList<Object>();
+		Socket[] client = new Socket[1];
+		NIOSocket socket = acceptClient(client, new SocketObserverAdapter()
+		{
+			public void packetSent(NIOSocket socket, Object tag)
+			{
+				sent.add(tag);
+			}
+		}, 0);
+		assertEquals(true, socket.write(new byte[] { 'a', 'a' }, "a"));
+		assertEquals(true, socket.write(new byte[] { 'b' }, "b", NIOSocket.PRIORITY_NORMAL));
+		assertEquals(true, socket.write(new byte[] { 'c', 'c', 'c' }, "c", NIOSocket.PRIORITY_HIGH));
+		assertEquals(6, socket.getWriteQueueSize());
+		assertEquals(3, socket.getWriteQueueSize(NIOSocket.PRIORITY_NORMAL));
+		assertEquals(3, socket.getWriteQueueSize(NIOSocket.PRIORITY_HIGH));
+		try
+		{
+			socket.write(new byte[1], null, 2);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Invalid priority 2", e.getMessage());
+		}
+		long end = System.currentTimeMillis() + 5000;
+		while (sent.size() < 3 && System.currentTimeMillis() < end)
+		{
+			m_service.selectBlocking(10);
+		}
+		assertEquals("[c, a, b]", sent.toString());
+		assertEquals(0, socket.getWriteQueueSize(NIOSocket.PRIORITY_NORMAL));
+		assertEquals(0, socket.getWriteQueueSize(NIOSocket.PRIORITY_HIGH));
+		byte[] received = new byte[6];
+		DataInputStream in = new DataInputStream(client[0].getInputStream());
+		in.readFully(received);
+		assertEquals("cccaab", new String(received, "ASCII"));
+		client[0].close();
+		m_service.close();
+	}
+
+	public void testWritePriorityOfBuffersAndFiles() throws Exception
+	{
+		File file = File.createTempFile("naga", ".tmp");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("xfx".getBytes());
+		out.close();
+		FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel();
+		Socket[] client = new Socket[1];
+		NIOSocket socket = acceptClient(client, new SocketObserverAdapter(), 0);
+		socket.write(new byte[] { 'a' });
+		assertEquals(true, socket.write(ByteBuffer.wrap(new byte[] { 'b' }), null, NIOSocket.PRIORITY_HIGH));
+		assertEquals(true, socket.write(new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 'c' }) }, null, NIOSocket.PRIORITY_HIGH));
+		assertEquals(true, socket.writeFile(fileChannel, 1, 1, null, NIOSocket.PRIORITY_HIGH));
+		assertEquals(3, socket.getWriteQueueSize(NIOSocket.PRIORITY_HIGH));
+		try
+		{
+			socket.writeFile(fileChannel, 0, 1, null, -1);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Invalid priority -1", e.getMessage());
+		}
+		for (int i = 0; i < 10; i++)
+		{
+			m_service.selectBlocking(5);
+		}
+		byte[] received = new byte[4];
+		client[0].setSoTimeout(5000);
+		new DataInputStream(client[0].getInputStream()).readFully(received);
+		assertEquals("bcfa", new String(received, "ASCII"));
+		fileChannel.close();
+		client[0].close();
+		m_service.close();
+	}
+
+	public void testFileThroughPacketWriterIsWrittenInChunks() throws Exception
+	{
+		byte[] content = new byte[200000];
+		for (int i = 0; i < content.length; i++)
+		{
+			content[i] = (byte) i;
+		}
+		File file = File.createTempFile("naga", ".tmp");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+		FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel();
+		final List<Object> sent = new ArrayList<Object>();
+		Socket[] client = new Socket[1];
+		NIOSocket socket = acceptClient(client, new SocketObserverAdapter()
+		{
+			public void packetSent(NIOSocket socket, Object tag)
+			{
+				sent.add(tag);
+			}
+		}, 0);
+		socket.setPacketWriter(new RegularPacketWriter(4, true));
+		assertEquals(true, socket.writeFile(fileChannel, 0, content.length, "file"));
+		final DataInputStream in = new DataInputStream(client[0].getInputStream());
+		final List<Integer> chunks = new ArrayList<Integer>();
+		final byte[] received = new byte[content.length];
+		Thread reader = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					int offset = 0;
+					while (offset < received.length)
+					{
+						int length = in.readInt();
+						in.readFully(received, offset, length);
+						chunks.add(length);
+						offset += length;
+					}
+				}
+				catch (IOException e)
+				{
+					// Checked below.
+				}
+			}
+		};
+		client[0].setSoTimeout(5000);
+		reader.start();
+		long end = System.currentTimeMillis() + 5000;
+		while (sent.isEmpty() && System.currentTimeMillis() < end)
+		{
+			m_service.selectBlocking(10);
+		}
+		reader.join(5000);
+		assertEquals("[file]", sent.toString());
+		assertEquals("[65536, 65536, 65536, 3392]", chunks.toString());
+		assertEquals(true, Arrays.equals(content, received));
+		assertEquals(0, socket.getWriteQueueSize());
+		fileChannel.close();
+		client[0].close();
+		m_service.close();
+	}
+
+	public void testWritePriorityDoesNotSplitFileChunks() throws Exception
+	{
+		int fileSize = 16 * 1024 * 1024;
+		File file = File.createTempFile("naga", ".tmp");
+		file.deleteOnExit();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(fileSize);
+		FileChannel fileChannel = randomAccessFile.getChannel();
+		final List<Object> sent = new ArrayList<Object>();
+		Socket[] client = new Socket[1];
+		NIOSocket socket = acceptClient(client, new SocketObserverAdapter()
+		{
+			public void packetSent(NIOSocket socket, Object tag)
+			{
+				sent.add(tag);
+			}
+		}, 0);
+		socket.setPacketWriter(new RegularPacketWriter(4, true));
+		socket.writeFile(fileChannel, 0, fileSize, "file");
+		// Nothing reads on the other side, so the channel stops in the middle of the file.
+		m_service.selectNonBlocking();
+		m_service.selectNonBlocking();
+		assertEquals(true, socket.getWriteQueueSize() > 0);
+		assertEquals(true, socket.getWriteQueueSize() < fileSize);
+		socket.write(new byte[] { 'p' }, "priority", NIOSocket.PRIORITY_HIGH);
+		final DataInputStream in = new DataInputStream(client[0].getInputStream());
+		final List<Integer> lengths = new ArrayList<Integer>();
+		Thread reader = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					byte[] packet = new byte[65536];
+					while (true)
+					{
+						int length = in.readInt();
+						in.readFully(packet, 0, length);
+						lengths.add(length);
+						if (length == 1) return;
+					}
+				}
+				catch (IOException e)
+				{
+					// Checked below.
+				}
+			}
+		};
+		client[0].setSoTimeout(5000);
+		reader.start();
+		long end = System.currentTimeMillis() + 10000;
+		while (sent.size() < 2 && System.currentTimeMillis() < end)
+		{
+			m_service.selectBlocking(10);
+		}
+		reader.join(5000);
+		assertEquals("[file, priority]", sent.toString());
+		// Every chunk of the file is written before the high priority packet.
+		assertEquals(fileSize / 65536 + 1, lengths.size());
+		assertEquals(1, (int) lengths.get(lengths.size() - 1));
+		fileChannel.close();
+		client[0].close();
+		m_service.close();
+	}
+
+	public void testWritePriorityWaitsForPacketWriter() throws Exception
+	{
+		Socket[] client = new Socket[1];
+		NIOSocket socket = acceptClient(client, new SocketObserverAdapter(), 0);
+		socket.write(new byte[] { 'a' });
+		socket.setPacketWriter(new RegularPacketWriter(1, true));
+		socket.write(new byte[] { 'c' }, null, NIOSocket.PRIORITY_HIGH);
+		socket.write(new byte[] { 'b' });
+		for (int i = 0; i < 10; i++)
+		{
+			m_service.selectBlocking(5);
+		}
+		byte[] received = new byte[5];
+		client[0].setSoTimeout(5000);
+		new DataInputStream(client[0].getInputStream()).readFully(received);
+		assertEquals("a\u0001c\u0001b", new String(received, "ASCII"));
+		client[0].close();
+		m_service.close();
+	}
+
+	public void testWritePriorityAfterCloseAfterWrite() throws Exception
+	{
+		Socket[] client = new Socket[1];
+		NIOSocket socket = acceptClient(client, new SocketObserverAdapter(), 0);
+		socket.write(new byte[] { 'a' });
+		socket.closeAfterWrite();
+		socket.write(new byte[] { 'c' }, null, NIOSocket.PRIORITY_HIGH);
+		long end = System.currentTimeMillis() + 5000;
+		while (socket.isOpen() && System.currentTimeMillis() < end)
+		{
+			m_service.selectBlocking(10);
+		}
+		assertEquals(false, socket.isOpen());
+		client[0].setSoTimeout(5000);
+		DataInputStream in = new DataInputStream(client[0].getInputStream());
+		assertEquals('a', in.read());
+		assertEquals(-1, in.read());
+		client[0].close();
+		m_service.close();
+	}
+
+	public void testReadBudget() throws Exception
+	{
+		final int[] packets = new int[1];
+		Socket[] client = new Socket[1];
+		NIOSocket socket = acceptClient(client, new SocketObserverAdapter()
+		{
+			public void packetReceived(NIOSocket socket, byte[] packet)
+			{
+				packets[0]++;
+			}
+		}, 100);
+		assertEquals(100, socket.getReadBudget());
+		client[0].getOutputStream().write(new byte[200]);
+		long end = System.currentTimeMillis() + 5000;
+		while (!socket.isReadSuspended() && System.currentTimeMillis() < end)
+		{
+			m_service.selectBlocking(10);
+		}
+		assertEquals(true, socket.isReadSuspended());
+		long bytesRead = socket.getBytesRead();
+		assertTrue(bytesRead >= 100);
+		// The packets of the read that used up the budget are delivered.
+		assertEquals(bytesRead, packets[0]);
+		client[0].getOutputStream().write(new byte[200]);
+		for (int i = 0; i < 10; i++)
+		{
+			m_service.selectBlocking(5);
+		}
+		assertEquals(bytesRead, socket.getBytesRead());
+		socket.resumeReads();
+		while (socket.getBytesRead() == bytesRead && System.currentTimeMillis() < end)
+		{
+			m_service.selectBlocking(10);
+		}
+		assertTrue(socket.getBytesRead() > bytesRead);
+		client[0].close();
+		m_service.close();
+	}
+}
@@ -0,0 +1,55 @@
+package naga;
+/**
+ * @author Christoffer Lerno 
+ */
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class PooledByteBufferAllocatorTest extends TestCase
+{
+	PooledByteBufferAllocator m_allocator;
+
+	public void testAllocateRoundsUpToSizeClass()
+	{
+		m_allocator = new PooledByteBufferAllocator(false);
+		assertEquals(1, m_allocator.allocate(0).capacity());
+		assertEquals(256, m_allocator.allocate(256).capacity());
+		assertEquals(512, m_allocator.allocate(257).capacity());
+		assertEquals(false, m_allocator.allocate(10).isDirect());
+		assertEquals(true, new PooledByteBufferAllocator(true).allocate(10).isDirect());
+	}
+
+	public void testReleasedBuffersAreReused()
+	{
+		m_allocator = new PooledByteBufferAllocator(true);
+		ByteBuffer buffer = m_allocator.allocate(1000);
+		assertEquals(0, m_allocator.getHits());
+		assertEquals(1, m_allocator.getMisses());
+		assertEquals(1024, m_allocator.getBytesOutstanding());
+		buffer.put((byte) 1);
+		m_allocator.release(buffer);
+		assertEquals(0, m_allocator.getBytesOutstanding());
+		ByteBuffer reused = m_allocator.allocate(1024);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(1024, reused.limit());
+		assertEquals(1, m_allocator.getHits());
+		assertEquals(1, m_allocator.getMisses());
+		assertEquals(1024, m_allocator.getBytesOutstanding());
+	}
+
+	public void testMaxFreeBuffers()
+	{
+		m_allocator = new PooledByteBufferAllocator(false, 1);
+		ByteBuffer buffer1 = m_allocator.allocate(16);
+		ByteBuffer buffer2 = m_allocator.allocate(16);
+		m_allocator.release(buffer1);
+		m_allocator.release(buffer2);
+		assertSame(buffer1, m_allocator.allocate(16));
+		assertNotSame(buffer2, m_allocator.allocate(16));
+		assertEquals(1, m_allocator.getHits());
+		assertEquals(3, m_allocator.getMisses());
+	}
+}
@@ -0,0 +1,109 @@
+package naga;
+/**
+ * @author Christoffer Lerno 
+ */
+
+import junit.framework.TestCase;
+import org.easymock.EasyMock;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class SSLEngineFactoryTest extends TestCase
+{
+	SSLContext m_context;
+
+	protected void setUp() throws Exception
+	{
+		m_context = SSLContext.getInstance("TLS");
+		m_context.init(null, null, null);
+	}
+
+	public void testSessionCache() throws Exception
+	{
+		SSLEngineFactory factory = new SSLEngineFactory(m_context, 10, 60);
+		assertSame(m_context, factory.getSSLContext());
+		assertEquals(10, factory.getSessionCacheSize());
+		assertEquals(10, m_context.getClientSessionContext().getSessionCacheSize());
+		assertEquals(10, m_context.getServerSessionContext().getSessionCacheSize());
+		assertEquals(60, m_context.getClientSessionContext().getSessionTimeout());
+		try
+		{
+			new SSLEngineFactory(m_context, -1, 60);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	public void testCreateEngines() throws Exception
+	{
+		SSLEngineFactory factory = new SSLEngineFactory(m_context)
+		{
+			protected void configureEngine(SSLEngine engine, boolean client)
+			{
+				engine.setEnableSessionCreation(client);
+			}
+		};
+		SSLEngine client = factory.createClientEngine("example.com", 443);
+		assertEquals("example.com", client.getPeerHost());
+		assertEquals(443, client.getPeerPort());
+		assertEquals(true, client.getUseClientMode());
+		assertEquals(true, client.getEnableSessionCreation());
+		SSLEngine server = factory.createServerEngine();
+		assertEquals(false, server.getUseClientMode());
+		assertEquals(false, server.getEnableSessionCreation());
+	}
+
+	public void testHitRate() throws Exception
+	{
+		SSLEngineFactory factory = new SSLEngineFactory(m_context);
+		assertEquals(0.0, factory.getHitRate());
+		SSLSession session = EasyMock.createMock(SSLSession.class);
+		EasyMock.expect(session.getCreationTime()).andReturn(1000L).anyTimes();
+		EasyMock.replay(session);
+
+		// A session created during the handshake is new, an older session is resumed.
+		factory.handshakeCompleted(session, 1000L);
+		factory.handshakeCompleted(session, 2000L);
+		factory.handshakeCompleted(session, 3000L);
+		factory.handshakeCompleted(session, 4000L);
+		assertEquals(1, factory.getFullHandshakes());
+		assertEquals(3, factory.getResumedHandshakes());
+		assertEquals(0.75, factory.getHitRate());
+	}
+
+	public void testOpenSocketClosesChannelIfEngineFails() throws Exception
+	{
+		SSLEngineFactory factory = new SSLEngineFactory(m_context)
+		{
+			public SSLEngine createClientEngine(String host, int port)
+			{
+				throw new IllegalStateException("No engine");
+			}
+		};
+		ServerSocket server = new ServerSocket(0);
+		NIOService service = new NIOService();
+		try
+		{
+			service.openSSLSocket(factory, "localhost", server.getLocalPort());
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("No engine", e.getMessage());
+		}
+		// The connection was started, so it reaches the server, but has been closed.
+		server.setSoTimeout(5000);
+		Socket socket = server.accept();
+		socket.setSoTimeout(5000);
+		assertEquals(-1, socket.getInputStream().read());
+		socket.close();
+		server.close();
+		service.close();
+	}
+}
@@ -0,0 +1,120 @@
+package naga;
+/**
+ * @author Christoffer Lerno 
+ */
+
+import junit.framework.TestCase;
+
+import java.nio.channels.ClosedSelectorException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class SSLTaskExecutorTest extends TestCase
+{
+	public void testQueueDepth() throws Exception
+	{
+		SSLTaskExecutor executor = new SSLTaskExecutor(1);
+		final CountDownLatch blocker = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(3);
+		Runnable task = new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					blocker.await();
+				}
+				catch (InterruptedException e)
+				{
+				}
+				done.countDown();
+			}
+		};
+		executor.execute(task);
+		executor.execute(task);
+		executor.execute(task);
+		long end = System.currentTimeMillis() + 10000;
+		while (executor.getQueueDepth() != 2 && System.currentTimeMillis() < end)
+		{
+			Thread.sleep(1);
+		}
+		assertEquals(2, executor.getQueueDepth());
+		blocker.countDown();
+		assertEquals(true, done.await(10, TimeUnit.SECONDS));
+		executor.shutdown();
+		assertEquals(0, executor.getQueueDepth());
+	}
+
+	public void testRejectedTasksRunOnCaller() throws Exception
+	{
+		SSLTaskExecutor executor = new SSLTaskExecutor(new Executor()
+		{
+			public void execute(Runnable command)
+			{
+				throw new RejectedExecutionException();
+			}
+		});
+		final Thread[] thread = new Thread[1];
+		executor.execute(new Runnable()
+		{
+			public void run()
+			{
+				thread[0] = Thread.currentThread();
+			}
+		});
+		assertSame(Thread.currentThread(), thread[0]);
+		assertEquals(1, executor.getExecutedTasks());
+		assertEquals(0, executor.getQueueDepth());
+	}
+
+	public void testHandshakeTimes() throws Exception
+	{
+		SSLTaskExecutor executor = new SSLTaskExecutor(new Executor()
+		{
+			public void execute(Runnable command)
+			{
+				command.run();
+			}
+		});
+		assertEquals(0, executor.getAverageHandshakeTime());
+		executor.handshakeCompleted(100);
+		executor.handshakeCompleted(300);
+		executor.handshakeCompleted(200);
+		assertEquals(3, executor.getCompletedHandshakes());
+		assertEquals(600, executor.getTotalHandshakeTime());
+		assertEquals(200, executor.getAverageHandshakeTime());
+		assertEquals(300, executor.getMaxHandshakeTime());
+	}
+
+	public void testServiceExecutor() throws Exception
+	{
+		NIOService service = new NIOService();
+		SSLTaskExecutor executor = service.getSSLTaskExecutor();
+		assertSame(executor, service.getSSLTaskExecutor());
+		SSLTaskExecutor shared = new SSLTaskExecutor(2);
+		service.setSSLTaskExecutor(shared);
+		assertSame(shared, service.getSSLTaskExecutor());
+		service.close();
+		try
+		{
+			service.selectNonBlocking();
+		}
+		catch (ClosedSelectorException e)
+		{
+			// The service shuts down by closing the selector.
+		}
+		// A shared executor is not shut down with the service.
+		final CountDownLatch latch = new CountDownLatch(1);
+		shared.execute(new Runnable()
+		{
+			public void run()
+			{
+				latch.countDown();
+			}
+		});
+		assertEquals(true, latch.await(10, TimeUnit.SECONDS));
+		shared.shutdown();
+	}
+}
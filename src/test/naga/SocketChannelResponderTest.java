@@ -55,6 +55,135 @@ public class SocketChannelResponderTest extends TestCase
 		assertEquals(false, m_socketChannelResponder.write("OO".getBytes()));
 	}
 
+	public void testByteBufferAndFileQueueSize() throws Exception
+	{
+		EasyMock.expect(m_channel.isConnected()).andReturn(true).once();
+		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
+		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
+		m_nioService.queue((Runnable)EasyMock.anyObject());
+		EasyMock.expectLastCall().once();
+		replay();
+		m_socketChannelResponder = new SocketChannelResponder(m_nioService, m_channel, new InetSocketAddress("localhost", 123));
+		m_socketChannelResponder.setKey(m_key);
+		m_socketChannelResponder.setMaxQueueSize(10);
+
+		ByteBuffer buffer = ByteBuffer.wrap("ABCD".getBytes());
+		buffer.position(1);
+		assertEquals(true, m_socketChannelResponder.write(buffer));
+		assertEquals(3, m_socketChannelResponder.getWriteQueueSize());
+		// The caller's buffer is left untouched.
+		assertEquals(1, buffer.position());
+
+		assertEquals(true, m_socketChannelResponder.write(new ByteBuffer[] { ByteBuffer.allocate(2), ByteBuffer.allocate(1) }));
+		assertEquals(6, m_socketChannelResponder.getWriteQueueSize());
+
+		// The file region counts with its full size.
+		assertEquals(false, m_socketChannelResponder.writeFile(null, 0, 5));
+		assertEquals(true, m_socketChannelResponder.writeFile(null, 100, 4));
+		assertEquals(10, m_socketChannelResponder.getWriteQueueSize());
+		verify();
+	}
+
+	public void testWritesScheduleOneFlush() throws Exception
+	{
+		EasyMock.expect(m_channel.isConnected()).andReturn(true).once();
+		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
+		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
+		replay();
+		m_socketChannelResponder = new SocketChannelResponder(m_nioService, m_channel, new InetSocketAddress("localhost", 123));
+		m_socketChannelResponder.setKey(m_key);
+		assertEquals(1, m_socketChannelResponder.getWriteBatchPackets());
+		m_socketChannelResponder.setWriteBatchSize(64, 64 * 1024);
+		verify();
+		reset();
+
+		// Only the first write queues an event.
+		m_nioService.queue((Runnable)EasyMock.anyObject());
+		EasyMock.expectLastCall().once();
+		replay();
+		m_socketChannelResponder.write("A".getBytes());
+		m_socketChannelResponder.write("B".getBytes());
+		m_socketChannelResponder.write("C".getBytes());
+		verify();
+		reset();
+
+		// Drain all packets with a single write.
+		EasyMock.expect(m_key.interestOps()).andReturn(0).atLeastOnce();
+		EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).once();
+		EasyMock.expect(m_channel.write((ByteBuffer[]) EasyMock.anyObject(), EasyMock.eq(0), EasyMock.eq(3))).andAnswer(new IAnswer<Long>()
+		{
+			public Long answer() throws Throwable
+			{
+				ByteBuffer[] buffers = (ByteBuffer[]) EasyMock.getCurrentArguments()[0];
+				for (int i = 0; i < 3; i++)
+				{
+					buffers[i].position(buffers[i].limit());
+				}
+				return 3L;
+			}
+		}).once();
+		replay();
+		m_socketChannelResponder.socketReadyForWrite();
+		assertEquals(3, m_socketChannelResponder.getBytesWritten());
+		verify();
+		reset();
+
+		// After the drain, the next write queues an event again.
+		m_nioService.queue((Runnable)EasyMock.anyObject());
+		EasyMock.expectLastCall().once();
+		replay();
+		m_socketChannelResponder.write("D".getBytes());
+		m_socketChannelResponder.write("E".getBytes());
+		verify();
+	}
+
+	public void testDirectWriteOnServiceThread() throws Exception
+	{
+		NIOService service = new NIOService();
+		try
+		{
+			EasyMock.expect(m_channel.isConnected()).andReturn(true).anyTimes();
+			EasyMock.expect(m_key.interestOps()).andReturn(0).anyTimes();
+			EasyMock.expect(m_key.interestOps(0)).andReturn(m_key).anyTimes();
+			EasyMock.expect(m_channel.write((ByteBuffer[]) EasyMock.anyObject(), EasyMock.eq(0), EasyMock.eq(1))).andAnswer(new IAnswer<Long>()
+			{
+				public Long answer() throws Throwable
+				{
+					ByteBuffer buffer = ((ByteBuffer[]) EasyMock.getCurrentArguments()[0])[0];
+					buffer.position(buffer.limit());
+					return 4L;
+				}
+			}).once();
+			EasyMock.replay(m_channel);
+			EasyMock.replay(m_key);
+			m_socketChannelResponder = new SocketChannelResponder(service, m_channel, new InetSocketAddress("localhost", 123));
+			m_socketChannelResponder.setKey(m_key);
+
+			// Not on the service thread, so this is queued.
+			final boolean[] written = new boolean[1];
+			service.queue(new Runnable()
+			{
+				public void run()
+				{
+					written[0] = m_socketChannelResponder.write("FOO!".getBytes());
+				}
+			});
+			service.selectNonBlocking();
+
+			// The packet was written without any write interest being registered.
+			assertTrue(written[0]);
+			assertEquals(4, m_socketChannelResponder.getBytesWritten());
+			assertEquals(0, m_socketChannelResponder.getWriteQueueSize());
+			assertEquals(0, service.getQueue().size());
+			EasyMock.verify(m_channel);
+			EasyMock.verify(m_key);
+		}
+		finally
+		{
+			service.close();
+		}
+	}
+
 	public void testWrite() throws Exception
 	{
 
@@ -0,0 +1,211 @@
+package naga;
+/**
+ * @author Christoffer Lerno 
+ */
+
+import junit.framework.TestCase;
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+public class SocketReaderTest extends TestCase
+{
+	NIOService m_service;
+	SocketChannel m_channel;
+	SocketReader m_socketReader;
+
+	protected void setUp() throws Exception
+	{
+		m_service = new NIOService(256);
+		m_channel = EasyMock.createMock(SocketChannel.class);
+		m_socketReader = new SocketReader(m_service);
+	}
+
+	protected void tearDown() throws Exception
+	{
+		m_service.close();
+	}
+
+	private void expectRead(final String data) throws Exception
+	{
+		EasyMock.expect(m_channel.read((ByteBuffer) EasyMock.anyObject())).andAnswer(new IAnswer<Integer>()
+		{
+			public Integer answer() throws Throwable
+			{
+				((ByteBuffer) EasyMock.getCurrentArguments()[0]).put(data.getBytes());
+				return data.length();
+			}
+		}).once();
+	}
+
+	private String consume(ByteBuffer buffer, int bytes)
+	{
+		byte[] data = new byte[bytes];
+		buffer.get(data);
+		return new String(data);
+	}
+
+	public void testPartialDataIsCopiedThroughSharedBuffer() throws Exception
+	{
+		expectRead("ABCDE");
+		expectRead("FG");
+		EasyMock.replay(m_channel);
+
+		assertEquals(5, m_socketReader.read(m_channel));
+		assertSame(m_service.getSharedBuffer(), m_socketReader.getBuffer());
+		assertEquals("AB", consume(m_socketReader.getBuffer(), 2));
+		m_socketReader.compact();
+
+		assertEquals(2, m_socketReader.read(m_channel));
+		assertSame(m_service.getSharedBuffer(), m_socketReader.getBuffer());
+		assertEquals("CDEFG", consume(m_socketReader.getBuffer(), 5));
+		EasyMock.verify(m_channel);
+	}
+
+	public void testPartialDataIsKeptInSocketBuffer() throws Exception
+	{
+		m_service.setSocketReadBuffers(true);
+		expectRead("ABCDE");
+		expectRead("FG");
+		expectRead("H");
+		EasyMock.replay(m_channel);
+
+		assertEquals(5, m_socketReader.read(m_channel));
+		assertEquals("AB", consume(m_socketReader.getBuffer(), 2));
+		m_socketReader.compact();
+
+		assertEquals(2, m_socketReader.read(m_channel));
+		ByteBuffer socketBuffer = m_socketReader.getBuffer();
+		assertNotSame(m_service.getSharedBuffer(), socketBuffer);
+		assertEquals("CDEF", consume(socketBuffer, 4));
+		m_socketReader.compact();
+
+		// Still a partial packet, so the socket buffer is kept.
+		assertEquals(1, m_socketReader.read(m_channel));
+		assertSame(socketBuffer, m_socketReader.getBuffer());
+		assertEquals("GH", consume(socketBuffer, 2));
+
+		// Fully consumed, so we are back on the shared buffer.
+		m_socketReader.compact();
+		assertSame(m_service.getSharedBuffer(), m_socketReader.getBuffer());
+		EasyMock.verify(m_channel);
+	}
+
+	private String fill(char c, int length)
+	{
+		char[] chars = new char[length];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	public void testOversizedPacketGrowsBuffer() throws Exception
+	{
+		m_socketReader.setMaxBufferSize(1024);
+		expectRead(fill('A', 256));
+		expectRead(fill('B', 100));
+		EasyMock.replay(m_channel);
+
+		// The packet fills the shared buffer without being consumed.
+		assertEquals(256, m_socketReader.read(m_channel));
+		m_socketReader.compact();
+
+		assertEquals(100, m_socketReader.read(m_channel));
+		ByteBuffer buffer = m_socketReader.getBuffer();
+		assertEquals(512, buffer.capacity());
+		assertEquals(fill('A', 256) + fill('B', 100), consume(buffer, 356));
+
+		m_socketReader.compact();
+		assertSame(m_service.getSharedBuffer(), m_socketReader.getBuffer());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testOversizedPacketBeyondMaxBufferSize() throws Exception
+	{
+		m_service.setSocketReadBuffers(true);
+		m_socketReader.setMaxBufferSize(512);
+		expectRead(fill('A', 256));
+		expectRead(fill('B', 256));
+		EasyMock.replay(m_channel);
+
+		assertEquals(256, m_socketReader.read(m_channel));
+		m_socketReader.compact();
+		assertEquals(256, m_socketReader.read(m_channel));
+		assertEquals(512, m_socketReader.getBuffer().remaining());
+		m_socketReader.compact();
+		try
+		{
+			m_socketReader.read(m_channel);
+			fail();
+		}
+		catch (BufferOverflowException e)
+		{
+		}
+		EasyMock.verify(m_channel);
+	}
+
+	public void testReadBuffered() throws Exception
+	{
+		expectRead("ABCDE");
+		EasyMock.replay(m_channel);
+
+		assertEquals(false, m_socketReader.readBuffered());
+		assertEquals(5, m_socketReader.read(m_channel));
+		assertEquals("AB", consume(m_socketReader.getBuffer(), 2));
+		m_socketReader.compact();
+
+		// The unconsumed bytes are available again without reading the channel.
+		assertEquals(true, m_socketReader.readBuffered());
+		assertEquals("C", consume(m_socketReader.getBuffer(), 1));
+		m_socketReader.compact();
+		assertEquals(true, m_socketReader.readBuffered());
+		assertEquals("DE", consume(m_socketReader.getBuffer(), 2));
+		m_socketReader.compact();
+		assertEquals(false, m_socketReader.readBuffered());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testReadBufferedFromSocketBuffer() throws Exception
+	{
+		m_service.setSocketReadBuffers(true);
+		expectRead("ABCDE");
+		EasyMock.replay(m_channel);
+
+		assertEquals(5, m_socketReader.read(m_channel));
+		assertEquals("AB", consume(m_socketReader.getBuffer(), 2));
+		m_socketReader.compact();
+
+		assertEquals(true, m_socketReader.readBuffered());
+		assertNotSame(m_service.getSharedBuffer(), m_socketReader.getBuffer());
+		assertEquals("CDE", consume(m_socketReader.getBuffer(), 3));
+		m_socketReader.compact();
+		assertEquals(false, m_socketReader.readBuffered());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testFullSharedBufferGrowsOnBothPaths() throws Exception
+	{
+		char[] data = new char[256];
+		Arrays.fill(data, 'A');
+		expectRead(new String(data));
+		expectRead(new String(data));
+		EasyMock.replay(m_channel);
+
+		m_socketReader.setMaxBufferSize(1024);
+		// Nothing is consumed, so the unconsumed bytes fill the shared buffer exactly.
+		assertEquals(256, m_socketReader.read(m_channel));
+		m_socketReader.compact();
+		assertEquals(true, m_socketReader.readBuffered());
+		assertNotSame(m_service.getSharedBuffer(), m_socketReader.getBuffer());
+		assertEquals(256, m_socketReader.getBuffer().remaining());
+		m_socketReader.compact();
+
+		// The larger buffer has room for the next read.
+		assertEquals(256, m_socketReader.read(m_channel));
+		assertEquals(512, m_socketReader.getBuffer().remaining());
+		EasyMock.verify(m_channel);
+	}
+}
@@ -0,0 +1,234 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+import naga.packetwriter.RegularPacketWriter;
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+public class SocketWriterTest extends TestCase
+{
+	SocketWriter m_socketWriter;
+	SocketChannel m_channel;
+	StringBuilder m_written;
+
+	protected void setUp() throws Exception
+	{
+		m_channel = EasyMock.createMock(SocketChannel.class);
+		m_socketWriter = new SocketWriter();
+		m_written = new StringBuilder();
+	}
+
+	private void expectWrite(final int buffers, final int bytes) throws Exception
+	{
+		EasyMock.expect(m_channel.write((ByteBuffer[]) EasyMock.anyObject(), EasyMock.anyInt(), EasyMock.eq(buffers)))
+				.andAnswer(writeAnswer(bytes)).once();
+	}
+
+	private IAnswer<Long> writeAnswer(final int bytes)
+	{
+		return new IAnswer<Long>()
+		{
+			public Long answer() throws Throwable
+			{
+				ByteBuffer[] buffers = (ByteBuffer[]) EasyMock.getCurrentArguments()[0];
+				int index = (Integer) EasyMock.getCurrentArguments()[1];
+				int left = bytes;
+				while (left > 0)
+				{
+					ByteBuffer buffer = buffers[index++];
+					while (left > 0 && buffer.hasRemaining())
+					{
+						m_written.append((char) buffer.get());
+						left--;
+					}
+				}
+				return (long) bytes;
+			}
+		};
+	}
+
+	private int arrayLength(String field) throws Exception
+	{
+		Field arrayField = SocketWriter.class.getDeclaredField(field);
+		arrayField.setAccessible(true);
+		return Array.getLength(arrayField.get(m_socketWriter));
+	}
+
+	public void testPacketsAreSentInOrder() throws Exception
+	{
+		expectWrite(3, 3);
+		expectWrite(2, 3);
+		EasyMock.replay(m_channel);
+
+		m_socketWriter.addPacket("AB".getBytes(), "1");
+		m_socketWriter.addPacket("CD".getBytes(), "2");
+		m_socketWriter.addPacket("EF".getBytes(), null);
+		assertEquals(3, m_socketWriter.getPacketCount());
+		assertFalse(m_socketWriter.hasSentPacket());
+
+		// Partial write of the second packet.
+		assertTrue(m_socketWriter.write(m_channel));
+		assertTrue(m_socketWriter.hasSentPacket());
+		assertEquals("1", m_socketWriter.removeSentPacket());
+		assertFalse(m_socketWriter.hasSentPacket());
+		assertEquals(2, m_socketWriter.getPacketCount());
+
+		assertTrue(m_socketWriter.write(m_channel));
+		assertEquals("2", m_socketWriter.removeSentPacket());
+		assertTrue(m_socketWriter.hasSentPacket());
+		assertEquals(null, m_socketWriter.removeSentPacket());
+		assertTrue(m_socketWriter.isEmpty());
+		assertEquals("ABCDEF", m_written.toString());
+		assertEquals(6, m_socketWriter.getBytesWritten());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testBatchWithPacketWriter() throws Exception
+	{
+		expectWrite(4, 6);
+		EasyMock.replay(m_channel);
+
+		m_socketWriter.setPacketWriter(new RegularPacketWriter(1, true));
+		m_socketWriter.addPacket("AB".getBytes(), "1");
+		m_socketWriter.addPacket("CD".getBytes(), "2");
+		assertTrue(m_socketWriter.write(m_channel));
+		assertEquals("1", m_socketWriter.removeSentPacket());
+		assertEquals("2", m_socketWriter.removeSentPacket());
+		assertTrue(m_socketWriter.isEmpty());
+		assertEquals("\2AB\2CD", m_written.toString());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testBatchStaysBoundedUnderPartialWrites() throws Exception
+	{
+		// The first write stops in the middle of a packet, and every later write does the same.
+		EasyMock.expect(m_channel.write((ByteBuffer[]) EasyMock.anyObject(), EasyMock.anyInt(), EasyMock.anyInt()))
+				.andAnswer(writeAnswer(1)).once();
+		EasyMock.expect(m_channel.write((ByteBuffer[]) EasyMock.anyObject(), EasyMock.anyInt(), EasyMock.anyInt()))
+				.andAnswer(writeAnswer(2)).times(1000);
+		EasyMock.replay(m_channel);
+
+		StringBuilder expected = new StringBuilder();
+		m_socketWriter.addPacket("AB".getBytes(), null);
+		expected.append("AB");
+		for (int i = 0; i < 1001; i++)
+		{
+			m_socketWriter.addPacket("AB".getBytes(), i);
+			expected.append("AB");
+			assertTrue(m_socketWriter.write(m_channel));
+			while (m_socketWriter.hasSentPacket())
+			{
+				m_socketWriter.removeSentPacket();
+			}
+			assertFalse(m_socketWriter.isEmpty());
+		}
+		assertEquals(2, m_socketWriter.getPacketCount());
+		assertEquals(3, m_socketWriter.getBytesRemaining());
+		assertTrue(arrayLength("m_tags") <= 16);
+		assertTrue(arrayLength("m_packetEnds") <= 16);
+		assertTrue(arrayLength("m_batchBuffers") <= 16);
+		assertEquals(expected.substring(0, expected.length() - 3), m_written.toString());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testNothingWritten() throws Exception
+	{
+		expectWrite(1, 0);
+		EasyMock.replay(m_channel);
+		m_socketWriter.addPacket("AB".getBytes(), "1");
+		assertFalse(m_socketWriter.write(m_channel));
+		assertFalse(m_socketWriter.hasSentPacket());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testEmptyPacketIsSentImmediately() throws Exception
+	{
+		EasyMock.replay(m_channel);
+		m_socketWriter.addPacket(new byte[0], "1");
+		assertTrue(m_socketWriter.write(m_channel));
+		assertEquals("1", m_socketWriter.removeSentPacket());
+		assertTrue(m_socketWriter.isEmpty());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testByteBufferPacket() throws Exception
+	{
+		expectWrite(3, 5);
+		EasyMock.replay(m_channel);
+
+		m_socketWriter.setPacketWriter(new RegularPacketWriter(1, true));
+		ByteBuffer buffer = ByteBuffer.wrap("XABCD".getBytes());
+		buffer.position(1);
+		m_socketWriter.addPacket(new ByteBuffer[] { buffer, ByteBuffer.wrap("E".getBytes()) }, "1");
+		assertTrue(m_socketWriter.write(m_channel));
+		assertEquals("1", m_socketWriter.removeSentPacket());
+		assertEquals("\5ABCD", m_written.toString());
+		EasyMock.verify(m_channel);
+	}
+
+	public void testFileIsTransferred() throws Exception
+	{
+		File file = File.createTempFile("naga", ".tmp");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("ABCDEFG".getBytes());
+		out.close();
+		FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel();
+		try
+		{
+			EasyMock.expect(m_channel.write((ByteBuffer) EasyMock.anyObject())).andAnswer(new IAnswer<Integer>()
+			{
+				public Integer answer() throws Throwable
+				{
+					ByteBuffer buffer = (ByteBuffer) EasyMock.getCurrentArguments()[0];
+					int written = 0;
+					while (buffer.hasRemaining())
+					{
+						m_written.append((char) buffer.get());
+						written++;
+					}
+					return written;
+				}
+			}).anyTimes();
+			EasyMock.replay(m_channel);
+
+			m_socketWriter.addFile(fileChannel, 1, 4, "1");
+			assertEquals(1, m_socketWriter.getPacketCount());
+			assertTrue(m_socketWriter.write(m_channel));
+			assertTrue(m_socketWriter.hasSentPacket());
+			assertEquals("1", m_socketWriter.removeSentPacket());
+			assertTrue(m_socketWriter.isEmpty());
+			assertEquals("BCDE", m_written.toString());
+			assertEquals(4, m_socketWriter.getBytesWritten());
+
+			// A region beyond the end of the file fails.
+			m_socketWriter.addFile(fileChannel, 7, 1, null);
+			try
+			{
+				m_socketWriter.write(m_channel);
+				fail();
+			}
+			catch (EOFException e)
+			{
+				// Expected.
+			}
+		}
+		finally
+		{
+			fileChannel.close();
+		}
+	}
+}
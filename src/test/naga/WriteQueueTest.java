@@ -0,0 +1,201 @@
+package naga;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class WriteQueueTest extends TestCase
+{
+	public void testInvalidCapacity() throws Exception
+	{
+		try
+		{
+			new WriteQueue(3, 4);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Capacity must be a power of two, was 3", e.getMessage());
+		}
+		try
+		{
+			new WriteQueue(4, 2);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Max capacity must be at least the capacity 4, was 2", e.getMessage());
+		}
+	}
+
+	public void testPacketsAndRunnables() throws Exception
+	{
+		WriteQueue queue = new WriteQueue(4, 4);
+		assertEquals(true, queue.isEmpty());
+		assertEquals(null, queue.peek());
+		byte[] packet = new byte[3];
+		Runnable runnable = new Runnable()
+		{
+			public void run()
+			{
+			}
+		};
+		queue.add(WriteQueue.BYTES, packet, "tag", 3);
+		queue.add(runnable);
+		assertEquals(false, queue.isEmpty());
+		WriteQueue.Entry entry = queue.peek();
+		assertEquals(WriteQueue.BYTES, entry.getKind());
+		assertSame(packet, entry.getPacket());
+		assertEquals("tag", entry.getTag());
+		assertEquals(null, entry.getRunnable());
+		assertEquals(3, entry.getLength());
+		queue.remove();
+		entry = queue.peek();
+		assertEquals(WriteQueue.RUNNABLE, entry.getKind());
+		assertEquals(null, entry.getPacket());
+		assertSame(runnable, entry.getRunnable());
+		queue.remove();
+		assertEquals(true, queue.isEmpty());
+		assertEquals(null, queue.peek());
+	}
+
+	public void testEntriesAreReused() throws Exception
+	{
+		WriteQueue queue = new WriteQueue(2, 2);
+		queue.add(WriteQueue.BYTES, "a", null, 1);
+		WriteQueue.Entry first = queue.peek();
+		queue.remove();
+		queue.add(WriteQueue.BYTES, "b", null, 1);
+		queue.remove();
+		queue.add(WriteQueue.BYTES, "c", null, 1);
+		assertSame(first, queue.peek());
+		assertEquals("c", queue.peek().getPacket());
+	}
+
+	public void testOverflowKeepsOrder() throws Exception
+	{
+		WriteQueue queue = new WriteQueue(2, 2);
+		for (int i = 0; i < 5; i++)
+		{
+			queue.add(WriteQueue.BYTES, i, null, 1);
+		}
+		queue.remove();
+		// The ring has room again, but the overflow must be emptied first.
+		queue.add(WriteQueue.BYTES, 5, null, 1);
+		List<Object> packets = new ArrayList<Object>();
+		while (queue.peek() != null)
+		{
+			packets.add(queue.peek().getPacket());
+			queue.remove();
+		}
+		assertEquals("[1, 2, 3, 4, 5]", packets.toString());
+		assertEquals(true, queue.isEmpty());
+		queue.add(WriteQueue.BYTES, 6, null, 1);
+		assertEquals(6, queue.peek().getPacket());
+	}
+
+	public void testRingGrowsWhenOverflowing() throws Exception
+	{
+		WriteQueue queue = new WriteQueue(2, 8);
+		List<Object> packets = new ArrayList<Object>();
+		int next = 0;
+		for (int round = 0; round < 4; round++)
+		{
+			for (int i = 0; i < 6; i++)
+			{
+				queue.add(WriteQueue.BYTES, next++, null, 1);
+			}
+			while (queue.peek() != null)
+			{
+				packets.add(queue.peek().getPacket());
+				queue.remove();
+			}
+		}
+		assertEquals(24, packets.size());
+		for (int i = 0; i < 24; i++)
+		{
+			assertEquals(i, packets.get(i));
+		}
+		// 2 -> 4 -> 8, where a backlog of 6 packets fits.
+		assertEquals(8, queue.getCapacity());
+		// From now on the backlog is held by the entries of the ring.
+		Set<WriteQueue.Entry> entries = new HashSet<WriteQueue.Entry>();
+		for (int round = 0; round < 4; round++)
+		{
+			for (int i = 0; i < 6; i++)
+			{
+				queue.add(WriteQueue.BYTES, i, null, 1);
+			}
+			while (queue.peek() != null)
+			{
+				entries.add(queue.peek());
+				queue.remove();
+			}
+		}
+		assertEquals(8, entries.size());
+		assertEquals(8, queue.getCapacity());
+	}
+
+	public void testClear() throws Exception
+	{
+		WriteQueue queue = new WriteQueue(2, 2);
+		for (int i = 0; i < 5; i++)
+		{
+			queue.add(WriteQueue.BYTES, i, null, 1);
+		}
+		queue.clear();
+		assertEquals(true, queue.isEmpty());
+		assertEquals(null, queue.peek());
+	}
+
+	public void testConcurrentProducers() throws Exception
+	{
+		final WriteQueue queue = new WriteQueue(2, 64);
+		final int producers = 4;
+		final int packets = 20000;
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++)
+		{
+			final int producer = i;
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					for (int j = 0; j < packets; j++)
+					{
+						queue.add(WriteQueue.BYTES, new int[] { producer, j }, null, 1);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		int[] next = new int[producers];
+		int received = 0;
+		long end = System.currentTimeMillis() + 10000;
+		while (received < producers * packets && System.currentTimeMillis() < end)
+		{
+			WriteQueue.Entry entry = queue.peek();
+			if (entry == null)
+			{
+				Thread.yield();
+				continue;
+			}
+			int[] packet = (int[]) entry.getPacket();
+			queue.remove();
+			assertEquals(next[packet[0]]++, packet[1]);
+			received++;
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertEquals(producers * packets, received);
+		assertEquals(true, queue.isEmpty());
+	}
+}
@@ -14,10 +14,10 @@ public class DelayedActionTest extends TestCase
 
 	public void testCompare()
 	{
-		DelayedAction action1 = new DelayedAction(null, 3);
-		DelayedAction action2 = new DelayedAction(null, 5);
-		DelayedAction action3 = new DelayedAction(null, 3);
-		DelayedAction action4 = new DelayedAction(null, 2);
+		DelayedAction action1 = new DelayedAction(null, 3, 3);
+		DelayedAction action2 = new DelayedAction(null, 5, 5);
+		DelayedAction action3 = new DelayedAction(null, 3, 3);
+		DelayedAction action4 = new DelayedAction(null, 2, 2);
 		assertEquals(0, action1.compareTo(action1));
 		assertEquals(-1, action1.compareTo(action2));
 		assertEquals(-1, action1.compareTo(action3));
@@ -40,6 +40,6 @@ public class DelayedActionTest extends TestCase
 	{
 		long time = System.currentTimeMillis();
 		Date date = new Date(time);
-		assertEquals("DelayedAction @ " + date + " [Cancelled]", new DelayedAction(null, time).toString());
+		assertEquals("DelayedAction @ " + date + " [Cancelled]", new DelayedAction(null, time, time).toString());
 	}
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+package naga.eventmachine;
+/**
+ * @author Christoffer Lerno 
+ */
+
+import junit.framework.TestCase;
+import naga.*;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EventMachineGroupTest extends TestCase
+{
+	EventMachineGroup m_group;
+
+	public void setUp() throws Exception
+	{
+		m_group = new EventMachineGroup(2);
+	}
+
+	public void tearDown() throws Exception
+	{
+		m_group.shutdown();
+	}
+
+	public void testGroup() throws Exception
+	{
+		assertEquals(2, m_group.getEventMachineCount());
+		assertNotSame(m_group.getEventMachine(0), m_group.getEventMachine(1));
+		assertSame(m_group.getEventMachine(0), m_group.nextEventMachine());
+		assertSame(m_group.getEventMachine(1), m_group.nextEventMachine());
+		assertSame(m_group.getEventMachine(0).getNIOService(), m_group.getServiceGroup().getService(0));
+		try
+		{
+			m_group.getServiceGroup().start();
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+
+	public void testTasksRunOnSocketThread() throws Exception
+	{
+		final CountDownLatch latch = new CountDownLatch(4);
+		final List<NIOSocket> sockets = new CopyOnWriteArrayList<NIOSocket>();
+		final List<Boolean> onOwnerThread = new CopyOnWriteArrayList<Boolean>();
+		NIOServerSocket serverSocket = m_group.getServiceGroup().openServerSocket(new InetSocketAddress(3136), 0);
+		serverSocket.setConnectionAcceptor(ConnectionAcceptor.ALLOW);
+		serverSocket.listen(new ServerSocketObserverAdapter()
+		{
+			public void newConnection(final NIOSocket nioSocket)
+			{
+				sockets.add(nioSocket);
+				EventMachine owner = m_group.getEventMachine(nioSocket);
+				final String ownerThread = "EventMachineGroup-" + (owner == m_group.getEventMachine(0) ? 0 : 1);
+				m_group.executeLater(nioSocket, new Runnable()
+				{
+					public void run()
+					{
+						onOwnerThread.add(ownerThread.equals(Thread.currentThread().getName()));
+						latch.countDown();
+					}
+				}, 1, TimeUnit.MILLISECONDS);
+				nioSocket.listen(SocketObserver.NULL);
+			}
+		});
+		m_group.start();
+		NIOService client = new NIOService();
+		for (int i = 0; i < 4; i++)
+		{
+			client.openSocket("localhost", 3136).listen(SocketObserver.NULL);
+		}
+		long end = System.currentTimeMillis() + 10000;
+		while (latch.getCount() > 0 && System.currentTimeMillis() < end)
+		{
+			client.selectBlocking(10);
+		}
+		assertEquals(true, latch.await(1, TimeUnit.SECONDS));
+		assertEquals(4, onOwnerThread.size());
+		assertEquals(false, onOwnerThread.contains(Boolean.FALSE));
+		Set<EventMachine> owners = new HashSet<EventMachine>();
+		for (NIOSocket socket : sockets)
+		{
+			owners.add(m_group.getEventMachine(socket));
+		}
+		assertEquals(2, owners.size());
+		try
+		{
+			m_group.getEventMachine(client.openSocket("localhost", 3136));
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		client.close();
+	}
+}
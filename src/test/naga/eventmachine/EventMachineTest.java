@@ -247,4 +247,208 @@ public class EventMachineTest extends TestCase
 		m_eventMachine.stop();
 		assertEquals(0, m_eventMachine.getQueueSize());
 	}
-}
\ No newline at end of file
+
+	public void testTimerWheel() throws Exception
+	{
+		m_eventMachine = new EventMachine(1, TimeUnit.MILLISECONDS, 64);
+		final AtomicInteger integer = new AtomicInteger();
+		m_eventMachine.executeLater(new Runnable()
+		{
+			public void run()
+			{
+				integer.incrementAndGet();
+			}
+		}, 5);
+		DelayedEvent event = m_eventMachine.executeLater(new Runnable()
+		{
+			public void run()
+			{
+				integer.addAndGet(2);
+			}
+		}, 5);
+		m_eventMachine.executeLater(new Runnable()
+		{
+			public void run()
+			{
+				integer.addAndGet(4);
+			}
+		}, 100);
+		// Cancelled events are removed from the wheel immediately.
+		event.cancel();
+		assertEquals(2, m_eventMachine.getQueueSize());
+		m_eventMachine.start();
+		Thread.sleep(50);
+		assertEquals(1, integer.intValue());
+		Thread.sleep(150);
+		assertEquals(5, integer.intValue());
+		m_eventMachine.stop();
+		assertEquals(0, m_eventMachine.getQueueSize());
+	}
+
+	public void testInjectedClock() throws Exception
+	{
+		final long[] time = new long[] { 5000000000L, 1000000L };
+		Clock clock = new Clock()
+		{
+			public long nanoTime()
+			{
+				return time[0];
+			}
+
+			public long currentTimeMillis()
+			{
+				return time[1];
+			}
+		};
+		m_eventMachine = new EventMachine(clock);
+		assertSame(clock, m_eventMachine.getClock());
+		assertEquals(5000000000L, m_eventMachine.getLoopTime());
+		DelayedEvent later = m_eventMachine.executeLater(null, 2000);
+		assertEquals(1002000L, later.getTime());
+		assertEquals(1002000L, m_eventMachine.timeOfNextEvent());
+
+		// The wall clock jumps back, this does not affect scheduled events,
+		// and the wall clock is only read again on the next loop iteration.
+		time[1] = 0L;
+		DelayedEvent earlier = m_eventMachine.executeLater(null, 1, TimeUnit.MICROSECONDS);
+		assertEquals(1000000L, earlier.getTime());
+		Queue<DelayedEvent> actions = m_eventMachine.getQueue();
+		assertSame(earlier, actions.poll());
+		assertSame(later, actions.poll());
+
+		// Dates are converted using the clocks as read at creation.
+		DelayedEvent at = m_eventMachine.executeAt(null, new Date(1001000L));
+		actions = m_eventMachine.getQueue();
+		assertSame(earlier, actions.poll());
+		assertSame(at, actions.poll());
+		assertSame(later, actions.poll());
+	}
+
+	public void testSubMillisecondDelay() throws Exception
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+		final long[] ran = new long[1];
+		m_eventMachine.start();
+		final long start = System.nanoTime();
+		m_eventMachine.executeLater(new Runnable()
+		{
+			public void run()
+			{
+				ran[0] = System.nanoTime() - start;
+				latch.countDown();
+			}
+		}, 300, TimeUnit.MICROSECONDS);
+		assertEquals(true, latch.await(10, TimeUnit.SECONDS));
+		assertTrue(ran[0] >= 300000L);
+		m_eventMachine.stop();
+	}
+
+	public void testExecuteAtFixedRate() throws Exception
+	{
+		final CountDownLatch latch = new CountDownLatch(5);
+		final long[] deadlines = new long[5];
+		final DelayedAction[] event = new DelayedAction[1];
+		// Use the wheel, as it removes cancelled events immediately.
+		m_eventMachine = new EventMachine(1, TimeUnit.MILLISECONDS, 64);
+		m_eventMachine.start();
+		synchronized (event)
+		{
+			event[0] = (DelayedAction) m_eventMachine.executeAtFixedRate(new Runnable()
+			{
+				public void run()
+				{
+					synchronized (event)
+					{
+						deadlines[5 - (int) latch.getCount()] = event[0].getDeadline();
+					}
+					latch.countDown();
+					// Slow execution should not make the schedule drift.
+					try
+					{
+						Thread.sleep(3);
+					}
+					catch (InterruptedException e)
+					{
+					}
+				}
+			}, 10, 10, TimeUnit.MILLISECONDS);
+		}
+		assertEquals(true, latch.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < 5; i++)
+		{
+			long periods = (deadlines[i] - deadlines[0]) / 10000000L;
+			assertEquals(0, (deadlines[i] - deadlines[0]) % 10000000L);
+			assertTrue(periods >= i);
+		}
+		// The same entry is reused, check the queue between executions.
+		final int[] size = new int[2];
+		final CountDownLatch checked = new CountDownLatch(1);
+		m_eventMachine.asyncExecute(new Runnable()
+		{
+			public void run()
+			{
+				size[0] = m_eventMachine.getQueueSize();
+				event[0].cancel();
+				size[1] = m_eventMachine.getQueueSize();
+				checked.countDown();
+			}
+		});
+		assertEquals(true, checked.await(10, TimeUnit.SECONDS));
+		m_eventMachine.stop();
+		assertEquals(1, size[0]);
+		assertEquals(0, size[1]);
+	}
+
+	public void testExecuteWithFixedDelay() throws Exception
+	{
+		final AtomicInteger runs = new AtomicInteger(0);
+		final CountDownLatch latch = new CountDownLatch(3);
+		m_eventMachine.start();
+		final DelayedEvent event = m_eventMachine.executeWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				runs.incrementAndGet();
+				latch.countDown();
+			}
+		}, 0, 5, TimeUnit.MILLISECONDS);
+		assertEquals(true, latch.await(10, TimeUnit.SECONDS));
+
+		// Cancel from within the task on the event thread, it should not run again.
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		m_eventMachine.asyncExecute(new Runnable()
+		{
+			public void run()
+			{
+				event.cancel();
+				cancelled.countDown();
+			}
+		});
+		assertEquals(true, cancelled.await(10, TimeUnit.SECONDS));
+		int count = runs.get();
+		Thread.sleep(50);
+		assertEquals(count, runs.get());
+		assertEquals(0, m_eventMachine.getQueueSize());
+		m_eventMachine.stop();
+	}
+
+	public void testPeriodMustBePositive() throws Exception
+	{
+		try
+		{
+			m_eventMachine.executeAtFixedRate(null, 0, 0, TimeUnit.MILLISECONDS);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		try
+		{
+			m_eventMachine.executeWithFixedDelay(null, 0, -1, TimeUnit.MILLISECONDS);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package naga.eventmachine;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+public class HashedWheelTimerQueueTest extends TestCase
+{
+	HashedWheelTimerQueue m_queue;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		// Ticks of 10 starting at 1000, 8 ticks per wheel.
+		m_queue = new HashedWheelTimerQueue(1000, 10, 5);
+	}
+
+	private DelayedAction add(long time)
+	{
+		DelayedAction action = new DelayedAction(null, time, time);
+		action.setQueue(m_queue);
+		m_queue.add(action);
+		return action;
+	}
+
+	public void testIllegalArguments()
+	{
+		try
+		{
+			new HashedWheelTimerQueue(0, 0, 8);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Tick duration must be at least 1, was 0", e.getMessage());
+		}
+		try
+		{
+			new HashedWheelTimerQueue(0, 1, 0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Ticks per wheel must be between 1 and 2^30, was 0", e.getMessage());
+		}
+	}
+
+	public void testPollInTickOrder() throws Exception
+	{
+		assertEquals(Long.MAX_VALUE, m_queue.timeOfNextEvent());
+		DelayedAction a = add(1025);
+		DelayedAction b = add(1011);
+		DelayedAction c = add(1020);
+		assertEquals(3, m_queue.size());
+		assertEquals(1020, m_queue.timeOfNextEvent());
+		assertEquals(null, m_queue.poll(1019));
+		assertSame(b, m_queue.poll(1020));
+		assertSame(c, m_queue.poll(1020));
+		assertEquals(null, m_queue.poll(1020));
+		assertEquals(1030, m_queue.timeOfNextEvent());
+		assertSame(a, m_queue.poll(1030));
+		assertEquals(0, m_queue.size());
+		assertEquals(Long.MAX_VALUE, m_queue.timeOfNextEvent());
+	}
+
+	public void testPastActionsAreDueImmediately() throws Exception
+	{
+		m_queue.poll(1050);
+		DelayedAction a = add(500);
+		assertEquals(500, m_queue.timeOfNextEvent());
+		assertSame(a, m_queue.poll(1050));
+	}
+
+	public void testActionsInLaterTurns() throws Exception
+	{
+		// One turn of the wheel is 80, so these share a bucket.
+		DelayedAction far = add(1090);
+		DelayedAction near = add(1010);
+		assertSame(near, m_queue.poll(1010));
+		assertEquals(null, m_queue.poll(1080));
+		assertEquals(1090, m_queue.timeOfNextEvent());
+		assertSame(far, m_queue.poll(1090));
+	}
+
+	public void testSkipMoreThanOneTurn() throws Exception
+	{
+		DelayedAction a = add(1030);
+		DelayedAction b = add(1500);
+		DelayedAction c = add(2000);
+		assertSame(a, m_queue.poll(1600));
+		assertSame(b, m_queue.poll(1600));
+		assertEquals(null, m_queue.poll(1600));
+		assertSame(c, m_queue.poll(2000));
+	}
+
+	public void testCancelRemovesAction() throws Exception
+	{
+		DelayedAction a = add(1010);
+		DelayedAction b = add(1010);
+		DelayedAction c = add(1010);
+		b.cancel();
+		assertEquals(2, m_queue.size());
+		assertEquals(false, m_queue.remove(b));
+		assertEquals(2, m_queue.actions().size());
+		a.cancel();
+		assertSame(c, m_queue.poll(1010));
+		assertEquals(0, m_queue.size());
+		assertEquals(Long.MAX_VALUE, m_queue.timeOfNextEvent());
+		// Cancelling an action that has been polled has no effect.
+		c.cancel();
+		assertEquals(0, m_queue.size());
+	}
+}
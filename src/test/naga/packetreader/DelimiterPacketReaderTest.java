@@ -5,6 +5,8 @@ package naga.packetreader;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+
 public class DelimiterPacketReaderTest extends TestCase
 {
 	DelimiterPacketReader m_delimiterPacketReader;
@@ -25,4 +27,19 @@ public class DelimiterPacketReaderTest extends TestCase
 		m_delimiterPacketReader.setMaxPacketSize(19);
 		assertEquals(19, m_delimiterPacketReader.getMaxPacketSize());
 	}
-}
\ No newline at end of file
+
+	public void testNextPacketBuffer() throws Exception
+	{
+		m_delimiterPacketReader = new DelimiterPacketReader((byte)0);
+		ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[] { 65, 66, 0, 0, 67 });
+		ByteBuffer packet = m_delimiterPacketReader.nextPacketBuffer(byteBuffer);
+		assertEquals(2, packet.remaining());
+		assertEquals(65, packet.get(0));
+		assertEquals(66, packet.get(1));
+		assertEquals(3, byteBuffer.position());
+		assertEquals(0, m_delimiterPacketReader.nextPacketBuffer(byteBuffer).remaining());
+		assertEquals(null, m_delimiterPacketReader.nextPacketBuffer(byteBuffer));
+		assertEquals(1, byteBuffer.remaining());
+		assertEquals("C", new String(m_delimiterPacketReader.nextPacket(ByteBuffer.wrap(new byte[] { 67, 0 }))));
+	}
+}
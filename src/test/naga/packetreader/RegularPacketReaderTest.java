@@ -25,4 +25,26 @@ public class RegularPacketReaderTest extends TestCase
         assertEquals("", new String(m_regularPacketReader.nextPacket(byteBuffer)));
 
 	}
-}
\ No newline at end of file
+
+	public void testNextPacketBuffer() throws Exception
+	{
+		m_regularPacketReader = new RegularPacketReader(1, true);
+		byte[] data = new byte[] { 2, 65, 66, 1, 67, 1 };
+		ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+		ByteBuffer packet = m_regularPacketReader.nextPacketBuffer(byteBuffer);
+		assertEquals(2, packet.remaining());
+		assertEquals(65, packet.get(0));
+		assertEquals(66, packet.get(1));
+		assertEquals(3, byteBuffer.position());
+		packet = m_regularPacketReader.nextPacketBuffer(byteBuffer);
+		assertEquals(1, packet.remaining());
+		assertEquals(67, packet.get());
+		assertEquals(null, m_regularPacketReader.nextPacketBuffer(byteBuffer));
+		assertEquals(1, byteBuffer.remaining());
+
+		// The packet is a view of the read buffer, not a copy.
+		data[1] = 70;
+		byteBuffer.rewind();
+		assertEquals(70, m_regularPacketReader.nextPacketBuffer(byteBuffer).get(0));
+	}
+}